@@ -0,0 +1,262 @@
+package Client;
+
+import Server.Interface.IResourceManager;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.rmi.RemoteException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+/*
+ * Bulk import and export of flights, cars and rooms through the middleware.
+ *
+ *   java Client.InventoryTool import <file> [host [port]]
+ *   java Client.InventoryTool export <file> [host [port]] [flight|car|room ...]
+ *
+ * A file ending in .bin is binary, anything else CSV. CSV has one item per
+ * line, "kind,location,count,price" (kind is flight, car or room; a flight's
+ * location is its number); blank lines and lines starting with # are
+ * skipped. Binary is the same fields as [byte kind][UTF location][int
+ * count][int price] records, with kinds 1, 2 and 3.
+ *
+ * Import reads the file as a stream and sends it in chunks through the bulk
+ * add operations, with several chunks in flight at once; export fetches
+ * the inventory a part at a time with exportInventory. Either way only a
+ * few chunks are ever held in memory, whatever the size of the file.
+ */
+public class InventoryTool {
+    private static final String[] KINDS = { "flight", "car", "room" };
+
+    private final IResourceManager rm;
+    private final int chunkSize = Integer.getInteger("inventory.chunk", 5000);
+    private final int window = Integer.getInteger("inventory.inflight", 8);
+    private final int exportParts = Integer.getInteger("inventory.export.parts", 64);
+
+    // Import: one chunk being filled per kind, and the chunks being sent
+    private final Map<String, Chunk> filling = new HashMap<>();
+    private final Semaphore inFlight = new Semaphore(window);
+    private final AtomicReference<Exception> failure = new AtomicReference<>();
+    private final ExecutorService senders = Executors.newFixedThreadPool(window, r -> {
+        Thread thread = new Thread(r, "InventoryTool-sender");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public InventoryTool(IResourceManager rm) {
+        this.rm = rm;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2 || !(args[0].equals("import") || args[0].equals("export"))) {
+            System.err.println("Usage: InventoryTool import <file> [host [port]]");
+            System.err.println("       InventoryTool export <file> [host [port]] [flight|car|room ...]");
+            System.exit(1);
+        }
+        String host = args.length > 2 ? args[2] : "localhost";
+        int port = args.length > 3 ? Integer.parseInt(args[3]) : 17000;
+
+        TCPClient client = new TCPClient();
+        client.connectServer(host, port);
+        InventoryTool tool = new InventoryTool(client.m_resourceManager);
+        File file = new File(args[1]);
+
+        long start = System.nanoTime();
+        long items;
+        if (args[0].equals("import")) {
+            items = tool.importFrom(file);
+        } else {
+            String[] kinds = args.length > 4 ? Arrays.copyOfRange(args, 4, args.length) : KINDS;
+            items = tool.exportTo(file, kinds);
+        }
+        System.out.println(args[0] + "ed " + items + " items in " + (System.nanoTime() - start) / 1000000 + " ms");
+        System.exit(0);
+    }
+
+    /* Loads every item in file; returns how many there were */
+    public long importFrom(File file) throws IOException, InterruptedException {
+        long items = 0;
+        try {
+            if (isBinary(file)) {
+                try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+                    int kind;
+                    while ((kind = in.read()) >= 0) {
+                        if (kind < 1 || kind > KINDS.length) {
+                            throw new IOException("Unknown item kind " + kind + " in " + file);
+                        }
+                        add(KINDS[kind - 1], in.readUTF(), in.readInt(), in.readInt());
+                        items++;
+                    }
+                }
+            } else {
+                try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8), 1 << 16)) {
+                    String line;
+                    int lineNumber = 0;
+                    while ((line = in.readLine()) != null) {
+                        lineNumber++;
+                        line = line.trim();
+                        if (line.isEmpty() || line.startsWith("#")) {
+                            continue;
+                        }
+                        String[] fields = line.split(",");
+                        if (fields.length != 4) {
+                            throw new IOException(file + ":" + lineNumber + ": expected kind,location,count,price");
+                        }
+                        try {
+                            add(fields[0].trim().toLowerCase(), fields[1].trim(), Integer.parseInt(fields[2].trim()), Integer.parseInt(fields[3].trim()));
+                        } catch (IllegalArgumentException e) {
+                            throw new IOException(file + ":" + lineNumber + ": " + e.getMessage());
+                        }
+                        items++;
+                    }
+                }
+            }
+            for (Chunk chunk : filling.values()) {
+                if (chunk.size > 0) {
+                    send(chunk);
+                }
+            }
+            filling.clear();
+            // Wait for the last chunks
+            inFlight.acquire(window);
+            inFlight.release(window);
+            checkFailure();
+            return items;
+        } finally {
+            senders.shutdown();
+        }
+    }
+
+    private void add(String kind, String location, int count, int price) throws InterruptedException, IOException {
+        if (!Arrays.asList(KINDS).contains(kind)) {
+            throw new IllegalArgumentException("unknown kind " + kind);
+        }
+        Chunk chunk = filling.computeIfAbsent(kind, k -> new Chunk(k, chunkSize));
+        chunk.add(location, count, price);
+        if (chunk.size == chunkSize) {
+            filling.remove(kind);
+            send(chunk);
+        }
+    }
+
+    /* Sends chunk in the background once fewer than window chunks are in flight */
+    private void send(Chunk chunk) throws InterruptedException, IOException {
+        inFlight.acquire();
+        checkFailure();
+        senders.submit(() -> {
+            try {
+                if (!chunk.sendTo(rm)) {
+                    failure.compareAndSet(null, new IOException("The server refused a chunk of " + chunk.kind + " items"));
+                }
+            } catch (Exception e) {
+                failure.compareAndSet(null, e);
+            } finally {
+                inFlight.release();
+            }
+        });
+    }
+
+    private void checkFailure() throws IOException {
+        Exception e = failure.get();
+        if (e != null) {
+            throw new IOException("Import failed: " + e.getMessage(), e);
+        }
+    }
+
+    /* Writes every item of the given kinds to file; returns how many there were */
+    public long exportTo(File file, String[] kinds) throws IOException, InterruptedException {
+        long items = 0;
+        boolean binary = isBinary(file);
+        try (OutputStream stream = new BufferedOutputStream(new FileOutputStream(file), 1 << 16)) {
+            DataOutputStream binaryOut = new DataOutputStream(stream);
+            Writer textOut = new OutputStreamWriter(stream, StandardCharsets.UTF_8);
+            for (String kind : kinds) {
+                // Fetch up to window parts ahead, writing them out in order
+                Deque<Future<String[]>> pending = new ArrayDeque<>();
+                int next = 0;
+                while (next < exportParts || !pending.isEmpty()) {
+                    while (next < exportParts && pending.size() < window) {
+                        int part = next++;
+                        pending.add(senders.submit(() -> rm.exportInventory(kind, part, exportParts)));
+                    }
+                    String[] lines = await(pending.poll());
+                    for (String line : lines) {
+                        if (binary) {
+                            String[] fields = line.split(",");
+                            binaryOut.writeByte(Arrays.asList(KINDS).indexOf(fields[0]) + 1);
+                            binaryOut.writeUTF(fields[1]);
+                            binaryOut.writeInt(Integer.parseInt(fields[2]));
+                            binaryOut.writeInt(Integer.parseInt(fields[3]));
+                        } else {
+                            textOut.write(line);
+                            textOut.write('\n');
+                        }
+                    }
+                    items += lines.length;
+                }
+            }
+            textOut.flush();
+            binaryOut.flush();
+        } finally {
+            senders.shutdown();
+        }
+        return items;
+    }
+
+    private static String[] await(Future<String[]> part) throws IOException, InterruptedException {
+        try {
+            return part.get();
+        } catch (ExecutionException e) {
+            throw new IOException("Export failed: " + e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    private static boolean isBinary(File file) {
+        return file.getName().endsWith(".bin");
+    }
+
+    /* Up to chunkSize items of one kind, as the arrays the bulk add operations take */
+    private static class Chunk {
+        final String kind;
+        final String[] locations;
+        final int[] counts;
+        final int[] prices;
+        int size = 0;
+
+        Chunk(String kind, int capacity) {
+            this.kind = kind;
+            this.locations = new String[capacity];
+            this.counts = new int[capacity];
+            this.prices = new int[capacity];
+        }
+
+        void add(String location, int count, int price) {
+            if (kind.equals("flight")) {
+                Integer.parseInt(location);
+            }
+            locations[size] = location;
+            counts[size] = count;
+            prices[size] = price;
+            size++;
+        }
+
+        boolean sendTo(IResourceManager rm) throws RemoteException {
+            String[] locations = Arrays.copyOf(this.locations, size);
+            int[] counts = Arrays.copyOf(this.counts, size);
+            int[] prices = Arrays.copyOf(this.prices, size);
+            switch (kind) {
+                case "flight":
+                    int[] flightNums = new int[size];
+                    for (int i = 0; i < size; i++) {
+                        flightNums[i] = Integer.parseInt(locations[i]);
+                    }
+                    return rm.addFlights(flightNums, counts, prices);
+                case "car":
+                    return rm.addCars(locations, counts, prices);
+                default:
+                    return rm.addRooms(locations, counts, prices);
+            }
+        }
+    }
+}
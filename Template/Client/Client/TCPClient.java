@@ -3,11 +3,13 @@ package Client;
 import Server.Interface.*;
 import Server.TCP.TCPMessage;
 import Server.TCP.TCPMessage.Command;
-import Server.TCP.TCPCommunicator;
+import Server.TCP.TCPConnection;
 
 import java.io.*;
-import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.Random;
 import java.util.Vector;
+import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.rmi.RemoteException;
 
@@ -15,8 +17,19 @@ public class TCPClient extends Client {
     private static String s_serverHost = "localhost";
     private static int s_serverPort = 17000;
 
-    private Socket socket;
+    // How long to wait for an answer before sending the request again, and how many times to
+    // send it again; retries are safe because every attempt carries the same request id
+    private static final long s_timeoutMillis = Long.getLong("client.timeout.ms", 10000);
+    private static final int s_retries = Integer.getInteger("client.retries", 3);
+    // Longest a call may take, retries included; the servers are told, and drop work past it
+    private static final long s_deadlineMillis = Long.getLong("client.deadline.ms", 30000);
+
+    private volatile TCPConnection connection;
+    private String serverHost = s_serverHost;
+    private int serverPort = s_serverPort;
     private AtomicInteger messageIdCounter = new AtomicInteger(1);
+    // High half of this client's request ids, telling its retries apart from other clients'
+    private final int clientId = new Random().nextInt();
 
     public static void main(String args[]) {
         if (args.length > 0) {
@@ -57,14 +70,16 @@ public class TCPClient extends Client {
     }
 
     public void connectServer(String server, int port) {
+        serverHost = server;
+        serverPort = port;
         try {
             boolean first = true;
             while (true) {
                 try {
-                    if (socket != null && !socket.isClosed()) {
-                        socket.close();
+                    if (connection != null) {
+                        connection.close();
                     }
-                    socket = new Socket(server, port);
+                    connection = new TCPConnection(server, port);
                     System.out.println("Connected to Middleware server [" + server + ":" + port + "]");
                     break;
                 } catch (IOException e) {
@@ -83,25 +98,97 @@ public class TCPClient extends Client {
     }
 
 
+    /* The current connection, replaced by a new one if it has dropped */
+    private synchronized TCPConnection openConnection() throws IOException {
+        if (connection == null || !connection.isOpen()) {
+            connection = new TCPConnection(serverHost, serverPort);
+            System.out.println("Reconnected to Middleware server [" + serverHost + ":" + serverPort + "]");
+        }
+        return connection;
+    }
+
     private class TCPResourceManagerProxy implements IResourceManager {
 
+        /*
+         * Sends a request, sending it again (reconnecting first if the connection
+         * dropped) when no answer comes within client.timeout.ms. The servers
+         * recognise a retry by its request id and answer it with the first
+         * attempt's result, so a change is never applied twice, and whichever
+         * attempt is answered first settles the call. The call gives up at its
+         * deadline, client.deadline.ms after it started, however many retries
+         * are left. A server too busy to take the request refuses it at once
+         * with a time to retry after, which is waited out before the next try.
+         */
         private TCPMessage sendRequest(Command command, Object... args) throws RemoteException {
-            try {
-                int messageId = messageIdCounter.getAndIncrement();
-                TCPMessage request = new TCPMessage(messageId, command, args);
-
-      
-                TCPCommunicator.sendMessage(socket, request);
-                TCPMessage response = TCPCommunicator.receiveMessage(socket);
-                if (response.getMessageType() == TCPMessage.MessageType.ERROR) {
-                    throw new RemoteException("Server error: " + response.getErrorMessage());
-                }
-
-                return response;
+            int messageId = messageIdCounter.getAndIncrement();
+            TCPMessage request = new TCPMessage(messageId, command, args);
+            request.setRequestId(((long) clientId << 32) | (messageId & 0xFFFFFFFFL));
+            if (s_deadlineMillis > 0) {
+                request.setTimeout(s_deadlineMillis);
+            }
 
-            } catch (IOException | ClassNotFoundException e) {
-                throw new RemoteException("Communication error: " + e.getMessage(), e);
+            CompletableFuture<TCPMessage> answer = new CompletableFuture<>();
+            IOException failure = null;
+            TCPMessage response = null;
+            for (int attempt = 0; attempt <= s_retries; attempt++) {
+                boolean timedOut = false;
+                try {
+                    // Safe to call from many threads at once: the connection matches responses by id
+                    CompletableFuture<TCPMessage> sent = openConnection().sendAsync(request);
+                    sent.thenAccept(answer::complete);
+                    CompletableFuture<Object> first = CompletableFuture.anyOf(answer, sent);
+                    if (s_timeoutMillis > 0) {
+                        first.get(s_timeoutMillis, TimeUnit.MILLISECONDS);
+                    } else {
+                        first.get();
+                    }
+                    response = answer.isDone() ? answer.join() : sent.join();
+                    long retryAfter = response.getRetryAfterMillis();
+                    if (retryAfter <= 0 || attempt == s_retries
+                            || (request.hasDeadline() && request.getTimeLeftMillis() <= retryAfter)) {
+                        break;
+                    }
+                    // Refused for overload before any work was done; come back when the server suggests
+                    System.err.println("Server busy with " + command + "; retrying in " + retryAfter + " ms");
+                    Thread.sleep(retryAfter);
+                    answer = new CompletableFuture<>();
+                    response = null;
+                    continue;
+                } catch (IOException e) {
+                    failure = e;
+                } catch (ExecutionException e) {
+                    // This attempt's connection failed; an earlier attempt may still be answered
+                    failure = e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+                } catch (TimeoutException e) {
+                    failure = new SocketTimeoutException("No answer within " + s_timeoutMillis + " ms");
+                    timedOut = true;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RemoteException("Interrupted waiting for " + command);
+                }
+                if (request.isExpired()) {
+                    throw new RemoteException("No answer to " + command + " within its deadline of " + s_deadlineMillis + " ms", failure);
+                }
+                System.err.println("No answer to " + command + " (" + failure.getMessage() + ")"
+                        + (attempt < s_retries ? "; retrying" : ""));
+                if (!timedOut && attempt < s_retries) {
+                    // The middleware is unreachable rather than slow; give it a moment
+                    try {
+                        Thread.sleep(250L << Math.min(attempt, 4));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                }
+            }
+            if (response == null) {
+                throw new RemoteException("Communication error: " + failure.getMessage(), failure);
+            }
+            // An answer, even an error, ends the call; only a missing answer is retried
+            if (response.getMessageType() == TCPMessage.MessageType.ERROR) {
+                throw new RemoteException("Server error: " + response.getErrorMessage());
             }
+            return response;
         }
 
         @Override
@@ -224,6 +311,66 @@ public class TCPClient extends Client {
             return (Boolean) response.getResult();
         }
 
+        @Override
+        public boolean addFlights(int[] flightNums, int[] flightSeats, int[] flightPrices) throws RemoteException {
+            TCPMessage response = sendRequest(Command.ADD_FLIGHTS, flightNums, flightSeats, flightPrices);
+            return (Boolean) response.getResult();
+        }
+
+        @Override
+        public boolean addCars(String[] locations, int[] numCars, int[] prices) throws RemoteException {
+            TCPMessage response = sendRequest(Command.ADD_CARS_BATCH, locations, numCars, prices);
+            return (Boolean) response.getResult();
+        }
+
+        @Override
+        public boolean addRooms(String[] locations, int[] numRooms, int[] prices) throws RemoteException {
+            TCPMessage response = sendRequest(Command.ADD_ROOMS_BATCH, locations, numRooms, prices);
+            return (Boolean) response.getResult();
+        }
+
+        @Override
+        public int[] queryFlights(int[] flightNumbers) throws RemoteException {
+            TCPMessage response = sendRequest(Command.QUERY_FLIGHTS, (Object) flightNumbers);
+            return (int[]) response.getResult();
+        }
+
+        @Override
+        public int[] queryCars(String[] locations) throws RemoteException {
+            TCPMessage response = sendRequest(Command.QUERY_CARS_BATCH, (Object) locations);
+            return (int[]) response.getResult();
+        }
+
+        @Override
+        public int[] queryRooms(String[] locations) throws RemoteException {
+            TCPMessage response = sendRequest(Command.QUERY_ROOMS_BATCH, (Object) locations);
+            return (int[]) response.getResult();
+        }
+
+        @Override
+        public boolean reserveFlights(int customerID, int[] flightNumbers) throws RemoteException {
+            TCPMessage response = sendRequest(Command.RESERVE_FLIGHTS, customerID, flightNumbers);
+            return (Boolean) response.getResult();
+        }
+
+        @Override
+        public boolean reserveCars(int customerID, String[] locations) throws RemoteException {
+            TCPMessage response = sendRequest(Command.RESERVE_CARS, customerID, locations);
+            return (Boolean) response.getResult();
+        }
+
+        @Override
+        public boolean reserveRooms(int customerID, String[] locations) throws RemoteException {
+            TCPMessage response = sendRequest(Command.RESERVE_ROOMS, customerID, locations);
+            return (Boolean) response.getResult();
+        }
+
+        @Override
+        public String[] exportInventory(String kind, int part, int parts) throws RemoteException {
+            TCPMessage response = sendRequest(Command.EXPORT_INVENTORY, kind, part, parts);
+            return (String[]) response.getResult();
+        }
+
         @Override
         public String getName() throws RemoteException {
             TCPMessage response = sendRequest(Command.GET_NAME);
@@ -0,0 +1,19 @@
+#!/bin/bash
+
+# Script to bulk import or export flights, cars and rooms through the TCP Middleware
+# Usage: ./run_inventory_tool.sh import|export <file> [middleware_host [middleware_port]] [flight|car|room ...]
+
+if [ $# -lt 2 ]; then
+    echo "Usage: ./run_inventory_tool.sh import|export <file> [middleware_host [middleware_port]] [flight|car|room ...]"
+    exit 1
+fi
+
+# Compile client and required TCP classes
+javac -cp ../Server:. Client/*.java ../Server/Server/TCP/*.java ../Server/Server/Interface/*.java
+
+if [ $? -ne 0 ]; then
+    echo "Compilation failed!"
+    exit 1
+fi
+
+java -cp ../Server:. Client.InventoryTool "$@"
@@ -0,0 +1,233 @@
+package Server.Common;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.*;
+
+// Ordered record of the changes to an RM's flights, cars and rooms, for
+// caches, replicas and anything else that wants to follow the inventory
+// without polling it.
+//
+// Every change gets the next sequence number and goes into a ring of the
+// most recent changes: the item key and its new count, price and reserved
+// count, or a count of -1 if the item was deleted. Readers ask for the
+// changes from a sequence number on and wait for them if there are none yet
+// (see read); they pull at their own pace, so a slow reader never holds the
+// RM up. A reader that falls further behind than the ring holds is told so,
+// by the first change it gets not being the one it asked for, and has to
+// start over from a fresh copy of what it follows.
+//
+// An item's values are read when it is published, under the feed's lock,
+// rather than by the operation that changed it, so when concurrent
+// reservations change the same item the last change published for it
+// always has its latest values.
+//
+// When the RM logs its changes, each one is published with the log position
+// of its operation's entry, and readers only see changes up to the first one
+// whose entry is not yet on disk (see markDurable). So no replica or cache
+// ever hears of a change that a crash could still take back.
+public class ChangeFeed
+{
+	public static final int DELETED = -1;
+
+	private final int m_mask;
+	private final String[] m_keys;
+	private final int[] m_counts;
+	private final int[] m_prices;
+	private final int[] m_reserved;
+	// Log position each change must be durable up to before readers see it; 0 for none
+	private final long[] m_positions;
+	// Identifies this run of the RM; sequence numbers start again at 1 when it restarts
+	private final long m_epoch = new Random().nextLong();
+	// Guarded by m_lock: the sequence number the next change will get, the first one readers
+	// can't see yet, and how far the log is known to be durable
+	private long m_next = 1;
+	private long m_visible = 1;
+	private long m_durable = 0;
+
+	private final ReentrantLock m_lock = new ReentrantLock();
+	private final Condition m_published = m_lock.newCondition();
+
+	public ChangeFeed(int capacity)
+	{
+		int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+		m_mask = size - 1;
+		m_keys = new String[size];
+		m_counts = new int[size];
+		m_prices = new int[size];
+		m_reserved = new int[size];
+		m_positions = new long[size];
+	}
+
+	// Changes from one read: those numbered first, first + 1, ...
+	public static class Changes
+	{
+		public final long epoch;
+		public final long first;
+		public final String[] keys;
+		public final int[] counts;
+		public final int[] prices;
+		public final int[] reserved;
+
+		public Changes(long epoch, long first, String[] keys, int[] counts, int[] prices, int[] reserved)
+		{
+			this.epoch = epoch;
+			this.first = first;
+			this.keys = keys;
+			this.counts = counts;
+			this.prices = prices;
+			this.reserved = reserved;
+		}
+
+		public int size()
+		{
+			return keys.length;
+		}
+
+		// Sequence number to read from next
+		public long next()
+		{
+			return first + keys.length;
+		}
+
+		// As sent over TCP: { epoch, first, keys, counts, prices, reserved }
+		public Object[] toArray()
+		{
+			return new Object[] { epoch, first, keys, counts, prices, reserved };
+		}
+
+		public static Changes fromArray(Object[] array)
+		{
+			return new Changes((Long)array[0], (Long)array[1], (String[])array[2], (int[])array[3], (int[])array[4], (int[])array[5]);
+		}
+	}
+
+	// Publishes a batch of changes in order: each element is a changed
+	// ReservableItem, or the key (a String) of a deleted one. Anything else is
+	// skipped.
+	public void publish(List<Object> changes)
+	{
+		publish(changes, 0);
+	}
+
+	// publish for changes that readers must not see before the log is durable up to position
+	public void publish(List<Object> changes, long position)
+	{
+		m_lock.lock();
+		try {
+			for (Object change : changes)
+			{
+				int at = (int)(m_next & m_mask);
+				if (change instanceof ReservableItem)
+				{
+					ReservableItem item = (ReservableItem)change;
+					m_keys[at] = item.getKey();
+					m_counts[at] = item.getCount();
+					m_prices[at] = item.getPrice();
+					m_reserved[at] = item.getReserved();
+				}
+				else if (change instanceof String)
+				{
+					m_keys[at] = (String)change;
+					m_counts[at] = DELETED;
+					m_prices[at] = 0;
+					m_reserved[at] = 0;
+				}
+				else
+				{
+					continue;
+				}
+				m_positions[at] = position;
+				m_next++;
+			}
+			reveal();
+		}
+		finally {
+			m_lock.unlock();
+		}
+	}
+
+	// The log is on disk up to position: readers may see the changes waiting for it
+	public void markDurable(long position)
+	{
+		m_lock.lock();
+		try {
+			m_durable = Math.max(m_durable, position);
+			reveal();
+		}
+		finally {
+			m_lock.unlock();
+		}
+	}
+
+	// Lets readers see every change up to the first that waits for the log; the caller holds m_lock
+	private void reveal()
+	{
+		long before = m_visible;
+		// Changes the ring has already dropped are past waiting for
+		m_visible = Math.max(m_visible, m_next - m_keys.length);
+		while (m_visible < m_next && m_positions[(int)(m_visible & m_mask)] <= m_durable)
+		{
+			m_visible++;
+		}
+		if (m_visible != before)
+		{
+			m_published.signalAll();
+		}
+	}
+
+	// Returns up to max changes from sequence number from on, waiting up to
+	// waitMillis for the first if there are none yet. If from has already
+	// left the ring, or belongs to another epoch, the changes start at the
+	// oldest still held instead; the caller sees first != from.
+	public Changes read(long epoch, long from, int max, long waitMillis) throws InterruptedException
+	{
+		m_lock.lock();
+		try {
+			long oldest = Math.max(1, m_next - m_keys.length);
+			if (epoch != m_epoch || from < oldest || from > m_visible)
+			{
+				from = oldest;
+			}
+			long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMillis);
+			while (from >= m_visible)
+			{
+				long left = deadline - System.nanoTime();
+				if (left <= 0)
+				{
+					break;
+				}
+				m_published.awaitNanos(left);
+			}
+			// The ring may have moved on while waiting
+			oldest = Math.max(1, m_next - m_keys.length);
+			if (from < oldest)
+			{
+				from = oldest;
+			}
+
+			int n = (int)Math.max(0, Math.min(Math.max(0, max), m_visible - from));
+			String[] keys = new String[n];
+			int[] counts = new int[n];
+			int[] prices = new int[n];
+			int[] reserved = new int[n];
+			for (int i = 0; i < n; i++)
+			{
+				int at = (int)((from + i) & m_mask);
+				keys[i] = m_keys[at];
+				counts[i] = m_counts[at];
+				prices[i] = m_prices[at];
+				reserved[i] = m_reserved[at];
+			}
+			return new Changes(m_epoch, from, keys, counts, prices, reserved);
+		}
+		finally {
+			m_lock.unlock();
+		}
+	}
+
+	public long getEpoch()
+	{
+		return m_epoch;
+	}
+}
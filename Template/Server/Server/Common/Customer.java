@@ -53,13 +53,13 @@ public class Customer extends RMItem
 
 	public String getBill()
 	{
-		String s = "Bill for customer " + m_ID + "\n";
-		for (String key : m_reservations.keySet())
+		StringBuilder s = new StringBuilder("Bill for customer ").append(m_ID).append('\n');
+		for (RMItem value : m_reservations.values())
 		{
-			ReservedItem item = (ReservedItem) m_reservations.get(key);
-			s += + item.getCount() + " " + item.getReservableItemKey() + " $" + item.getPrice() + "\n";
+			ReservedItem item = (ReservedItem) value;
+			s.append(item.getCount()).append(' ').append(item.getReservableItemKey()).append(" $").append(item.getPrice()).append('\n');
 		}
-		return s;
+		return s.toString();
 	}
 
 	public String toString()
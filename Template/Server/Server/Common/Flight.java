@@ -7,14 +7,35 @@ package Server.Common;
 
 public class Flight extends ReservableItem
 {
+	private int m_flightNum;
+
 	public Flight(int flightNum, int flightSeats, int flightPrice)
 	{
-		super(Integer.valueOf(flightNum).toString(), flightSeats, flightPrice);
+		// The location is just the number, so it is not stored as a string; see getLocation
+		super(null, flightSeats, flightPrice);
+		m_flightNum = flightNum;
+	}
+
+	// A stored flight, whose numbers are in an inventory slot
+	Flight(int flightNum, InventoryStore inventory, int slot)
+	{
+		super(null, inventory, slot);
+		m_flightNum = flightNum;
+	}
+
+	public int getFlightNum()
+	{
+		return m_flightNum;
+	}
+
+	public String getLocation()
+	{
+		return String.valueOf(m_flightNum);
 	}
 
 	public String getKey()
 	{
-		return Flight.getKey(Integer.parseInt(getLocation()));
+		return Flight.getKey(m_flightNum);
 	}
 
 	public static String getKey(int flightNum)
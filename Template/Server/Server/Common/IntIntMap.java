@@ -0,0 +1,153 @@
+package Server.Common;
+
+// IntRecordMap for non-negative int values, such as inventory slots: two int
+// arrays and nothing else, so an entry costs eight bytes of array space and
+// no objects at all.
+//
+// Not thread-safe; callers provide their own locking.
+public class IntIntMap
+{
+	public static final int MISSING = -1;
+	private static final int MIN_CAPACITY = 8;
+
+	public interface EntryVisitor
+	{
+		void visit(int key, int value);
+	}
+
+	private int[] m_keys;
+	// value + 1, so that 0 marks an empty slot
+	private int[] m_values;
+	private int m_size = 0;
+	private int m_mask;
+
+	public IntIntMap()
+	{
+		m_keys = new int[MIN_CAPACITY];
+		m_values = new int[MIN_CAPACITY];
+		m_mask = MIN_CAPACITY - 1;
+	}
+
+	public int size()
+	{
+		return m_size;
+	}
+
+	// Returns the value for key, or MISSING
+	public int get(int key)
+	{
+		int slot = slotOf(key);
+		while (m_values[slot] != 0)
+		{
+			if (m_keys[slot] == key)
+			{
+				return m_values[slot] - 1;
+			}
+			slot = (slot + 1) & m_mask;
+		}
+		return MISSING;
+	}
+
+	// Returns the previous value for key, or MISSING
+	public int put(int key, int value)
+	{
+		if (value < 0)
+		{
+			throw new IllegalArgumentException("IntIntMap only holds non-negative values");
+		}
+		int slot = slotOf(key);
+		while (m_values[slot] != 0)
+		{
+			if (m_keys[slot] == key)
+			{
+				int previous = m_values[slot] - 1;
+				m_values[slot] = value + 1;
+				return previous;
+			}
+			slot = (slot + 1) & m_mask;
+		}
+		m_keys[slot] = key;
+		m_values[slot] = value + 1;
+		if (++m_size * 4 > m_values.length * 3)
+		{
+			resize(m_values.length * 2);
+		}
+		return MISSING;
+	}
+
+	// Returns the removed value, or MISSING
+	public int remove(int key)
+	{
+		int slot = slotOf(key);
+		while (m_values[slot] != 0)
+		{
+			if (m_keys[slot] == key)
+			{
+				int value = m_values[slot] - 1;
+				closeGap(slot);
+				m_size--;
+				return value;
+			}
+			slot = (slot + 1) & m_mask;
+		}
+		return MISSING;
+	}
+
+	public void forEach(EntryVisitor visitor)
+	{
+		for (int i = 0; i < m_values.length; i++)
+		{
+			if (m_values[i] != 0)
+			{
+				visitor.visit(m_keys[i], m_values[i] - 1);
+			}
+		}
+	}
+
+	// See IntRecordMap.closeGap
+	private void closeGap(int slot)
+	{
+		int gap = slot;
+		int next = (gap + 1) & m_mask;
+		while (m_values[next] != 0)
+		{
+			int home = slotOf(m_keys[next]);
+			if (((next - home) & m_mask) >= ((next - gap) & m_mask))
+			{
+				m_keys[gap] = m_keys[next];
+				m_values[gap] = m_values[next];
+				gap = next;
+			}
+			next = (next + 1) & m_mask;
+		}
+		m_values[gap] = 0;
+	}
+
+	private void resize(int capacity)
+	{
+		int[] keys = m_keys;
+		int[] values = m_values;
+		m_keys = new int[capacity];
+		m_values = new int[capacity];
+		m_mask = capacity - 1;
+		for (int i = 0; i < values.length; i++)
+		{
+			if (values[i] != 0)
+			{
+				int slot = slotOf(keys[i]);
+				while (m_values[slot] != 0)
+				{
+					slot = (slot + 1) & m_mask;
+				}
+				m_keys[slot] = keys[i];
+				m_values[slot] = values[i];
+			}
+		}
+	}
+
+	private int slotOf(int key)
+	{
+		int h = key * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & m_mask;
+	}
+}
@@ -0,0 +1,165 @@
+package Server.Common;
+
+import java.util.function.Consumer;
+
+// Open-addressing map from int keys to records, with linear probing. Keys are
+// kept in a plain int array beside the values, so an entry costs one int and
+// one reference instead of a boxed key, a key string and a hash map node.
+//
+// Not thread-safe; callers provide their own locking.
+public class IntRecordMap<V>
+{
+	private static final int MIN_CAPACITY = 8;
+
+	private int[] m_keys;
+	private Object[] m_values;
+	private int m_size = 0;
+	private int m_mask;
+
+	public IntRecordMap()
+	{
+		this(MIN_CAPACITY);
+	}
+
+	public IntRecordMap(int expected)
+	{
+		int capacity = Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, expected * 2 - 1)) << 1);
+		m_keys = new int[capacity];
+		m_values = new Object[capacity];
+		m_mask = capacity - 1;
+	}
+
+	public int size()
+	{
+		return m_size;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(int key)
+	{
+		int slot = slotOf(key);
+		while (true)
+		{
+			Object value = m_values[slot];
+			if (value == null)
+			{
+				return null;
+			}
+			if (m_keys[slot] == key)
+			{
+				return (V)value;
+			}
+			slot = (slot + 1) & m_mask;
+		}
+	}
+
+	// Returns the previous value for key, or null
+	@SuppressWarnings("unchecked")
+	public V put(int key, V value)
+	{
+		if (value == null)
+		{
+			throw new NullPointerException("IntRecordMap does not hold null values");
+		}
+		int slot = slotOf(key);
+		while (m_values[slot] != null)
+		{
+			if (m_keys[slot] == key)
+			{
+				V previous = (V)m_values[slot];
+				m_values[slot] = value;
+				return previous;
+			}
+			slot = (slot + 1) & m_mask;
+		}
+		m_keys[slot] = key;
+		m_values[slot] = value;
+		if (++m_size * 4 > m_values.length * 3)
+		{
+			resize(m_values.length * 2);
+		}
+		return null;
+	}
+
+	// Returns the removed value, or null if key was not present
+	@SuppressWarnings("unchecked")
+	public V remove(int key)
+	{
+		int slot = slotOf(key);
+		while (true)
+		{
+			Object value = m_values[slot];
+			if (value == null)
+			{
+				return null;
+			}
+			if (m_keys[slot] == key)
+			{
+				closeGap(slot);
+				m_size--;
+				return (V)value;
+			}
+			slot = (slot + 1) & m_mask;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	public void forEach(Consumer<? super V> action)
+	{
+		for (Object value : m_values)
+		{
+			if (value != null)
+			{
+				action.accept((V)value);
+			}
+		}
+	}
+
+	// Empties slot and moves later entries of the same probe run back, so lookups never need tombstones
+	private void closeGap(int slot)
+	{
+		int gap = slot;
+		int next = (gap + 1) & m_mask;
+		while (m_values[next] != null)
+		{
+			int home = slotOf(m_keys[next]);
+			// Move the entry into the gap unless its home lies cyclically in (gap, next]
+			if (((next - home) & m_mask) >= ((next - gap) & m_mask))
+			{
+				m_keys[gap] = m_keys[next];
+				m_values[gap] = m_values[next];
+				gap = next;
+			}
+			next = (next + 1) & m_mask;
+		}
+		m_values[gap] = null;
+	}
+
+	private void resize(int capacity)
+	{
+		int[] keys = m_keys;
+		Object[] values = m_values;
+		m_keys = new int[capacity];
+		m_values = new Object[capacity];
+		m_mask = capacity - 1;
+		for (int i = 0; i < values.length; i++)
+		{
+			if (values[i] != null)
+			{
+				int slot = slotOf(keys[i]);
+				while (m_values[slot] != null)
+				{
+					slot = (slot + 1) & m_mask;
+				}
+				m_keys[slot] = keys[i];
+				m_values[slot] = values[i];
+			}
+		}
+	}
+
+	private int slotOf(int key)
+	{
+		int h = key * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & m_mask;
+	}
+}
@@ -0,0 +1,229 @@
+package Server.Common;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+// Off-heap columns for the numbers of every reservable item: available count,
+// reserved count, price and units held for pending bundles, in fixed 16-byte
+// slots of direct memory. A ReservableItem bound to a slot reads and writes
+// these instead of its own fields, so the catalogue's counts cost the garbage
+// collector nothing.
+//
+// The available and reserved counts share one 64-bit word (available in the
+// high half), so a reservation moves a unit from one to the other with a
+// single compare-and-set; see tryReserve.
+//
+// Memory comes in chunks that are never returned; freed slots are reused.
+public class InventoryStore
+{
+	private static final int SLOT_SIZE = 16;
+	private static final int COUNTS_OFFSET = 0;
+	private static final int PRICE_OFFSET = 8;
+	private static final int HELD_OFFSET = 12;
+	private static final int CHUNK_SHIFT = 16;
+	private static final int CHUNK_SLOTS = 1 << CHUNK_SHIFT;
+
+	private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+	private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.nativeOrder());
+
+	private volatile ByteBuffer[] m_chunks = new ByteBuffer[0];
+	// Guarded by this: slots handed out so far, and freed slots waiting for reuse
+	private int m_used = 0;
+	private int[] m_free = new int[64];
+	private int m_freeCount = 0;
+
+	// Takes a slot and sets its numbers
+	public synchronized int allocate(int count, int reserved, int price)
+	{
+		int slot;
+		if (m_freeCount > 0)
+		{
+			slot = m_free[--m_freeCount];
+		}
+		else
+		{
+			slot = m_used++;
+			if ((slot >>> CHUNK_SHIFT) >= m_chunks.length)
+			{
+				ByteBuffer[] chunks = Arrays.copyOf(m_chunks, m_chunks.length + 1);
+				chunks[chunks.length - 1] = ByteBuffer.allocateDirect(CHUNK_SLOTS * SLOT_SIZE + 8).alignedSlice(8).order(ByteOrder.nativeOrder());
+				m_chunks = chunks;
+			}
+		}
+		set(slot, count, reserved, price);
+		INTS.setVolatile(chunkOf(slot), offsetOf(slot) + HELD_OFFSET, 0);
+		return slot;
+	}
+
+	public synchronized void free(int slot)
+	{
+		if (m_freeCount == m_free.length)
+		{
+			m_free = Arrays.copyOf(m_free, m_free.length * 2);
+		}
+		m_free[m_freeCount++] = slot;
+	}
+
+	// Slots in use
+	public synchronized int size()
+	{
+		return m_used - m_freeCount;
+	}
+
+	public void set(int slot, int count, int reserved, int price)
+	{
+		ByteBuffer chunk = chunkOf(slot);
+		int base = offsetOf(slot);
+		INTS.setVolatile(chunk, base + PRICE_OFFSET, price);
+		LONGS.setVolatile(chunk, base + COUNTS_OFFSET, pack(count, reserved));
+	}
+
+	public int getCount(int slot)
+	{
+		return available(counts(slot));
+	}
+
+	public int getReserved(int slot)
+	{
+		return reserved(counts(slot));
+	}
+
+	public int getPrice(int slot)
+	{
+		return (int)INTS.getVolatile(chunkOf(slot), offsetOf(slot) + PRICE_OFFSET);
+	}
+
+	public void setPrice(int slot, int price)
+	{
+		INTS.setVolatile(chunkOf(slot), offsetOf(slot) + PRICE_OFFSET, price);
+	}
+
+	public int getHeld(int slot)
+	{
+		return (int)INTS.getVolatile(chunkOf(slot), offsetOf(slot) + HELD_OFFSET);
+	}
+
+	// Moves count units from available to held (or back, if count is negative). Callers hold
+	// the item's lock exclusively, so no reservation can take the units in between.
+	public void hold(int slot, int count)
+	{
+		addCounts(slot, -count, 0);
+		INTS.getAndAdd(chunkOf(slot), offsetOf(slot) + HELD_OFFSET, count);
+	}
+
+	// Moves count held units to reserved
+	public void reserveHeld(int slot, int count)
+	{
+		INTS.getAndAdd(chunkOf(slot), offsetOf(slot) + HELD_OFFSET, -count);
+		addCounts(slot, 0, count);
+	}
+
+	public void setCount(int slot, int count)
+	{
+		update(slot, count, 0, true, false);
+	}
+
+	public void setReserved(int slot, int reserved)
+	{
+		update(slot, 0, reserved, false, true);
+	}
+
+	// Adds to the available count, and replaces the price if the new one is positive
+	public void addInventory(int slot, int count, int price)
+	{
+		addCounts(slot, count, 0);
+		if (price > 0)
+		{
+			setPrice(slot, price);
+		}
+	}
+
+	// Moves one unit from available to reserved if any is available; never goes below zero
+	public boolean tryReserve(int slot)
+	{
+		ByteBuffer chunk = chunkOf(slot);
+		int at = offsetOf(slot) + COUNTS_OFFSET;
+		while (true)
+		{
+			long current = (long)LONGS.getVolatile(chunk, at);
+			int available = available(current);
+			if (available <= 0)
+			{
+				return false;
+			}
+			if (LONGS.compareAndSet(chunk, at, current, pack(available - 1, reserved(current) + 1)))
+			{
+				return true;
+			}
+		}
+	}
+
+	// Returns reserved units to the available pool
+	public void release(int slot, int count)
+	{
+		addCounts(slot, count, -count);
+	}
+
+	private void addCounts(int slot, int available, int reserved)
+	{
+		ByteBuffer chunk = chunkOf(slot);
+		int at = offsetOf(slot) + COUNTS_OFFSET;
+		while (true)
+		{
+			long current = (long)LONGS.getVolatile(chunk, at);
+			long next = pack(available(current) + available, reserved(current) + reserved);
+			if (LONGS.compareAndSet(chunk, at, current, next))
+			{
+				return;
+			}
+		}
+	}
+
+	private void update(int slot, int available, int reserved, boolean setAvailable, boolean setReserved)
+	{
+		ByteBuffer chunk = chunkOf(slot);
+		int at = offsetOf(slot) + COUNTS_OFFSET;
+		while (true)
+		{
+			long current = (long)LONGS.getVolatile(chunk, at);
+			long next = pack(setAvailable ? available : available(current), setReserved ? reserved : reserved(current));
+			if (LONGS.compareAndSet(chunk, at, current, next))
+			{
+				return;
+			}
+		}
+	}
+
+	private long counts(int slot)
+	{
+		return (long)LONGS.getVolatile(chunkOf(slot), offsetOf(slot) + COUNTS_OFFSET);
+	}
+
+	private ByteBuffer chunkOf(int slot)
+	{
+		return m_chunks[slot >>> CHUNK_SHIFT];
+	}
+
+	private static int offsetOf(int slot)
+	{
+		return (slot & (CHUNK_SLOTS - 1)) * SLOT_SIZE;
+	}
+
+	private static long pack(int available, int reserved)
+	{
+		return ((long)available << 32) | (reserved & 0xFFFFFFFFL);
+	}
+
+	private static int available(long counts)
+	{
+		return (int)(counts >> 32);
+	}
+
+	private static int reserved(long counts)
+	{
+		return (int)counts;
+	}
+}
@@ -0,0 +1,224 @@
+package Server.Common;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32;
+
+// Point-in-time copy of an RM's items, so a restart only has to replay the
+// log written since the checkpoint rather than all of it.
+//
+// The copy is fuzzy: items are read a lock stripe at a time, under that
+// stripe's shared lock, while updates carry on. That is enough because the log
+// segment the checkpoint replays from was started before the first item was
+// read, and every log record is a whole item, so replaying it brings any
+// item the copy caught early up to date.
+//
+// File: [int magic][int version][long first log segment][long item count]
+// then blocks of [int items][int length][int CRC32][items], ending with a
+// block of -1 items. Restore maps the file and decodes the blocks in
+// parallel.
+public final class RMCheckpoint
+{
+	private static final int MAGIC = 0x524D4350;
+	private static final int VERSION = 1;
+	private static final int FILE_HEADER_SIZE = 24;
+	private static final int BLOCK_HEADER_SIZE = 12;
+	private static final int BLOCK_SIZE = 1 << 20;
+
+	private RMCheckpoint()
+	{
+	}
+
+	// Writes every item in data to file, replacing it atomically once the copy is on disk. The
+	// rename is on disk too when this returns, so the log segments before the copy's can go.
+	public static void write(File file, long firstSegment, RMStore data) throws IOException
+	{
+		File temp = new File(file.getPath() + ".tmp");
+		boolean moved = false;
+		try {
+			writeCopy(temp, firstSegment, data);
+			Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			moved = true;
+		}
+		finally {
+			if (!moved && temp.exists() && !temp.delete())
+			{
+				System.err.println("RMCheckpoint: could not delete " + temp);
+			}
+		}
+		syncDirectory(file.getAbsoluteFile().getParentFile());
+	}
+
+	// Forces a directory's entries (such as a rename in it) to disk
+	private static void syncDirectory(File dir) throws IOException
+	{
+		try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+			channel.force(true);
+		}
+		catch (AccessDeniedException e) {
+			// Some platforms (Windows) can't open a directory; their renames are durable already
+		}
+	}
+
+	private static void writeCopy(File temp, long firstSegment, RMStore data) throws IOException
+	{
+		FileOutputStream stream = new FileOutputStream(temp);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream, 1 << 16));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(firstSegment);
+			out.writeLong(data.size());
+
+			Block block = new Block();
+			try {
+				data.visit(item -> {
+					try {
+						block.add(item);
+						if (block.size() >= BLOCK_SIZE)
+						{
+							block.flushTo(out);
+						}
+					}
+					catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				});
+			}
+			catch (UncheckedIOException e) {
+				throw e.getCause();
+			}
+			if (block.m_items > 0)
+			{
+				block.flushTo(out);
+			}
+			out.writeInt(-1);
+			out.writeInt(0);
+			out.writeInt(0);
+			out.flush();
+			stream.getFD().sync();
+		}
+		finally {
+			stream.close();
+		}
+	}
+
+	// Loads the checkpoint in file into data; returns the log segment to replay from, or 0 if there is no checkpoint
+	public static long load(File file, RMStore data) throws IOException
+	{
+		if (!file.exists())
+		{
+			return 0;
+		}
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+			readFully(channel, header, 0);
+			if (header.getInt() != MAGIC || header.getInt() != VERSION)
+			{
+				throw new StreamCorruptedException(file + " is not a checkpoint");
+			}
+			long firstSegment = header.getLong();
+			header.getLong();
+
+			// Find the blocks, then map and decode them in parallel
+			List<long[]> blocks = new ArrayList<long[]>();
+			long position = FILE_HEADER_SIZE;
+			ByteBuffer blockHeader = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+			while (true)
+			{
+				blockHeader.clear();
+				readFully(channel, blockHeader, position);
+				int items = blockHeader.getInt();
+				int length = blockHeader.getInt();
+				int checksum = blockHeader.getInt();
+				if (items < 0)
+				{
+					break;
+				}
+				blocks.add(new long[] { position + BLOCK_HEADER_SIZE, length, items, checksum });
+				position += BLOCK_HEADER_SIZE + length;
+			}
+
+			List<MappedByteBuffer> mapped = new ArrayList<MappedByteBuffer>(blocks.size());
+			for (long[] block : blocks)
+			{
+				mapped.add(channel.map(FileChannel.MapMode.READ_ONLY, block[0], block[1]));
+			}
+			try {
+				IntStream.range(0, blocks.size()).parallel().forEach(i -> {
+					try {
+						decode(mapped.get(i), (int)blocks.get(i)[2], (int)blocks.get(i)[3], data);
+					}
+					catch (IOException e) {
+						throw new UncheckedIOException(e);
+					}
+				});
+			}
+			catch (UncheckedIOException e) {
+				throw new IOException("Corrupt checkpoint " + file, e.getCause());
+			}
+			return firstSegment;
+		}
+	}
+
+	private static void decode(ByteBuffer buffer, int items, int checksum, RMStore data) throws IOException
+	{
+		CRC32 crc = new CRC32();
+		crc.update(buffer.duplicate());
+		if ((int)crc.getValue() != checksum)
+		{
+			throw new StreamCorruptedException("checksum mismatch");
+		}
+		for (int i = 0; i < items; i++)
+		{
+			data.putLocked(RMItemCodec.readItem(buffer));
+		}
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException
+	{
+		while (buffer.hasRemaining())
+		{
+			if (channel.read(buffer, position + buffer.position()) < 0)
+			{
+				throw new EOFException("Checkpoint is truncated");
+			}
+		}
+		buffer.flip();
+	}
+
+	// Items encoded so far for the block being built
+	private static class Block extends ByteArrayOutputStream
+	{
+		private final DataOutputStream m_out = new DataOutputStream(this);
+		private int m_items = 0;
+
+		Block()
+		{
+			super(BLOCK_SIZE + 4096);
+		}
+
+		void add(RMItem item) throws IOException
+		{
+			RMItemCodec.writeItem(m_out, item);
+			m_items++;
+		}
+
+		void flushTo(DataOutputStream out) throws IOException
+		{
+			CRC32 crc = new CRC32();
+			crc.update(buf, 0, count);
+			out.writeInt(m_items);
+			out.writeInt(count);
+			out.writeInt((int)crc.getValue());
+			out.write(buf, 0, count);
+			reset();
+			m_items = 0;
+		}
+	}
+}
@@ -5,6 +5,7 @@
 
 package Server.Common;
 
+import java.io.PrintStream;
 import java.util.*;
 
 // A specialization of HashMap with some extra diagnostics
@@ -16,27 +17,32 @@ public class RMHashMap extends HashMap<String, RMItem>
 
 	public String toString()
 	{
-		String s = "--- BEGIN RMHashMap ---\n";
-		for (String key : keySet())
+		StringBuilder s = new StringBuilder("--- BEGIN RMHashMap ---\n");
+		for (Map.Entry<String, RMItem> entry : entrySet())
 		{
-			String value = get(key).toString();
-			s = s + "[KEY='" + key + "']" + value + "\n";
+			s.append("[KEY='").append(entry.getKey()).append("']").append(entry.getValue()).append('\n');
 		}
-		s = s + "--- END RMHashMap ---";
-		return s;
+		return s.append("--- END RMHashMap ---").toString();
 	}
 
+	// Prints the same as toString, an entry at a time rather than as one string
 	public void dump()
 	{
-		System.out.println(toString());
+		PrintStream out = System.out;
+		out.println("--- BEGIN RMHashMap ---");
+		for (Map.Entry<String, RMItem> entry : entrySet())
+		{
+			out.println("[KEY='" + entry.getKey() + "']" + entry.getValue());
+		}
+		out.println("--- END RMHashMap ---");
 	}
 
 	public Object clone()
 	{
 		RMHashMap obj = new RMHashMap();
-		for (String key : keySet())
+		for (Map.Entry<String, RMItem> entry : entrySet())
 		{
-			obj.put(key, (RMItem)get(key).clone());
+			obj.put(entry.getKey(), (RMItem)entry.getValue().clone());
 		}
 		return obj;
 	}
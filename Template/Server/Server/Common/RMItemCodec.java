@@ -0,0 +1,155 @@
+package Server.Common;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Compact binary form of the stored items, used for the write-ahead log and
+// checkpoints. Each item is written as a one-byte kind followed by its
+// fields; a customer carries its reservations inline.
+public final class RMItemCodec
+{
+	public static final byte FLIGHT = 1;
+	public static final byte CAR = 2;
+	public static final byte ROOM = 3;
+	public static final byte CUSTOMER = 4;
+
+	private RMItemCodec()
+	{
+	}
+
+	public static void writeItem(DataOutput out, RMItem item) throws IOException
+	{
+		if (item instanceof ReservableItem)
+		{
+			ReservableItem reservable = (ReservableItem)item;
+			out.writeByte(item instanceof Flight ? FLIGHT : item instanceof Car ? CAR : ROOM);
+			out.writeUTF(reservable.getLocation());
+			// Holds only live in memory: after a restart the units are available again
+			out.writeInt(reservable.getCount() + reservable.getHeld());
+			out.writeInt(reservable.getPrice());
+			out.writeInt(reservable.getReserved());
+		}
+		else if (item instanceof Customer)
+		{
+			Customer customer = (Customer)item;
+			out.writeByte(CUSTOMER);
+			out.writeInt(customer.getID());
+			RMHashMap reservations = customer.getReservations();
+			out.writeInt(reservations.size());
+			for (RMItem value : reservations.values())
+			{
+				ReservedItem reserved = (ReservedItem)value;
+				out.writeUTF(reserved.getReservableItemKey());
+				out.writeUTF(reserved.getLocation());
+				out.writeInt(reserved.getCount());
+				out.writeInt(reserved.getPrice());
+			}
+		}
+		else
+		{
+			throw new IOException("Cannot encode item of type " + item.getClass().getName());
+		}
+	}
+
+	public static RMItem readItem(DataInput in) throws IOException
+	{
+		byte kind = in.readByte();
+		if (kind == CUSTOMER)
+		{
+			Customer customer = new Customer(in.readInt());
+			int reservations = in.readInt();
+			for (int i = 0; i < reservations; i++)
+			{
+				ReservedItem reserved = new ReservedItem(in.readUTF(), in.readUTF(), in.readInt(), in.readInt());
+				customer.getReservations().put(reserved.getKey(), reserved);
+			}
+			return customer;
+		}
+
+		String location = in.readUTF();
+		int count = in.readInt();
+		int price = in.readInt();
+		ReservableItem item;
+		switch (kind)
+		{
+			case FLIGHT:
+				item = new Flight(Integer.parseInt(location), count, price);
+				break;
+			case CAR:
+				item = new Car(location, count, price);
+				break;
+			case ROOM:
+				item = new Room(location, count, price);
+				break;
+			default:
+				throw new StreamCorruptedException("Unknown item kind " + kind);
+		}
+		item.setReserved(in.readInt());
+		return item;
+	}
+
+	// Same as readItem(DataInput), reading straight out of a (possibly memory-mapped) buffer
+	public static RMItem readItem(ByteBuffer in) throws IOException
+	{
+		byte kind = in.get();
+		if (kind == CUSTOMER)
+		{
+			Customer customer = new Customer(in.getInt());
+			int reservations = in.getInt();
+			for (int i = 0; i < reservations; i++)
+			{
+				ReservedItem reserved = new ReservedItem(readUTF(in), readUTF(in), in.getInt(), in.getInt());
+				customer.getReservations().put(reserved.getKey(), reserved);
+			}
+			return customer;
+		}
+
+		String location = readUTF(in);
+		int count = in.getInt();
+		int price = in.getInt();
+		ReservableItem item;
+		switch (kind)
+		{
+			case FLIGHT:
+				item = new Flight(Integer.parseInt(location), count, price);
+				break;
+			case CAR:
+				item = new Car(location, count, price);
+				break;
+			case ROOM:
+				item = new Room(location, count, price);
+				break;
+			default:
+				throw new StreamCorruptedException("Unknown item kind " + kind);
+		}
+		item.setReserved(in.getInt());
+		return item;
+	}
+
+	// Reads a string written by DataOutput.writeUTF
+	private static String readUTF(ByteBuffer in) throws IOException
+	{
+		int length = in.getShort() & 0xFFFF;
+		byte[] bytes = new byte[length];
+		in.get(bytes);
+		for (byte b : bytes)
+		{
+			if (b < 0)
+			{
+				// Not plain ASCII: let DataInputStream deal with modified UTF-8
+				ByteArrayOutputStream framed = new ByteArrayOutputStream(length + 2);
+				framed.write(length >>> 8);
+				framed.write(length);
+				framed.write(bytes);
+				return new DataInputStream(new ByteArrayInputStream(framed.toByteArray())).readUTF();
+			}
+		}
+		return new String(bytes, StandardCharsets.ISO_8859_1);
+	}
+
+	public static String keyOf(RMItem item)
+	{
+		return item instanceof Customer ? ((Customer)item).getKey() : ((ReservableItem)item).getKey();
+	}
+}
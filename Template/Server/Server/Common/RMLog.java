@@ -0,0 +1,554 @@
+package Server.Common;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.locks.*;
+import java.util.function.LongConsumer;
+import java.util.zip.CRC32;
+
+// Append-only write-ahead log of the changes made to an RM's items.
+//
+// Every operation collects the new state of each item it changed (or the key
+// it removed) in a Batch, and appends the batch as one entry while it still
+// holds the items' locks, so entries are in the same order as the changes.
+// Appending only copies into a memory buffer. A single flusher thread writes
+// out whatever has piled up and forces it to disk, then wakes everyone
+// waiting on that range: while one fsync is in progress the next group of
+// entries collects behind it, so concurrent writers share fsyncs instead of
+// each paying for its own.
+//
+// Entry: [int payload length][int CRC32 of payload][payload]
+// Payload: records, each PUT <item>, REMOVE <key>, or RESERVATION <customer
+// id> <reserved item> for a change to one of a customer's reservations
+//
+// The log is a sequence of numbered segment files, <name>.<segment>.wal.
+// A checkpoint rotates to a new segment, saves the items, and then deletes
+// the segments before it; startup replays from the checkpoint's segment on.
+// Since every record is a whole item, replaying a record the checkpoint
+// already contains just writes the same state again. For that, a record must
+// hold no change that is not logged before or with it, so while there is a
+// log, reservations lock their item exclusively too (see
+// ResourceManager.lockReservation).
+public class RMLog
+{
+	private static final byte PUT = 1;
+	private static final byte REMOVE = 2;
+	private static final byte RESERVATION = 3;
+	private static final int HEADER_SIZE = 8;
+
+	private final File m_dir;
+	private final String m_name;
+	private final boolean m_fsync;
+	private FileChannel m_channel;
+	private File m_file;
+	private long m_segment;
+	private long m_segmentStart;
+	private boolean m_rotating = false;
+
+	private final ReentrantLock m_lock = new ReentrantLock();
+	private final Condition m_pending = m_lock.newCondition();
+	private final Condition m_flushed = m_lock.newCondition();
+	private byte[] m_buffer = new byte[64 * 1024];
+	private byte[] m_spare = new byte[64 * 1024];
+	private int m_size = 0;
+	// Log positions: bytes appended so far, and how many of those are on disk
+	private long m_appended;
+	private long m_durable;
+	private IOException m_failure;
+	private boolean m_closed = false;
+	private final Thread m_flusher;
+	private int m_replayed = 0;
+	// Told each new durable position, from the flusher thread
+	private volatile LongConsumer m_durableListener;
+
+	// Changes made by one operation, appended to the log as a single entry
+	public static class Batch
+	{
+		private final Bytes m_bytes = new Bytes();
+		private final DataOutputStream m_out = new DataOutputStream(m_bytes);
+
+		public void put(RMItem item)
+		{
+			try {
+				m_out.writeByte(PUT);
+				RMItemCodec.writeItem(m_out, item);
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		// Logs one reservation instead of the whole customer, which may hold many
+		public void reservation(Customer customer, ReservedItem reserved)
+		{
+			try {
+				m_out.writeByte(RESERVATION);
+				m_out.writeInt(customer.getID());
+				m_out.writeUTF(reserved.getReservableItemKey());
+				m_out.writeUTF(reserved.getLocation());
+				m_out.writeInt(reserved.getCount());
+				m_out.writeInt(reserved.getPrice());
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		public void remove(String key)
+		{
+			try {
+				m_out.writeByte(REMOVE);
+				m_out.writeUTF(key);
+			}
+			catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+
+		public boolean isEmpty()
+		{
+			return m_bytes.size() == 0;
+		}
+
+		public void clear()
+		{
+			m_bytes.reset();
+		}
+	}
+
+	// ByteArrayOutputStream that lets the log copy straight out of its array
+	private static class Bytes extends ByteArrayOutputStream
+	{
+		byte[] array()
+		{
+			return buf;
+		}
+	}
+
+	// Opens the log in dir, replays every segment from firstSegment on into data,
+	// and carries on appending to the last one. A torn entry at the end of the
+	// last segment, from a crash in the middle of a write, is cut off. Earlier
+	// segments were complete on disk before the next one was started, so a bad
+	// entry in one of them is corruption: replaying on past it would rebuild a
+	// state that never existed, so opening fails instead.
+	public RMLog(File dir, String name, boolean fsync, long firstSegment, RMStore data) throws IOException
+	{
+		m_dir = dir;
+		m_name = name;
+		m_fsync = fsync;
+		if (!dir.isDirectory() && !dir.mkdirs())
+		{
+			throw new IOException("Cannot create log directory " + dir);
+		}
+
+		m_segment = firstSegment;
+		long[] segments = listSegments();
+		for (int i = 0; i < segments.length; i++)
+		{
+			long segment = segments[i];
+			if (segment < firstSegment)
+			{
+				continue;
+			}
+			if (m_channel != null)
+			{
+				m_channel.close();
+			}
+			m_segment = segment;
+			m_file = segmentFile(segment);
+			m_channel = FileChannel.open(m_file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+			long end = replay(data);
+			if (end < m_channel.size() && i < segments.length - 1)
+			{
+				long size = m_channel.size();
+				m_channel.close();
+				throw new IOException("Bad log entry at byte " + end + " of " + size + " in " + m_file
+					+ ", which later segments follow; refusing to recover past it");
+			}
+			if (end < m_channel.size())
+			{
+				System.err.println("RMLog: discarding " + (m_channel.size() - end) + " bytes of incomplete log entry at the end of " + m_file);
+				m_channel.truncate(end);
+			}
+		}
+		if (m_channel == null)
+		{
+			m_file = segmentFile(m_segment);
+			m_channel = FileChannel.open(m_file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		}
+		long end = m_channel.size();
+		m_channel.position(end);
+		m_appended = end;
+		m_durable = end;
+
+		m_flusher = new Thread(this::flushLoop, "RMLog-flusher " + name);
+		m_flusher.setDaemon(true);
+		m_flusher.start();
+	}
+
+	public File getFile()
+	{
+		m_lock.lock();
+		try {
+			return m_file;
+		}
+		finally {
+			m_lock.unlock();
+		}
+	}
+
+	// Bytes appended to the current segment
+	public long getSegmentSize()
+	{
+		m_lock.lock();
+		try {
+			return m_appended - m_segmentStart;
+		}
+		finally {
+			m_lock.unlock();
+		}
+	}
+
+	// Waits for everything appended so far to reach disk, then starts a new
+	// segment; returns its number. Appends wait for the switch, which takes
+	// about one flush.
+	public long rotate() throws IOException
+	{
+		m_lock.lock();
+		try {
+			while (m_rotating)
+			{
+				m_flushed.awaitUninterruptibly();
+			}
+			m_rotating = true;
+			try {
+				while (m_durable < m_appended)
+				{
+					if (m_failure != null)
+					{
+						throw new IOException("Write to " + m_file + " failed", m_failure);
+					}
+					m_flushed.awaitUninterruptibly();
+				}
+				FileChannel next = FileChannel.open(segmentFile(m_segment + 1).toPath(),
+					StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+				m_channel.force(true);
+				m_channel.close();
+				m_channel = next;
+				m_segment++;
+				m_file = segmentFile(m_segment);
+				m_segmentStart = m_appended;
+				return m_segment;
+			}
+			finally {
+				m_rotating = false;
+				m_flushed.signalAll();
+			}
+		}
+		finally {
+			m_lock.unlock();
+		}
+	}
+
+	// Deletes the segments a checkpoint has made unnecessary
+	public void deleteSegmentsBefore(long segment)
+	{
+		for (long old : listSegments())
+		{
+			if (old < segment && !segmentFile(old).delete())
+			{
+				System.err.println("RMLog: could not delete " + segmentFile(old));
+			}
+		}
+	}
+
+	private File segmentFile(long segment)
+	{
+		return new File(m_dir, m_name + "." + segment + ".wal");
+	}
+
+	// Segment numbers present on disk, in order
+	private long[] listSegments()
+	{
+		String prefix = m_name + ".";
+		File[] files = m_dir.listFiles((d, file) -> file.startsWith(prefix) && file.endsWith(".wal")
+			&& file.length() > prefix.length() + ".wal".length());
+		if (files == null)
+		{
+			return new long[0];
+		}
+		long[] segments = new long[files.length];
+		int count = 0;
+		for (File file : files)
+		{
+			String number = file.getName().substring(prefix.length(), file.getName().length() - ".wal".length());
+			try {
+				segments[count++] = Long.parseLong(number);
+			}
+			catch (NumberFormatException e) {
+				count--;
+			}
+		}
+		long[] result = Arrays.copyOf(segments, count);
+		Arrays.sort(result);
+		return result;
+	}
+
+	// Number of entries applied when the log was opened
+	public int getReplayedCount()
+	{
+		return m_replayed;
+	}
+
+	// Adds the batch to the log and clears it; returns the position to wait for, or 0 if it was empty
+	public long append(Batch batch)
+	{
+		if (batch.isEmpty())
+		{
+			return 0;
+		}
+		int length = batch.m_bytes.size();
+		byte[] payload = batch.m_bytes.array();
+		CRC32 crc = new CRC32();
+		crc.update(payload, 0, length);
+
+		m_lock.lock();
+		try {
+			while (m_rotating)
+			{
+				m_flushed.awaitUninterruptibly();
+			}
+			if (m_closed)
+			{
+				throw new IllegalStateException("Log " + m_file + " is closed");
+			}
+			ensureCapacity(m_size + HEADER_SIZE + length);
+			putInt(m_buffer, m_size, length);
+			putInt(m_buffer, m_size + 4, (int)crc.getValue());
+			System.arraycopy(payload, 0, m_buffer, m_size + HEADER_SIZE, length);
+			m_size += HEADER_SIZE + length;
+			m_appended += HEADER_SIZE + length;
+			m_pending.signal();
+			return m_appended;
+		}
+		finally {
+			m_lock.unlock();
+			batch.clear();
+		}
+	}
+
+	// Calls listener with each position up to which the log is on disk, as the flusher gets there
+	public void setDurableListener(LongConsumer listener)
+	{
+		m_durableListener = listener;
+	}
+
+	// Blocks until everything up to position is on disk
+	public void awaitDurable(long position)
+	{
+		m_lock.lock();
+		try {
+			while (m_durable < position)
+			{
+				if (m_failure != null)
+				{
+					throw new UncheckedIOException("Write to " + m_file + " failed", m_failure);
+				}
+				m_flushed.awaitUninterruptibly();
+			}
+		}
+		finally {
+			m_lock.unlock();
+		}
+	}
+
+	// Writes out everything appended so far and stops the flusher
+	public void close()
+	{
+		m_lock.lock();
+		try {
+			m_closed = true;
+			m_pending.signal();
+		}
+		finally {
+			m_lock.unlock();
+		}
+		try {
+			m_flusher.join();
+			m_lock.lock();
+			try {
+				m_channel.close();
+			}
+			finally {
+				m_lock.unlock();
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		catch (IOException e) {
+			System.err.println("RMLog: error closing " + m_file + ": " + e.getMessage());
+		}
+	}
+
+	private void flushLoop()
+	{
+		while (true)
+		{
+			byte[] chunk;
+			int length;
+			long target;
+			FileChannel channel;
+			m_lock.lock();
+			try {
+				while (m_size == 0 && !m_closed)
+				{
+					m_pending.awaitUninterruptibly();
+				}
+				if (m_size == 0)
+				{
+					return;
+				}
+				// Take everything buffered so far; appends carry on into the other buffer
+				chunk = m_buffer;
+				length = m_size;
+				target = m_appended;
+				channel = m_channel;
+				m_buffer = m_spare;
+				m_spare = chunk;
+				m_size = 0;
+			}
+			finally {
+				m_lock.unlock();
+			}
+
+			try {
+				ByteBuffer out = ByteBuffer.wrap(chunk, 0, length);
+				while (out.hasRemaining())
+				{
+					channel.write(out);
+				}
+				if (m_fsync)
+				{
+					channel.force(false);
+				}
+			}
+			catch (IOException e) {
+				System.err.println("RMLog: write to " + m_file + " failed: " + e.getMessage());
+				m_lock.lock();
+				try {
+					m_failure = e;
+					m_flushed.signalAll();
+				}
+				finally {
+					m_lock.unlock();
+				}
+				return;
+			}
+
+			m_lock.lock();
+			try {
+				m_durable = target;
+				m_flushed.signalAll();
+			}
+			finally {
+				m_lock.unlock();
+			}
+			LongConsumer listener = m_durableListener;
+			if (listener != null)
+			{
+				listener.accept(target);
+			}
+		}
+	}
+
+	// Applies every complete entry of the current segment to data; returns the position just past the last one
+	private long replay(RMStore data) throws IOException
+	{
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(m_file), 1 << 16));
+		try {
+			long position = 0;
+			long size = m_channel.size();
+			byte[] payload = new byte[4096];
+			CRC32 crc = new CRC32();
+			while (size - position >= HEADER_SIZE)
+			{
+				int length = in.readInt();
+				int checksum = in.readInt();
+				if (length < 0 || length > size - position - HEADER_SIZE)
+				{
+					break;
+				}
+				if (payload.length < length)
+				{
+					payload = new byte[Math.max(length, payload.length * 2)];
+				}
+				in.readFully(payload, 0, length);
+				crc.reset();
+				crc.update(payload, 0, length);
+				if ((int)crc.getValue() != checksum)
+				{
+					break;
+				}
+				apply(payload, length, data);
+				position += HEADER_SIZE + length;
+				m_replayed++;
+			}
+			return position;
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	private static void apply(byte[] payload, int length, RMStore data) throws IOException
+	{
+		DataInputStream records = new DataInputStream(new ByteArrayInputStream(payload, 0, length));
+		while (records.available() > 0)
+		{
+			byte type = records.readByte();
+			if (type == PUT)
+			{
+				data.put(RMItemCodec.readItem(records));
+			}
+			else if (type == REMOVE)
+			{
+				data.remove(records.readUTF());
+			}
+			else if (type == RESERVATION)
+			{
+				Customer customer = data.getCustomer(records.readInt());
+				ReservedItem reserved = new ReservedItem(records.readUTF(), records.readUTF(), records.readInt(), records.readInt());
+				if (customer != null)
+				{
+					customer.getReservations().put(reserved.getKey(), reserved);
+				}
+			}
+			else
+			{
+				throw new StreamCorruptedException("Unknown log record type " + type);
+			}
+		}
+	}
+
+	private void ensureCapacity(int capacity)
+	{
+		if (capacity > m_buffer.length)
+		{
+			byte[] bigger = new byte[Math.max(capacity, m_buffer.length * 2)];
+			System.arraycopy(m_buffer, 0, bigger, 0, m_size);
+			m_buffer = bigger;
+		}
+	}
+
+	private static void putInt(byte[] buffer, int at, int value)
+	{
+		buffer[at] = (byte)(value >>> 24);
+		buffer[at + 1] = (byte)(value >>> 16);
+		buffer[at + 2] = (byte)(value >>> 8);
+		buffer[at + 3] = (byte)value;
+	}
+}
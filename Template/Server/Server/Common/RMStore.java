@@ -0,0 +1,327 @@
+package Server.Common;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+// Where a ResourceManager keeps its items.
+//
+// Flights and customers are numbered, so they live in int-keyed maps and are
+// found by number without building "flight-<n>" or "customer-<n>" strings.
+// There is one map per lock stripe and a number's stripe is the stripe of its
+// key string (the string's hash is computed from the number directly), so a
+// map is only touched while its stripe's lock is held: shared to read,
+// exclusive to change. Cars, rooms and anything else stay in RMHashMaps keyed
+// by string, also one per stripe, so everything in a stripe can be visited
+// without looking at the rest.
+//
+// The counts and prices of all flights, cars and rooms are kept off the heap
+// in an InventoryStore. A flight is nothing but its number and its slot in an
+// IntIntMap; getFlight hands out a short-lived Flight bound to the slot, and
+// changes made through it go straight to the slot. Cars and rooms keep their
+// objects (for the location) but are bound to slots when stored.
+//
+// The String-keyed methods accept the key of any item and send flight and
+// customer keys to the int maps, so code that only has a key still works.
+public class RMStore
+{
+	private static final String FLIGHT_PREFIX = "flight-";
+	private static final String CUSTOMER_PREFIX = "customer-";
+	private static final int FLIGHT_PREFIX_HASH = FLIGHT_PREFIX.hashCode();
+	private static final int CUSTOMER_PREFIX_HASH = CUSTOMER_PREFIX.hashCode();
+	private static final long NOT_NUMBERED = Long.MIN_VALUE;
+
+	private final StripedLocks m_locks;
+	private final List<RMHashMap> m_data;
+	private final InventoryStore m_inventory = new InventoryStore();
+	private final List<IntIntMap> m_flights;
+	private final List<IntRecordMap<Customer>> m_customers;
+
+	public RMStore(StripedLocks locks)
+	{
+		m_locks = locks;
+		int stripes = locks.getStripeCount();
+		m_flights = new ArrayList<IntIntMap>(stripes);
+		m_customers = new ArrayList<IntRecordMap<Customer>>(stripes);
+		m_data = new ArrayList<RMHashMap>(stripes);
+		for (int i = 0; i < stripes; i++)
+		{
+			m_flights.add(new IntIntMap());
+			m_customers.add(new IntRecordMap<Customer>());
+			m_data.add(new RMHashMap());
+		}
+	}
+
+	// Lock stripe of Flight.getKey(flightNum)
+	public int flightStripe(int flightNum)
+	{
+		return m_locks.stripeOfHash(keyHash(FLIGHT_PREFIX_HASH, flightNum));
+	}
+
+	// Lock stripe of Customer.getKey(customerID)
+	public int customerStripe(int customerID)
+	{
+		return m_locks.stripeOfHash(keyHash(CUSTOMER_PREFIX_HASH, customerID));
+	}
+
+	public Flight getFlight(int flightNum)
+	{
+		int slot = m_flights.get(flightStripe(flightNum)).get(flightNum);
+		return slot == IntIntMap.MISSING ? null : new Flight(flightNum, m_inventory, slot);
+	}
+
+	public void putFlight(Flight flight)
+	{
+		IntIntMap flights = m_flights.get(flightStripe(flight.getFlightNum()));
+		int existing = flights.get(flight.getFlightNum());
+		if (flight.isBoundTo(m_inventory))
+		{
+			// Normally a flight from getFlight that was changed in place, so already stored
+			if (existing != flight.getSlot())
+			{
+				flights.put(flight.getFlightNum(), flight.getSlot());
+				freeSlot(existing);
+			}
+		}
+		else if (existing != IntIntMap.MISSING)
+		{
+			flight.bind(m_inventory, existing);
+		}
+		else
+		{
+			flights.put(flight.getFlightNum(), flight.bind(m_inventory));
+		}
+	}
+
+	public boolean removeFlight(int flightNum)
+	{
+		int slot = m_flights.get(flightStripe(flightNum)).remove(flightNum);
+		freeSlot(slot);
+		return slot != IntIntMap.MISSING;
+	}
+
+	public Customer getCustomer(int customerID)
+	{
+		return m_customers.get(customerStripe(customerID)).get(customerID);
+	}
+
+	public void putCustomer(Customer customer)
+	{
+		m_customers.get(customerStripe(customer.getID())).put(customer.getID(), customer);
+	}
+
+	public Customer removeCustomer(int customerID)
+	{
+		return m_customers.get(customerStripe(customerID)).remove(customerID);
+	}
+
+	public RMItem get(String key)
+	{
+		long number = numberOf(key, FLIGHT_PREFIX);
+		if (number != NOT_NUMBERED)
+		{
+			return getFlight((int)number);
+		}
+		number = numberOf(key, CUSTOMER_PREFIX);
+		if (number != NOT_NUMBERED)
+		{
+			return getCustomer((int)number);
+		}
+		return dataOf(key).get(key);
+	}
+
+	public void put(String key, RMItem item)
+	{
+		if (item instanceof Flight)
+		{
+			putFlight((Flight)item);
+		}
+		else if (item instanceof Customer)
+		{
+			putCustomer((Customer)item);
+		}
+		else
+		{
+			if (item instanceof ReservableItem)
+			{
+				bindReplacing((ReservableItem)item, dataOf(key).get(key));
+			}
+			dataOf(key).put(key, item);
+		}
+	}
+
+	// Gives item a slot, reusing that of the item it replaces
+	private void bindReplacing(ReservableItem item, RMItem previous)
+	{
+		if (item == previous)
+		{
+			return;
+		}
+		ReservableItem old = previous instanceof ReservableItem && ((ReservableItem)previous).isBoundTo(m_inventory) ? (ReservableItem)previous : null;
+		if (item.isBoundTo(m_inventory))
+		{
+			if (old != null && old.getSlot() != item.getSlot())
+			{
+				freeSlot(old.getSlot());
+			}
+		}
+		else if (old != null)
+		{
+			item.bind(m_inventory, old.getSlot());
+		}
+		else
+		{
+			item.bind(m_inventory);
+		}
+	}
+
+	private void freeSlot(int slot)
+	{
+		if (slot != IntIntMap.MISSING)
+		{
+			m_inventory.free(slot);
+		}
+	}
+
+	// put for an item whose key has not been built yet
+	public void put(RMItem item)
+	{
+		put(item instanceof Flight || item instanceof Customer ? null : RMItemCodec.keyOf(item), item);
+	}
+
+	// put for loading from several threads at once: takes the item's stripe lock itself
+	public void putLocked(RMItem item)
+	{
+		int stripe;
+		if (item instanceof Flight)
+		{
+			stripe = flightStripe(((Flight)item).getFlightNum());
+		}
+		else if (item instanceof Customer)
+		{
+			stripe = customerStripe(((Customer)item).getID());
+		}
+		else
+		{
+			stripe = m_locks.stripeOf(RMItemCodec.keyOf(item));
+		}
+		StripedLocks.Held held = m_locks.lockStripe(stripe, true);
+		try {
+			put(item);
+		}
+		finally {
+			held.release();
+		}
+	}
+
+	public void remove(String key)
+	{
+		long number = numberOf(key, FLIGHT_PREFIX);
+		if (number != NOT_NUMBERED)
+		{
+			removeFlight((int)number);
+			return;
+		}
+		number = numberOf(key, CUSTOMER_PREFIX);
+		if (number != NOT_NUMBERED)
+		{
+			removeCustomer((int)number);
+			return;
+		}
+		RMItem removed = dataOf(key).remove(key);
+		if (removed instanceof ReservableItem && ((ReservableItem)removed).isBoundTo(m_inventory))
+		{
+			freeSlot(((ReservableItem)removed).getSlot());
+		}
+	}
+
+	// Number of items; only approximate while updates are running
+	public int size()
+	{
+		int size = 0;
+		for (int i = 0; i < m_flights.size(); i++)
+		{
+			size += m_flights.get(i).size() + m_customers.get(i).size() + m_data.get(i).size();
+		}
+		return size;
+	}
+
+	// Visits every item while holding its stripe's shared lock. Only one
+	// stripe is locked at a time, so updates elsewhere carry on during the visit.
+	public void visit(Consumer<RMItem> visitor)
+	{
+		visitStripes(0, m_flights.size(), visitor);
+	}
+
+	// visit for the items in stripes [from, to) only
+	public void visitStripes(int from, int to, Consumer<RMItem> visitor)
+	{
+		for (int stripe = from; stripe < to; stripe++)
+		{
+			StripedLocks.Held held = m_locks.lockStripe(stripe, false);
+			try {
+				m_flights.get(stripe).forEach((flightNum, slot) -> visitor.accept(new Flight(flightNum, m_inventory, slot)));
+				m_customers.get(stripe).forEach(visitor);
+				m_data.get(stripe).values().forEach(visitor);
+			}
+			finally {
+				held.release();
+			}
+		}
+	}
+
+	private RMHashMap dataOf(String key)
+	{
+		return m_data.get(m_locks.stripeOf(key));
+	}
+
+	// The number in a key like "flight-42", or NOT_NUMBERED if key is not of that form
+	private static long numberOf(String key, String prefix)
+	{
+		if (!key.startsWith(prefix) || key.length() == prefix.length() || key.length() > prefix.length() + 11)
+		{
+			return NOT_NUMBERED;
+		}
+		try {
+			int number = Integer.parseInt(key.substring(prefix.length()));
+			// Only the canonical spelling (no '+' or leading zeros) belongs to the int maps
+			return key.length() == prefix.length() + stringSize(number) ? number : NOT_NUMBERED;
+		}
+		catch (NumberFormatException e) {
+			return NOT_NUMBERED;
+		}
+	}
+
+	// Same as (prefix + n).hashCode(), given prefix.hashCode(), without building the string
+	static int keyHash(int prefixHash, int n)
+	{
+		int h = prefixHash;
+		long value = n;
+		if (value < 0)
+		{
+			h = 31 * h + '-';
+			value = -value;
+		}
+		long divisor = 1;
+		while (divisor * 10 <= value)
+		{
+			divisor *= 10;
+		}
+		for (; divisor > 0; divisor /= 10)
+		{
+			h = 31 * h + (char)('0' + (value / divisor) % 10);
+		}
+		return h;
+	}
+
+	private static int stringSize(int n)
+	{
+		long value = Math.abs((long)n);
+		int size = n < 0 ? 2 : 1;
+		while (value >= 10)
+		{
+			value /= 10;
+			size++;
+		}
+		return size;
+	}
+}
@@ -13,7 +13,12 @@ public abstract class ReservableItem extends RMItem implements Serializable
 	private int m_nCount;
 	private int m_nPrice;
 	private int m_nReserved;
+	// Units set aside for bundles that are being prepared; see hold
+	private int m_nHeld;
 	private String m_location;
+	// Set once the item is stored: its numbers then live in the inventory slot, not the fields above
+	private transient InventoryStore m_inventory;
+	private transient int m_slot = -1;
 
 	public ReservableItem(String location, int count, int price)
 	{
@@ -24,34 +29,95 @@ public abstract class ReservableItem extends RMItem implements Serializable
 		m_nReserved = 0;
 	}
 
+	// An item whose numbers are already in an inventory slot
+	ReservableItem(String location, InventoryStore inventory, int slot)
+	{
+		super();
+		m_location = location;
+		m_inventory = inventory;
+		m_slot = slot;
+	}
+
+	// Moves the item's numbers into a new slot of inventory; returns the slot
+	int bind(InventoryStore inventory)
+	{
+		m_slot = inventory.allocate(m_nCount, m_nReserved, m_nPrice);
+		m_inventory = inventory;
+		return m_slot;
+	}
+
+	// Copies the item's numbers into an existing slot and keeps them there from now on
+	void bind(InventoryStore inventory, int slot)
+	{
+		inventory.set(slot, getCount(), getReserved(), getPrice());
+		m_inventory = inventory;
+		m_slot = slot;
+	}
+
+	boolean isBoundTo(InventoryStore inventory)
+	{
+		return m_inventory == inventory;
+	}
+
+	int getSlot()
+	{
+		return m_slot;
+	}
+
 	public void setCount(int count)
 	{
-		m_nCount = count;
+		if (m_inventory != null)
+		{
+			m_inventory.setCount(m_slot, count);
+		}
+		else
+		{
+			m_nCount = count;
+		}
 	}
 
 	public int getCount()
 	{
-		return m_nCount;
+		return m_inventory != null ? m_inventory.getCount(m_slot) : m_nCount;
 	}
 
 	public void setPrice(int price)
 	{
-		m_nPrice = price;
+		if (m_inventory != null)
+		{
+			m_inventory.setPrice(m_slot, price);
+		}
+		else
+		{
+			m_nPrice = price;
+		}
 	}
 
 	public int getPrice()
 	{
-		return m_nPrice;
+		return m_inventory != null ? m_inventory.getPrice(m_slot) : m_nPrice;
 	}
 
 	public void setReserved(int r)
 	{
-		m_nReserved = r;
+		if (m_inventory != null)
+		{
+			m_inventory.setReserved(m_slot, r);
+		}
+		else
+		{
+			m_nReserved = r;
+		}
 	}
 
 	public int getReserved()
 	{
-		return m_nReserved;
+		return m_inventory != null ? m_inventory.getReserved(m_slot) : m_nReserved;
+	}
+
+	public int getHeld()
+	{
+		return m_inventory != null ? m_inventory.getHeld(m_slot) : m_nHeld;
 	}
 
 	public String getLocation()
@@ -59,6 +125,89 @@ public abstract class ReservableItem extends RMItem implements Serializable
 		return m_location;
 	}
 
+	// Update methods for records changed in place; callers hold the item's lock
+
+	// Adds to the available count and replaces the price if the new one is positive
+	public void addInventory(int count, int price)
+	{
+		if (m_inventory != null)
+		{
+			m_inventory.addInventory(m_slot, count, price);
+			return;
+		}
+		m_nCount += count;
+		if (price > 0)
+		{
+			m_nPrice = price;
+		}
+	}
+
+	// Moves one unit from available to reserved
+	public void reserveOne()
+	{
+		if (m_inventory != null)
+		{
+			m_inventory.tryReserve(m_slot);
+			return;
+		}
+		m_nCount--;
+		m_nReserved++;
+	}
+
+	// Moves one unit from available to reserved if there is one, in a single atomic step
+	// when the item is stored, so it can never oversell
+	public boolean tryReserveOne()
+	{
+		if (m_inventory != null)
+		{
+			return m_inventory.tryReserve(m_slot);
+		}
+		if (m_nCount <= 0)
+		{
+			return false;
+		}
+		m_nCount--;
+		m_nReserved++;
+		return true;
+	}
+
+	// Sets count available units aside for a bundle that is not yet committed: they can't be
+	// reserved by anyone else, and later become reserved (reserveHeld) or available again
+	// (hold with a negative count). Callers hold the item's lock exclusively.
+	public void hold(int count)
+	{
+		if (m_inventory != null)
+		{
+			m_inventory.hold(m_slot, count);
+			return;
+		}
+		m_nCount -= count;
+		m_nHeld += count;
+	}
+
+	public void reserveHeld(int count)
+	{
+		if (m_inventory != null)
+		{
+			m_inventory.reserveHeld(m_slot, count);
+			return;
+		}
+		m_nHeld -= count;
+		m_nReserved += count;
+	}
+
+	// Returns reserved units to the available pool
+	public void release(int count)
+	{
+		if (m_inventory != null)
+		{
+			m_inventory.release(m_slot, count);
+			return;
+		}
+		m_nReserved -= count;
+		m_nCount += count;
+	}
+
 	public String toString()
 	{
 		return "RESERVABLEITEM key='" + getKey() + "', location='" + getLocation() +
@@ -69,11 +218,15 @@ public abstract class ReservableItem extends RMItem implements Serializable
 
 	public Object clone()
 	{
+		// The copy is detached: it has the current numbers in its own fields
 		ReservableItem obj = (ReservableItem)super.clone();
 		obj.m_location = m_location;
-		obj.m_nCount = m_nCount;
-		obj.m_nPrice = m_nPrice;
-		obj.m_nReserved = m_nReserved;
+		obj.m_nCount = getCount();
+		obj.m_nPrice = getPrice();
+		obj.m_nReserved = getReserved();
+		obj.m_nHeld = getHeld();
+		obj.m_inventory = null;
+		obj.m_slot = -1;
 		return obj;
 	}
 }
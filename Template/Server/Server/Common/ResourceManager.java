@@ -8,137 +8,379 @@ package Server.Common;
 import Server.Interface.*;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
 import java.rmi.RemoteException;
 import java.io.*;
 
 public class ResourceManager implements IResourceManager
 {
 	protected String m_name = "";
-	protected RMHashMap m_data = new RMHashMap();
+	// Per-key locks; compound operations lock every key they touch up front
+	protected StripedLocks m_locks = new StripedLocks(Integer.getInteger("rm.lock.stripes", 1024));
+	protected RMStore m_store = new RMStore(m_locks);
+	// Write-ahead log of every change when running with -Drm.data.dir, otherwise null
+	protected RMLog m_log;
+	// Changes made by the current operation, appended to m_log when it unlocks
+	private final ThreadLocal<RMLog.Batch> m_batch = ThreadLocal.withInitial(RMLog.Batch::new);
+	// Recent changes to flights, cars and rooms for subscribers (see pollChanges), or null if -Drm.feed.buffer=0
+	protected ChangeFeed m_feed;
+	// Items changed (or keys of items deleted) by the current operation, published to m_feed when it unlocks
+	private final ThreadLocal<List<Object>> m_changes = ThreadLocal.withInitial(ArrayList::new);
+	private File m_checkpointFile;
+	private ScheduledExecutorService m_checkpointer;
+	// Units set aside by prepareReserve until commitReserve or abortReserve, by transaction id
+	private final ConcurrentHashMap<Long, Hold> m_holds = new ConcurrentHashMap<Long, Hold>();
+	// Outcomes of transactions committed or aborted in the last rm.hold.timeout.ms, so that a repeat
+	// of their commit gets the same answer and a late prepare holds nothing
+	private final ConcurrentHashMap<Long, Outcome> m_outcomes = new ConcurrentHashMap<Long, Outcome>();
+	// How long a hold lasts if its coordinator never finishes it
+	private final long m_holdTimeoutMillis = Long.getLong("rm.hold.timeout.ms", 30000);
+	// Aborts expired holds; started with the first hold. Never started under the RM's monitor or
+	// with stripe locks held: checkpoint takes stripe locks inside the monitor.
+	private final AtomicBoolean m_holdReaperStarted = new AtomicBoolean();
 
 	public ResourceManager(String p_name)
 	{
 		m_name = p_name;
+		int feedBuffer = Integer.getInteger("rm.feed.buffer", 65536);
+		if (feedBuffer > 0)
+		{
+			m_feed = new ChangeFeed(feedBuffer);
+		}
+		String dataDir = System.getProperty("rm.data.dir");
+		if (dataDir != null)
+		{
+			openStorage(new File(dataDir));
+		}
 	}
 
-	// Reads a data item
-	protected RMItem readData(String key)
+	// Restores the last checkpoint and the log after it, then checkpoints periodically
+	private void openStorage(File dir)
 	{
-		synchronized(m_data) {
-			RMItem item = m_data.get(key);
-			if (item != null) {
-				return (RMItem)item.clone();
+		m_checkpointFile = new File(dir, m_name + ".checkpoint");
+		try {
+			long start = System.nanoTime();
+			long firstSegment = RMCheckpoint.load(m_checkpointFile, m_store);
+			int checkpointed = m_store.size();
+			m_log = new RMLog(dir, m_name, Boolean.parseBoolean(System.getProperty("rm.wal.fsync", "true")), firstSegment, m_store);
+			if (m_feed != null)
+			{
+				m_log.setDurableListener(m_feed::markDurable);
 			}
-			return null;
+			long millis = (System.nanoTime() - start) / 1000000;
+			Trace.info(() -> "RM::" + m_name + " recovered " + m_store.size() + " items (" + checkpointed + " from checkpoint, "
+				+ m_log.getReplayedCount() + " log entries replayed) in " + millis + " ms");
+		}
+		catch (IOException e) {
+			throw new UncheckedIOException("Cannot recover " + m_name + " from " + dir, e);
+		}
+
+		long interval = Long.getLong("rm.checkpoint.interval.s", 300);
+		if (interval > 0)
+		{
+			m_checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread thread = new Thread(r, "RM-checkpoint " + m_name);
+				thread.setDaemon(true);
+				return thread;
+			});
+			m_checkpointer.scheduleWithFixedDelay(() -> {
+				try {
+					checkpoint();
+				}
+				catch (IOException | RuntimeException e) {
+					System.err.println("RM::" + m_name + " checkpoint failed: " + e.getMessage());
+				}
+			}, interval, interval, TimeUnit.SECONDS);
+		}
+	}
+
+	// Saves all items so the log before this point can be dropped. Updates carry on while
+	// it runs; does nothing if nothing has been logged since the last checkpoint.
+	public synchronized void checkpoint() throws IOException
+	{
+		if (m_log == null || m_log.getSegmentSize() == 0)
+		{
+			return;
 		}
+		long start = System.nanoTime();
+		long segment = m_log.rotate();
+		RMCheckpoint.write(m_checkpointFile, segment, m_store);
+		m_log.deleteSegmentsBefore(segment);
+		long millis = (System.nanoTime() - start) / 1000000;
+		Trace.info(() -> "RM::" + m_name + " checkpointed " + m_store.size() + " items in " + millis + " ms");
+	}
+
+	// Checkpoints, then flushes and closes the log; the RM must not be used afterwards
+	public void close()
+	{
+		if (m_log == null)
+		{
+			return;
+		}
+		if (m_checkpointer != null)
+		{
+			m_checkpointer.shutdownNow();
+		}
+		try {
+			checkpoint();
+		}
+		catch (IOException e) {
+			System.err.println("RM::" + m_name + " checkpoint on close failed: " + e.getMessage());
+		}
+		m_log.close();
+	}
+
+	// Returns the stored item itself rather than a copy. The caller must hold the key's lock:
+	// shared to look at it, exclusive to change it in place (followed by writeData).
+	protected RMItem peekData(String key)
+	{
+		return m_store.get(key);
 	}
 
 	// Writes a data item
 	protected void writeData(String key, RMItem value)
 	{
-		synchronized(m_data) {
-			m_data.put(key, value);
+		m_store.put(key, value);
+		if (m_log != null)
+		{
+			m_batch.get().put(value);
+		}
+		if (m_feed != null && value instanceof ReservableItem)
+		{
+			m_changes.get().add(value);
 		}
 	}
 
 	// Remove the item out of storage
 	protected void removeData(String key)
 	{
-		synchronized(m_data) {
-			m_data.remove(key);
+		if (m_feed != null && m_store.get(key) instanceof ReservableItem)
+		{
+			m_changes.get().add(key);
+		}
+		m_store.remove(key);
+		if (m_log != null)
+		{
+			m_batch.get().remove(key);
 		}
 	}
 
-	// Deletes the encar item
-	protected boolean deleteItem(String key)
+	// writeData for flights and customers, without going through their key strings.
+	// The caller holds the stripe lock from m_store.flightStripe / m_store.customerStripe.
+	protected void writeFlight(Flight flight)
 	{
-		Trace.info("RM::deleteItem(" + key + ") called");
-		ReservableItem curObj = (ReservableItem)readData(key);
-		// Check if there is such an item in the storage
-		if (curObj == null)
+		m_store.putFlight(flight);
+		if (m_log != null)
 		{
-			Trace.warn("RM::deleteItem(" + key + ") failed--item doesn't exist");
-			return false;
+			m_batch.get().put(flight);
 		}
-		else
+		if (m_feed != null)
+		{
+			m_changes.get().add(flight);
+		}
+	}
+
+	protected void writeCustomer(Customer customer)
+	{
+		m_store.putCustomer(customer);
+		if (m_log != null)
+		{
+			m_batch.get().put(customer);
+		}
+	}
+
+	// Records a change to one of a stored customer's reservations, made in place
+	protected void writeReservation(Customer customer, String key)
+	{
+		if (m_log != null)
+		{
+			m_batch.get().reservation(customer, customer.getReservedItem(key));
+		}
+	}
+
+	// Records a stored item changed in place by a reservation; see lockReservation
+	protected void logReserved(RMItem item)
+	{
+		if (m_log != null)
+		{
+			m_batch.get().put(item);
+		}
+		if (m_feed != null)
 		{
-			if (curObj.getReserved() == 0)
+			m_changes.get().add(item);
+		}
+	}
+
+	// Ends an update: logs and publishes what it changed, releases its locks, then waits
+	// for the log to reach disk. Use in place of locks.release() wherever data was written.
+	protected void commit(StripedLocks.Held locks)
+	{
+		long position = 0;
+		try {
+			if (m_log != null)
 			{
-				removeData(curObj.getKey());
-				Trace.info("RM::deleteItem(" + key + ") item deleted");
-				return true;
+				position = m_log.append(m_batch.get());
 			}
-			else
+			// Subscribers see the changes once the log entry is on disk
+			List<Object> changes = m_changes.get();
+			if (!changes.isEmpty())
 			{
-				Trace.info("RM::deleteItem(" + key + ") item can't be deleted because some customers have reserved it");
+				try {
+					m_feed.publish(changes, position);
+				}
+				finally {
+					changes.clear();
+				}
+			}
+		}
+		finally {
+			locks.release();
+		}
+		if (position > 0)
+		{
+			m_log.awaitDurable(position);
+		}
+	}
+
+	// Deletes the encar item
+	protected boolean deleteItem(String key)
+	{
+		Trace.info(() -> "RM::deleteItem(" + key + ") called");
+		StripedLocks.Held locks = m_locks.lockExclusive(key);
+		try {
+			ReservableItem curObj = (ReservableItem)peekData(key);
+			// Check if there is such an item in the storage
+			if (curObj == null)
+			{
+				Trace.warn(() -> "RM::deleteItem(" + key + ") failed--item doesn't exist");
 				return false;
 			}
+			else
+			{
+				if (curObj.getReserved() == 0 && curObj.getHeld() == 0)
+				{
+					removeData(curObj.getKey());
+					Trace.info(() -> "RM::deleteItem(" + key + ") item deleted");
+					return true;
+				}
+				else
+				{
+					Trace.info(() -> "RM::deleteItem(" + key + ") item can't be deleted because some customers have reserved it or are reserving it");
+					return false;
+				}
+			}
+		}
+		finally {
+			commit(locks);
 		}
 	}
 
 	// Query the number of available seats/rooms/cars
 	protected int queryNum(String key)
 	{
-		Trace.info("RM::queryNum(" + key + ") called");
-		ReservableItem curObj = (ReservableItem)readData(key);
+		Trace.info(() -> "RM::queryNum(" + key + ") called");
 		int value = 0;  
-		if (curObj != null)
-		{
-			value = curObj.getCount();
+		StripedLocks.Held locks = m_locks.lockShared(key);
+		try {
+			ReservableItem curObj = (ReservableItem)peekData(key);
+			if (curObj != null)
+			{
+				value = curObj.getCount();
+			}
+		}
+		finally {
+			locks.release();
 		}
-		Trace.info("RM::queryNum(" + key + ") returns count=" + value);
-		return value;
+		final int result = value;
+		Trace.info(() -> "RM::queryNum(" + key + ") returns count=" + result);
+		return result;
 	}    
 
 	// Query the price of an item
 	protected int queryPrice(String key)
 	{
-		Trace.info("RM::queryPrice(" + key + ") called");
-		ReservableItem curObj = (ReservableItem)readData(key);
+		Trace.info(() -> "RM::queryPrice(" + key + ") called");
 		int value = 0; 
-		if (curObj != null)
-		{
-			value = curObj.getPrice();
+		StripedLocks.Held locks = m_locks.lockShared(key);
+		try {
+			ReservableItem curObj = (ReservableItem)peekData(key);
+			if (curObj != null)
+			{
+				value = curObj.getPrice();
+			}
 		}
-		Trace.info("RM::queryPrice(" + key + ") returns cost=$" + value);
-		return value;        
+		finally {
+			locks.release();
+		}
+		final int result = value;
+		Trace.info(() -> "RM::queryPrice(" + key + ") returns cost=$" + result);
+		return result;        
 	}
 
 	// Reserve an item
 	protected boolean reserveItem(int customerID, String key, String location)
 	{
-		Trace.info("RM::reserveItem(customer=" + customerID + ", " + key + ", " + location + ") called" );        
-		// Read customer object if it exists (and read lock it)
-		Customer customer = (Customer)readData(Customer.getKey(customerID));
+		Trace.info(() -> "RM::reserveItem(customer=" + customerID + ", " + key + ", " + location + ") called" );        
+		// The customer is changed in place so its stripe is locked exclusively; the item only
+		// needs to be kept from being deleted, since its count changes atomically
+		StripedLocks.Held locks = lockReservation(m_store.customerStripe(customerID), m_locks.stripeOf(key));
+		try {
+			return reserveLocked(customerID, key, location, (ReservableItem)peekData(key));
+		}
+		finally {
+			commit(locks);
+		}
+	}
+
+	// Locks a customer's stripe exclusively and an item's for a reservation. Without a log the
+	// item's is only shared, so reservations of the same item by different customers run at
+	// the same time. With one it is exclusive too: the item's logged state must not include
+	// seats that concurrent reservations have taken but not yet logged with their customers,
+	// or a crash between their appends would leave seats reserved by nobody.
+	private StripedLocks.Held lockReservation(int customerStripe, int itemStripe)
+	{
+		if (m_log != null)
+		{
+			return m_locks.lockStripes(new int[] { customerStripe, itemStripe }, true);
+		}
+		return m_locks.lockMixed(customerStripe, itemStripe);
+	}
+
+	// The body of reserveItem, once the customer's stripe is locked exclusively and the item's
+	// at least shared (see lockReservation). The seat is taken with one compare-and-set on the
+	// item's count, which fails rather than going below zero, so the item can never be oversold
+	// by reservations running at the same time.
+	private boolean reserveLocked(int customerID, String key, String location, ReservableItem item)
+	{
+		Customer customer = m_store.getCustomer(customerID);
 		if (customer == null)
 		{
-			Trace.warn("RM::reserveItem(" + customerID + ", " + key + ", " + location + ")  failed--customer doesn't exist");
+			Trace.warn(() -> "RM::reserveItem(" + customerID + ", " + key + ", " + location + ")  failed--customer doesn't exist");
 			return false;
 		} 
 
 		// Check if the item is available
-		ReservableItem item = (ReservableItem)readData(key);
 		if (item == null)
 		{
-			Trace.warn("RM::reserveItem(" + customerID + ", " + key + ", " + location + ") failed--item doesn't exist");
+			Trace.warn(() -> "RM::reserveItem(" + customerID + ", " + key + ", " + location + ") failed--item doesn't exist");
 			return false;
 		}
-		else if (item.getCount() == 0)
+		else if (!item.tryReserveOne())
 		{
-			Trace.warn("RM::reserveItem(" + customerID + ", " + key + ", " + location + ") failed--No more items");
+			Trace.warn(() -> "RM::reserveItem(" + customerID + ", " + key + ", " + location + ") failed--No more items");
 			return false;
 		}
 		else
 		{            
 			customer.reserve(key, location, item.getPrice());        
-			writeData(customer.getKey(), customer);
+			writeReservation(customer, key);
 
-			// Decrease the number of available items in the storage
-			item.setCount(item.getCount() - 1);
-			item.setReserved(item.getReserved() + 1);
-			writeData(item.getKey(), item);
+			// The item is stored and was changed in place
+			logReserved(item);
 
-			Trace.info("RM::reserveItem(" + customerID + ", " + key + ", " + location + ") succeeded");
+			Trace.info(() -> "RM::reserveItem(" + customerID + ", " + key + ", " + location + ") succeeded");
 			return true;
 		}        
 	}
@@ -147,79 +389,103 @@ public class ResourceManager implements IResourceManager
 	// NOTE: if flightPrice <= 0 and the flight already exists, it maintains its current price
 	public boolean addFlight(int flightNum, int flightSeats, int flightPrice) throws RemoteException
 	{
-		Trace.info("RM::addFlight(" + flightNum + ", " + flightSeats + ", $" + flightPrice + ") called");
-		Flight curObj = (Flight)readData(Flight.getKey(flightNum));
+		Trace.info(() -> "RM::addFlight(" + flightNum + ", " + flightSeats + ", $" + flightPrice + ") called");
+		StripedLocks.Held locks = m_locks.lockStripe(m_store.flightStripe(flightNum), true);
+		try {
+			addFlightLocked(flightNum, flightSeats, flightPrice);
+			return true;
+		}
+		finally {
+			commit(locks);
+		}
+	}
+
+	// The body of addFlight, once the flight's stripe is locked exclusively
+	private void addFlightLocked(int flightNum, int flightSeats, int flightPrice)
+	{
+		Flight curObj = m_store.getFlight(flightNum);
 		if (curObj == null)
 		{
 			// Doesn't exist yet, add it
 			Flight newObj = new Flight(flightNum, flightSeats, flightPrice);
-			writeData(newObj.getKey(), newObj);
-			Trace.info("RM::addFlight() created new flight " + flightNum + ", seats=" + flightSeats + ", price=$" + flightPrice);
+			writeFlight(newObj);
+			Trace.info(() -> "RM::addFlight() created new flight " + flightNum + ", seats=" + flightSeats + ", price=$" + flightPrice);
 		}
 		else
 		{
 			// Add seats to existing flight and update the price if greater than zero
-			curObj.setCount(curObj.getCount() + flightSeats);
-			if (flightPrice > 0)
-			{
-				curObj.setPrice(flightPrice);
-			}
-			writeData(curObj.getKey(), curObj);
-			Trace.info("RM::addFlight() modified existing flight " + flightNum + ", seats=" + curObj.getCount() + ", price=$" + flightPrice);
+			curObj.addInventory(flightSeats, flightPrice);
+			writeFlight(curObj);
+			Trace.info(() -> "RM::addFlight() modified existing flight " + flightNum + ", seats=" + curObj.getCount() + ", price=$" + flightPrice);
 		}
-		return true;
 	}
 
 	// Create a new car location or add cars to an existing location
 	// NOTE: if price <= 0 and the location already exists, it maintains its current price
 	public boolean addCars(String location, int count, int price) throws RemoteException
 	{
-		Trace.info("RM::addCars(" + location + ", " + count + ", $" + price + ") called");
-		Car curObj = (Car)readData(Car.getKey(location));
+		Trace.info(() -> "RM::addCars(" + location + ", " + count + ", $" + price + ") called");
+		StripedLocks.Held locks = m_locks.lockExclusive(Car.getKey(location));
+		try {
+			addCarsLocked(location, count, price);
+			return true;
+		}
+		finally {
+			commit(locks);
+		}
+	}
+
+	// The body of addCars, once the location's stripe is locked exclusively
+	private void addCarsLocked(String location, int count, int price)
+	{
+		Car curObj = (Car)peekData(Car.getKey(location));
 		if (curObj == null)
 		{
 			// Car location doesn't exist yet, add it
 			Car newObj = new Car(location, count, price);
 			writeData(newObj.getKey(), newObj);
-			Trace.info("RM::addCars() created new location " + location + ", count=" + count + ", price=$" + price);
+			Trace.info(() -> "RM::addCars() created new location " + location + ", count=" + count + ", price=$" + price);
 		}
 		else
 		{
 			// Add count to existing car location and update price if greater than zero
-			curObj.setCount(curObj.getCount() + count);
-			if (price > 0)
-			{
-				curObj.setPrice(price);
-			}
+			curObj.addInventory(count, price);
 			writeData(curObj.getKey(), curObj);
-			Trace.info("RM::addCars() modified existing location " + location + ", count=" + curObj.getCount() + ", price=$" + price);
+			Trace.info(() -> "RM::addCars() modified existing location " + location + ", count=" + curObj.getCount() + ", price=$" + price);
 		}
-		return true;
 	}
 
 	// Create a new room location or add rooms to an existing location
 	// NOTE: if price <= 0 and the room location already exists, it maintains its current price
 	public boolean addRooms(String location, int count, int price) throws RemoteException
 	{
-		Trace.info("RM::addRooms(" + location + ", " + count + ", $" + price + ") called");
-		Room curObj = (Room)readData(Room.getKey(location));
+		Trace.info(() -> "RM::addRooms(" + location + ", " + count + ", $" + price + ") called");
+		StripedLocks.Held locks = m_locks.lockExclusive(Room.getKey(location));
+		try {
+			addRoomsLocked(location, count, price);
+			return true;
+		}
+		finally {
+			commit(locks);
+		}
+	}
+
+	// The body of addRooms, once the location's stripe is locked exclusively
+	private void addRoomsLocked(String location, int count, int price)
+	{
+		Room curObj = (Room)peekData(Room.getKey(location));
 		if (curObj == null)
 		{
 			// Room location doesn't exist yet, add it
 			Room newObj = new Room(location, count, price);
 			writeData(newObj.getKey(), newObj);
-			Trace.info("RM::addRooms() created new room location " + location + ", count=" + count + ", price=$" + price);
+			Trace.info(() -> "RM::addRooms() created new room location " + location + ", count=" + count + ", price=$" + price);
 		} else {
 			// Add count to existing object and update price if greater than zero
-			curObj.setCount(curObj.getCount() + count);
-			if (price > 0)
-			{
-				curObj.setPrice(price);
-			}
+			curObj.addInventory(count, price);
 			writeData(curObj.getKey(), curObj);
-			Trace.info("RM::addRooms() modified existing location " + location + ", count=" + curObj.getCount() + ", price=$" + price);
+			Trace.info(() -> "RM::addRooms() modified existing location " + location + ", count=" + curObj.getCount() + ", price=$" + price);
 		}
-		return true;
 	}
 
 	// Deletes flight
@@ -243,7 +509,22 @@ public class ResourceManager implements IResourceManager
 	// Returns the number of empty seats in this flight
 	public int queryFlight(int flightNum) throws RemoteException
 	{
-		return queryNum(Flight.getKey(flightNum));
+		Trace.info(() -> "RM::queryFlight(" + flightNum + ") called");
+		int value = 0;
+		StripedLocks.Held locks = m_locks.lockStripe(m_store.flightStripe(flightNum), false);
+		try {
+			Flight curObj = m_store.getFlight(flightNum);
+			if (curObj != null)
+			{
+				value = curObj.getCount();
+			}
+		}
+		finally {
+			locks.release();
+		}
+		final int result = value;
+		Trace.info(() -> "RM::queryFlight(" + flightNum + ") returns count=" + result);
+		return result;
 	}
 
 	// Returns the number of cars available at a location
@@ -261,7 +542,22 @@ public class ResourceManager implements IResourceManager
 	// Returns price of a seat in this flight
 	public int queryFlightPrice(int flightNum) throws RemoteException
 	{
-		return queryPrice(Flight.getKey(flightNum));
+		Trace.info(() -> "RM::queryFlightPrice(" + flightNum + ") called");
+		int value = 0;
+		StripedLocks.Held locks = m_locks.lockStripe(m_store.flightStripe(flightNum), false);
+		try {
+			Flight curObj = m_store.getFlight(flightNum);
+			if (curObj != null)
+			{
+				value = curObj.getPrice();
+			}
+		}
+		finally {
+			locks.release();
+		}
+		final int result = value;
+		Trace.info(() -> "RM::queryFlightPrice(" + flightNum + ") returns cost=$" + result);
+		return result;
 	}
 
 	// Returns price of cars at this location
@@ -278,18 +574,24 @@ public class ResourceManager implements IResourceManager
 
 	public String queryCustomerInfo(int customerID) throws RemoteException
 	{
-		Trace.info("RM::queryCustomerInfo(" + customerID + ") called");
-		Customer customer = (Customer)readData(Customer.getKey(customerID));
-		if (customer == null)
-		{
-			Trace.warn("RM: queryCustomerInfo(" + customerID + ") failed, customer doesn't exist");
-			// NOTE: don't change this--WC counts on this value indicating a customer does not exist...
-			return "";
+		Trace.info(() -> "RM::queryCustomerInfo(" + customerID + ") called");
+		StripedLocks.Held locks = m_locks.lockStripe(m_store.customerStripe(customerID), false);
+		try {
+			Customer customer = m_store.getCustomer(customerID);
+			if (customer == null)
+			{
+				Trace.warn(() -> "RM: queryCustomerInfo(" + customerID + ") failed, customer doesn't exist");
+				// NOTE: don't change this--WC counts on this value indicating a customer does not exist...
+				return "";
+			}
+			else
+			{
+				Trace.info(() -> "RM::queryCustomerInfo(" + customerID + ")");
+				return customer.getBill();
+			}
 		}
-		else
-		{
-			Trace.info("RM::queryCustomerInfo(" + customerID + ")");
-			return customer.getBill();
+		finally {
+			locks.release();
 		}
 	}
 
@@ -300,64 +602,123 @@ public class ResourceManager implements IResourceManager
 		int cid = Integer.parseInt(String.valueOf(Calendar.getInstance().get(Calendar.MILLISECOND)) +
 			String.valueOf(Math.round(Math.random() * 100 + 1)));
 		Customer customer = new Customer(cid);
-		writeData(customer.getKey(), customer);
-		Trace.info("RM::newCustomer(" + cid + ") returns ID=" + cid);
+		StripedLocks.Held locks = m_locks.lockStripe(m_store.customerStripe(cid), true);
+		try {
+			writeCustomer(customer);
+		}
+		finally {
+			commit(locks);
+		}
+		Trace.info(() -> "RM::newCustomer(" + cid + ") returns ID=" + cid);
 		return cid;
 	}
 
 	public boolean newCustomer(int customerID) throws RemoteException
 	{
-		Trace.info("RM::newCustomer(" + customerID + ") called");
-		Customer customer = (Customer)readData(Customer.getKey(customerID));
-		if (customer == null)
-		{
-			customer = new Customer(customerID);
-			writeData(customer.getKey(), customer);
-			Trace.info("RM::newCustomer(" + customerID + ") created a new customer");
-			return true;
+		Trace.info(() -> "RM::newCustomer(" + customerID + ") called");
+		StripedLocks.Held locks = m_locks.lockStripe(m_store.customerStripe(customerID), true);
+		try {
+			Customer customer = m_store.getCustomer(customerID);
+			if (customer == null)
+			{
+				customer = new Customer(customerID);
+				writeCustomer(customer);
+				Trace.info(() -> "RM::newCustomer(" + customerID + ") created a new customer");
+				return true;
+			}
+			else
+			{
+				Trace.info(() -> "INFO: RM::newCustomer(" + customerID + ") failed--customer already exists");
+				return false;
+			}
 		}
-		else
-		{
-			Trace.info("INFO: RM::newCustomer(" + customerID + ") failed--customer already exists");
-			return false;
+		finally {
+			commit(locks);
 		}
 	}
 
 	public boolean deleteCustomer(int customerID) throws RemoteException
 	{
-		Trace.info("RM::deleteCustomer(" + customerID + ") called");
-		Customer customer = (Customer)readData(Customer.getKey(customerID));
-		if (customer == null)
+		Trace.info(() -> "RM::deleteCustomer(" + customerID + ") called");
+		while (true)
 		{
-			Trace.warn("RM::deleteCustomer(" + customerID + ") failed--customer doesn't exist");
-			return false;
-		}
-		else
-		{            
-			// Increase the reserved numbers of all reservable items which the customer reserved. 
- 			RMHashMap reservations = customer.getReservations();
-			for (String reservedKey : reservations.keySet())
-			{        
-				ReservedItem reserveditem = customer.getReservedItem(reservedKey);
-				Trace.info("RM::deleteCustomer(" + customerID + ") has reserved " + reserveditem.getKey() + " " +  reserveditem.getCount() +  " times");
-				ReservableItem item  = (ReservableItem)readData(reserveditem.getKey());
-				Trace.info("RM::deleteCustomer(" + customerID + ") has reserved " + reserveditem.getKey() + " which is reserved " +  item.getReserved() +  " times and is still available " + item.getCount() + " times");
-				item.setReserved(item.getReserved() - reserveditem.getCount());
-				item.setCount(item.getCount() + reserveditem.getCount());
-				writeData(item.getKey(), item);
-			}
-
-			// Remove the customer from the storage
-			removeData(customer.getKey());
-			Trace.info("RM::deleteCustomer(" + customerID + ") succeeded");
-			return true;
+			// Find out which items the customer holds, then lock the customer together with all of them.
+			// If the reservations changed before the locks were taken, go around again.
+			int customerStripe = m_store.customerStripe(customerID);
+			Set<String> lockedKeys;
+			StripedLocks.Held peek = m_locks.lockStripe(customerStripe, false);
+			try {
+				Customer snapshot = m_store.getCustomer(customerID);
+				if (snapshot == null)
+				{
+					Trace.warn(() -> "RM::deleteCustomer(" + customerID + ") failed--customer doesn't exist");
+					return false;
+				}
+				lockedKeys = new HashSet<String>(snapshot.getReservations().keySet());
+			}
+			finally {
+				peek.release();
+			}
+			int[] stripes = new int[lockedKeys.size() + 1];
+			int n = 0;
+			for (String reservedKey : lockedKeys)
+			{
+				stripes[n++] = m_locks.stripeOf(reservedKey);
+			}
+			stripes[n] = customerStripe;
+
+			StripedLocks.Held locks = m_locks.lockStripes(stripes, true);
+			try {
+				Customer customer = m_store.getCustomer(customerID);
+				if (customer == null)
+				{
+					Trace.warn(() -> "RM::deleteCustomer(" + customerID + ") failed--customer doesn't exist");
+					return false;
+				}
+				if (!lockedKeys.containsAll(customer.getReservations().keySet()))
+				{
+					continue;
+				}
+
+				// Increase the reserved numbers of all reservable items which the customer reserved. 
+	 			RMHashMap reservations = customer.getReservations();
+				for (String reservedKey : reservations.keySet())
+				{        
+					ReservedItem reserveditem = customer.getReservedItem(reservedKey);
+					Trace.info(() -> "RM::deleteCustomer(" + customerID + ") has reserved " + reserveditem.getKey() + " " +  reserveditem.getCount() +  " times");
+					ReservableItem item  = (ReservableItem)peekData(reserveditem.getKey());
+					Trace.info(() -> "RM::deleteCustomer(" + customerID + ") has reserved " + reserveditem.getKey() + " which is reserved " +  item.getReserved() +  " times and is still available " + item.getCount() + " times");
+					item.release(reserveditem.getCount());
+					writeData(item.getKey(), item);
+				}
+
+				// Remove the customer from the storage
+				removeData(customer.getKey());
+				Trace.info(() -> "RM::deleteCustomer(" + customerID + ") succeeded");
+				return true;
+			}
+			finally {
+				commit(locks);
+			}
 		}
 	}
 
 	// Adds flight reservation to this customer
 	public boolean reserveFlight(int customerID, int flightNum) throws RemoteException
 	{
-		return reserveItem(customerID, Flight.getKey(flightNum), String.valueOf(flightNum));
+		Trace.info(() -> "RM::reserveFlight(customer=" + customerID + ", " + flightNum + ") called");
+		StripedLocks.Held locks = lockReservation(m_store.customerStripe(customerID), m_store.flightStripe(flightNum));
+		try {
+			Flight flight = m_store.getFlight(flightNum);
+			if (flight == null)
+			{
+				return reserveLocked(customerID, Flight.getKey(flightNum), String.valueOf(flightNum), null);
+			}
+			return reserveLocked(customerID, flight.getKey(), flight.getLocation(), flight);
+		}
+		finally {
+			commit(locks);
+		}
 	}
 
 	// Adds car reservation to this customer
@@ -372,10 +733,679 @@ public class ResourceManager implements IResourceManager
 		return reserveItem(customerID, Room.getKey(location), location);
 	}
 
-	// Reserve bundle 
+	// Create or top up many flights as one update: every flight's stripe is locked once, up front
+	public boolean addFlights(int[] flightNums, int[] flightSeats, int[] flightPrices) throws RemoteException
+	{
+		checkBatch(flightNums.length, flightSeats.length, flightPrices.length);
+		Trace.info(() -> "RM::addFlights(" + flightNums.length + " flights) called");
+		int[] stripes = new int[flightNums.length];
+		for (int i = 0; i < flightNums.length; i++)
+		{
+			stripes[i] = m_store.flightStripe(flightNums[i]);
+		}
+		StripedLocks.Held locks = m_locks.lockStripes(stripes, true);
+		try {
+			for (int i = 0; i < flightNums.length; i++)
+			{
+				addFlightLocked(flightNums[i], flightSeats[i], flightPrices[i]);
+			}
+			return true;
+		}
+		finally {
+			commit(locks);
+		}
+	}
+
+	// Create or top up many car locations as one update
+	public boolean addCars(String[] locations, int[] counts, int[] prices) throws RemoteException
+	{
+		checkBatch(locations.length, counts.length, prices.length);
+		Trace.info(() -> "RM::addCars(" + locations.length + " locations) called");
+		StripedLocks.Held locks = m_locks.lockExclusive(keysOf(locations, Car::getKey));
+		try {
+			for (int i = 0; i < locations.length; i++)
+			{
+				addCarsLocked(locations[i], counts[i], prices[i]);
+			}
+			return true;
+		}
+		finally {
+			commit(locks);
+		}
+	}
+
+	// Create or top up many room locations as one update
+	public boolean addRooms(String[] locations, int[] counts, int[] prices) throws RemoteException
+	{
+		checkBatch(locations.length, counts.length, prices.length);
+		Trace.info(() -> "RM::addRooms(" + locations.length + " locations) called");
+		StripedLocks.Held locks = m_locks.lockExclusive(keysOf(locations, Room::getKey));
+		try {
+			for (int i = 0; i < locations.length; i++)
+			{
+				addRoomsLocked(locations[i], counts[i], prices[i]);
+			}
+			return true;
+		}
+		finally {
+			commit(locks);
+		}
+	}
+
+	// Returns { seats, price } for each flight in turn, or zeros for a flight that doesn't exist
+	public int[] queryFlights(int[] flightNums) throws RemoteException
+	{
+		Trace.info(() -> "RM::queryFlights(" + flightNums.length + " flights) called");
+		int[] stripes = new int[flightNums.length];
+		for (int i = 0; i < flightNums.length; i++)
+		{
+			stripes[i] = m_store.flightStripe(flightNums[i]);
+		}
+		int[] result = new int[flightNums.length * 2];
+		StripedLocks.Held locks = m_locks.lockStripes(stripes, false);
+		try {
+			for (int i = 0; i < flightNums.length; i++)
+			{
+				Flight curObj = m_store.getFlight(flightNums[i]);
+				if (curObj != null)
+				{
+					result[2 * i] = curObj.getCount();
+					result[2 * i + 1] = curObj.getPrice();
+				}
+			}
+		}
+		finally {
+			locks.release();
+		}
+		return result;
+	}
+
+	// Returns { count, price } for each car location in turn
+	public int[] queryCars(String[] locations) throws RemoteException
+	{
+		return queryItems(keysOf(locations, Car::getKey));
+	}
+
+	// Returns { count, price } for each room location in turn
+	public int[] queryRooms(String[] locations) throws RemoteException
+	{
+		return queryItems(keysOf(locations, Room::getKey));
+	}
+
+	// Reserves a seat on each flight for the customer (several on a flight listed several times),
+	// or nothing at all if any of them is missing or short of seats
+	public boolean reserveFlights(int customerID, int[] flightNums) throws RemoteException
+	{
+		String[] keys = new String[flightNums.length];
+		String[] locations = new String[flightNums.length];
+		for (int i = 0; i < flightNums.length; i++)
+		{
+			keys[i] = Flight.getKey(flightNums[i]);
+			locations[i] = String.valueOf(flightNums[i]);
+		}
+		return reserveItems(customerID, keys, locations);
+	}
+
+	// Reserves a car at each location, or none at all
+	public boolean reserveCars(int customerID, String[] locations) throws RemoteException
+	{
+		return reserveItems(customerID, keysOf(locations, Car::getKey), locations);
+	}
+
+	// Reserves a room at each location, or none at all
+	public boolean reserveRooms(int customerID, String[] locations) throws RemoteException
+	{
+		return reserveItems(customerID, keysOf(locations, Room::getKey), locations);
+	}
+
+	// Returns the flights, cars or rooms (kind "flight", "car" or "room") in one part of the
+	// store as "kind,location,count,price" lines, the format InventoryTool loads. The store is
+	// split into parts by lock stripe, so asking for each part in turn walks everything
+	// once while only ever holding one part's lines.
+	public String[] exportInventory(String kind, int part, int parts) throws RemoteException
+	{
+		if (parts <= 0 || part < 0 || part >= parts)
+		{
+			throw new IllegalArgumentException("Export part " + part + " of " + parts + " is out of range");
+		}
+		Trace.info(() -> "RM::exportInventory(" + kind + ", " + part + "/" + parts + ") called");
+		int stripes = m_locks.getStripeCount();
+		List<String> lines = new ArrayList<String>();
+		m_store.visitStripes((int)((long)part * stripes / parts), (int)((long)(part + 1) * stripes / parts), item -> {
+			if (item instanceof ReservableItem && kind.equals(kindOf(item)))
+			{
+				ReservableItem reservable = (ReservableItem)item;
+				lines.add(kind + "," + reservable.getLocation() + "," + reservable.getCount() + "," + reservable.getPrice());
+			}
+		});
+		return lines.toArray(new String[lines.size()]);
+	}
+
+	private static String kindOf(RMItem item)
+	{
+		if (item instanceof Flight)
+		{
+			return "flight";
+		}
+		if (item instanceof Car)
+		{
+			return "car";
+		}
+		return item instanceof Room ? "room" : null;
+	}
+
+	// Query count and price of many items under one shared acquisition of their stripes
+	protected int[] queryItems(String[] keys)
+	{
+		Trace.info(() -> "RM::queryItems(" + keys.length + " items) called");
+		int[] result = new int[keys.length * 2];
+		StripedLocks.Held locks = m_locks.lockShared(keys);
+		try {
+			for (int i = 0; i < keys.length; i++)
+			{
+				ReservableItem curObj = (ReservableItem)peekData(keys[i]);
+				if (curObj != null)
+				{
+					result[2 * i] = curObj.getCount();
+					result[2 * i + 1] = curObj.getPrice();
+				}
+			}
+		}
+		finally {
+			locks.release();
+		}
+		return result;
+	}
+
+	// Reserve many items for one customer, all or nothing. The items' stripes are locked
+	// exclusively along with the customer's, which keeps single reservations (see
+	// reserveLocked) out until every item has been checked and taken.
+	protected boolean reserveItems(int customerID, String[] keys, String[] locations)
+	{
+		Trace.info(() -> "RM::reserveItems(customer=" + customerID + ", " + keys.length + " items) called");
+		StripedLocks.Held locks = lockCustomerAndItems(customerID, keys);
+		try {
+			Customer customer = m_store.getCustomer(customerID);
+			if (customer == null)
+			{
+				Trace.warn(() -> "RM::reserveItems(" + customerID + ") failed--customer doesn't exist");
+				return false;
+			}
+
+			Map<String, Integer> needed = countKeys(keys);
+			for (Map.Entry<String, Integer> entry : needed.entrySet())
+			{
+				ReservableItem item = (ReservableItem)peekData(entry.getKey());
+				if (item == null || item.getCount() < entry.getValue())
+				{
+					Trace.warn(() -> "RM::reserveItems(" + customerID + ") failed--" + entry.getKey() + " is missing or has fewer than " + entry.getValue() + " left");
+					return false;
+				}
+			}
+
+			for (int i = 0; i < keys.length; i++)
+			{
+				ReservableItem item = (ReservableItem)peekData(keys[i]);
+				item.reserveOne();
+				customer.reserve(keys[i], locations[i], item.getPrice());
+			}
+			for (String key : needed.keySet())
+			{
+				writeReservation(customer, key);
+				writeData(key, peekData(key));
+			}
+			Trace.info(() -> "RM::reserveItems(" + customerID + ", " + keys.length + " items) succeeded");
+			return true;
+		}
+		finally {
+			commit(locks);
+		}
+	}
+
+	// Locks the customer's stripe and the items' stripes, all exclusively
+	private StripedLocks.Held lockCustomerAndItems(int customerID, String[] keys)
+	{
+		int[] stripes = new int[keys.length + 1];
+		stripes[0] = m_store.customerStripe(customerID);
+		for (int i = 0; i < keys.length; i++)
+		{
+			stripes[i + 1] = m_locks.stripeOf(keys[i]);
+		}
+		return m_locks.lockStripes(stripes, true);
+	}
+
+	// How many times each key appears
+	private static Map<String, Integer> countKeys(String[] keys)
+	{
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		for (String key : keys)
+		{
+			counts.merge(key, 1, Integer::sum);
+		}
+		return counts;
+	}
+
+	private static String[] keysOf(String[] locations, Function<String, String> keyOf)
+	{
+		String[] keys = new String[locations.length];
+		for (int i = 0; i < locations.length; i++)
+		{
+			keys[i] = keyOf.apply(locations[i]);
+		}
+		return keys;
+	}
+
+	private static void checkBatch(int... lengths)
+	{
+		for (int length : lengths)
+		{
+			if (length != lengths[0])
+			{
+				throw new IllegalArgumentException("Batch arguments have different lengths");
+			}
+		}
+	}
+
+	// Reserve bundle: a seat on each flight and a car and/or room at location, all or nothing.
+	// This is for an RM that has all of them; the middleware spreads a bundle over the flight,
+	// car and room RMs with prepareReserve and commitReserve instead.
 	public boolean bundle(int customerId, Vector<String> flightNumbers, String location, boolean car, boolean room) throws RemoteException
 	{
-		return false;
+		List<String> keys = new ArrayList<String>();
+		List<String> locations = new ArrayList<String>();
+		for (String flightNum : flightNumbers)
+		{
+			keys.add(Flight.getKey(Integer.parseInt(flightNum)));
+			locations.add(flightNum);
+		}
+		if (car)
+		{
+			keys.add(Car.getKey(location));
+			locations.add(location);
+		}
+		if (room)
+		{
+			keys.add(Room.getKey(location));
+			locations.add(location);
+		}
+		return reserveItems(customerId, keys.toArray(new String[keys.size()]), locations.toArray(new String[locations.size()]));
+	}
+
+	// Units one transaction has set aside for a customer, one entry per unit as for reserveItems
+	private static class Hold
+	{
+		final int customerID;
+		final String[] keys;
+		final String[] locations;
+		// System.nanoTime after which the reaper aborts it
+		final long expiresAt;
+
+		Hold(int customerID, String[] keys, String[] locations, long expiresAt)
+		{
+			this.customerID = customerID;
+			this.keys = keys;
+			this.locations = locations;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	// How a finished transaction ended; a commit still being applied has no result yet
+	private static class Outcome
+	{
+		final CompletableFuture<Boolean> committed = new CompletableFuture<Boolean>();
+		// What a commit reserved, so that cancelReserve can undo it
+		volatile Hold reserved;
+		final AtomicBoolean cancelled = new AtomicBoolean();
+		// System.nanoTime after which the reaper forgets it
+		final long expiresAt;
+
+		Outcome(long expiresAt)
+		{
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	// Phase one of a reservation spread over several RMs (such as a bundle): checks that the
+	// customer exists and every item has enough left, and if so sets the units aside under txId,
+	// where nobody else can reserve them, until commitReserve or abortReserve. A hold that gets
+	// neither within rm.hold.timeout.ms is aborted. Returns false, holding nothing, if the
+	// reservation can't be made or txId has already been committed or aborted; a repeat of a
+	// prepare that succeeded returns true again. Holds aren't logged; after a restart the units
+	// are available.
+	public boolean prepareReserve(long txId, int customerID, String[] keys, String[] locations)
+	{
+		checkBatch(keys.length, locations.length);
+		Trace.info(() -> "RM::prepareReserve(" + txId + ", customer=" + customerID + ", " + keys.length + " items) called");
+		startHoldReaper();
+		StripedLocks.Held locks = lockCustomerAndItems(customerID, keys);
+		try {
+			if (m_outcomes.containsKey(txId))
+			{
+				Trace.warn(() -> "RM::prepareReserve(" + txId + ") refused--the transaction is already over");
+				return false;
+			}
+			if (m_holds.containsKey(txId))
+			{
+				return true;
+			}
+			if (m_store.getCustomer(customerID) == null)
+			{
+				Trace.warn(() -> "RM::prepareReserve(" + txId + ") failed--customer " + customerID + " doesn't exist");
+				return false;
+			}
+			Map<String, Integer> needed = countKeys(keys);
+			for (Map.Entry<String, Integer> entry : needed.entrySet())
+			{
+				ReservableItem item = (ReservableItem)peekData(entry.getKey());
+				if (item == null || item.getCount() < entry.getValue())
+				{
+					Trace.warn(() -> "RM::prepareReserve(" + txId + ") failed--" + entry.getKey() + " is missing or has fewer than " + entry.getValue() + " left");
+					return false;
+				}
+			}
+			for (Map.Entry<String, Integer> entry : needed.entrySet())
+			{
+				ReservableItem item = (ReservableItem)peekData(entry.getKey());
+				item.hold(entry.getValue());
+				publishHold(item);
+			}
+			Hold hold = new Hold(customerID, keys, locations, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(m_holdTimeoutMillis));
+			if (m_holds.putIfAbsent(txId, hold) != null)
+			{
+				// A repeat of this prepare (for other items, or it would have waited for these locks) got in first
+				release(needed);
+				return true;
+			}
+			// An abort decided while this ran gives the hold back, unless it already took it
+			if (m_outcomes.containsKey(txId))
+			{
+				if (m_holds.remove(txId, hold))
+				{
+					release(needed);
+				}
+				return false;
+			}
+			return true;
+		}
+		finally {
+			commit(locks);
+		}
+	}
+
+	// Phase two: the units held under txId become the customer's reservations. Returns false if
+	// there is no such hold (aborted, expired, or lost in a restart), or if the customer has been
+	// deleted since, in which case the units are released instead. A repeat of a commit gets the
+	// same answer as the first, so a coordinator can send it until it hears back.
+	public boolean commitReserve(long txId)
+	{
+		Trace.info(() -> "RM::commitReserve(" + txId + ") called");
+		startHoldReaper();
+		Outcome outcome = new Outcome(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(m_holdTimeoutMillis));
+		Outcome earlier = m_outcomes.putIfAbsent(txId, outcome);
+		if (earlier != null)
+		{
+			return earlier.committed.join();
+		}
+		Hold hold = m_holds.remove(txId);
+		if (hold == null)
+		{
+			Trace.warn(() -> "RM::commitReserve(" + txId + ") failed--nothing is held for it");
+			outcome.committed.complete(false);
+			return false;
+		}
+		boolean committed = false;
+		StripedLocks.Held locks = lockCustomerAndItems(hold.customerID, hold.keys);
+		try {
+			Map<String, Integer> held = countKeys(hold.keys);
+			Customer customer = m_store.getCustomer(hold.customerID);
+			if (customer == null)
+			{
+				Trace.warn(() -> "RM::commitReserve(" + txId + ") failed--customer " + hold.customerID + " was deleted");
+				release(held);
+				return false;
+			}
+			for (int i = 0; i < hold.keys.length; i++)
+			{
+				ReservableItem item = (ReservableItem)peekData(hold.keys[i]);
+				item.reserveHeld(1);
+				customer.reserve(hold.keys[i], hold.locations[i], item.getPrice());
+			}
+			for (String key : held.keySet())
+			{
+				writeReservation(customer, key);
+				writeData(key, peekData(key));
+			}
+			outcome.reserved = hold;
+			committed = true;
+			return true;
+		}
+		finally {
+			commit(locks);
+			outcome.committed.complete(committed);
+		}
+	}
+
+	// Gives back the units held under txId; returns false if nothing was held for it, or if it
+	// has been committed
+	public boolean abortReserve(long txId)
+	{
+		Trace.info(() -> "RM::abortReserve(" + txId + ") called");
+		startHoldReaper();
+		Outcome outcome = new Outcome(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(m_holdTimeoutMillis));
+		outcome.committed.complete(false);
+		if (m_outcomes.putIfAbsent(txId, outcome) != null)
+		{
+			return false;
+		}
+		Hold hold = m_holds.remove(txId);
+		if (hold == null)
+		{
+			return false;
+		}
+		StripedLocks.Held locks = m_locks.lockExclusive(hold.keys);
+		try {
+			release(countKeys(hold.keys));
+			return true;
+		}
+		finally {
+			commit(locks);
+		}
+	}
+
+	// Undoes the reservations commitReserve made under txId, for a coordinator that committed
+	// this part of a transaction before another RM failed to commit its own. Works for as long as
+	// the outcome is remembered (rm.hold.timeout.ms after the commit, and not across a restart);
+	// returns false if there is no commit of txId to undo then. A repeat returns true again
+	// without undoing anything twice.
+	public boolean cancelReserve(long txId)
+	{
+		Trace.info(() -> "RM::cancelReserve(" + txId + ") called");
+		Outcome outcome = m_outcomes.get(txId);
+		if (outcome == null || !outcome.committed.join())
+		{
+			Trace.warn(() -> "RM::cancelReserve(" + txId + ") failed--no commit of it is known");
+			return false;
+		}
+		if (!outcome.cancelled.compareAndSet(false, true))
+		{
+			return true;
+		}
+		Hold hold = outcome.reserved;
+		Map<String, Integer> reserved = countKeys(hold.keys);
+		StripedLocks.Held locks = lockCustomerAndItems(hold.customerID, hold.keys);
+		try {
+			Customer customer = m_store.getCustomer(hold.customerID);
+			if (customer == null)
+			{
+				// Deleting the customer gave the units back already
+				return true;
+			}
+			for (Map.Entry<String, Integer> entry : reserved.entrySet())
+			{
+				ReservedItem reservedItem = customer.getReservedItem(entry.getKey());
+				int count = Math.min(entry.getValue(), reservedItem == null ? 0 : reservedItem.getCount());
+				if (count == 0)
+				{
+					continue;
+				}
+				if (count == reservedItem.getCount())
+				{
+					customer.getReservations().remove(reservedItem.getKey());
+				}
+				else
+				{
+					reservedItem.setCount(reservedItem.getCount() - count);
+				}
+				ReservableItem item = (ReservableItem)peekData(entry.getKey());
+				if (item != null)
+				{
+					item.release(count);
+					writeData(entry.getKey(), item);
+				}
+			}
+			writeData(customer.getKey(), customer);
+			Trace.info(() -> "RM::cancelReserve(" + txId + ") succeeded");
+			return true;
+		}
+		finally {
+			commit(locks);
+		}
+	}
+
+	// Makes held units available again; the caller holds the items' locks exclusively
+	private void release(Map<String, Integer> held)
+	{
+		for (Map.Entry<String, Integer> entry : held.entrySet())
+		{
+			ReservableItem item = (ReservableItem)peekData(entry.getKey());
+			item.hold(-entry.getValue());
+			publishHold(item);
+		}
+	}
+
+	// Holds change what is available without changing anything the log records, so they
+	// are only published
+	private void publishHold(ReservableItem item)
+	{
+		if (m_feed != null)
+		{
+			m_changes.get().add(item);
+		}
+	}
+
+	private void startHoldReaper()
+	{
+		if (m_holdReaperStarted.get() || !m_holdReaperStarted.compareAndSet(false, true))
+		{
+			return;
+		}
+		ScheduledExecutorService reaper = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "RM-hold-reaper " + m_name);
+			thread.setDaemon(true);
+			return thread;
+		});
+		long interval = Math.max(10, Math.min(1000, m_holdTimeoutMillis / 4));
+		reaper.scheduleWithFixedDelay(() -> {
+			long now = System.nanoTime();
+			for (Map.Entry<Long, Hold> entry : m_holds.entrySet())
+			{
+				if (now - entry.getValue().expiresAt > 0 && abortReserve(entry.getKey()))
+				{
+					Trace.warn(() -> "RM::" + m_name + " released the hold of transaction " + entry.getKey() + ", which was never finished");
+				}
+			}
+			m_outcomes.values().removeIf(outcome -> now - outcome.expiresAt > 0 && outcome.committed.isDone());
+		}, interval, interval, TimeUnit.MILLISECONDS);
+	}
+
+	// Changes to flights, cars and rooms from sequence number from on, as ChangeFeed.Changes.toArray.
+	// Waits up to waitMillis for one if there are none yet, so a subscriber that always has a
+	// poll outstanding hears of each change as it is made.
+	public Object[] pollChanges(long epoch, long from, int max, int waitMillis) throws RemoteException
+	{
+		if (m_feed == null)
+		{
+			throw new RemoteException("RM " + m_name + " has no change feed (rm.feed.buffer=0)");
+		}
+		try {
+			return m_feed.read(epoch, from, max, waitMillis).toArray();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RemoteException("Interrupted while waiting for changes");
+		}
+	}
+
+	// Sets items to the values another RM reports for them, for a read replica following that
+	// RM's change feed or copying its inventory. Each item is created if need be, or deleted if
+	// its count is ChangeFeed.DELETED; reserved may be null to leave reserved counts as they are.
+	// Cars and rooms created here only know their location as it appears in their key, in lower case.
+	public void replicate(String[] keys, int[] counts, int[] prices, int[] reserved)
+	{
+		checkBatch(keys.length, counts.length, prices.length, reserved == null ? keys.length : reserved.length);
+		StripedLocks.Held locks = m_locks.lockExclusive(keys);
+		try {
+			for (int i = 0; i < keys.length; i++)
+			{
+				ReservableItem item = (ReservableItem)peekData(keys[i]);
+				if (counts[i] == ChangeFeed.DELETED)
+				{
+					if (item != null)
+					{
+						removeData(keys[i]);
+					}
+					continue;
+				}
+				if (item == null)
+				{
+					item = newItem(keys[i]);
+				}
+				item.setCount(counts[i]);
+				item.setPrice(prices[i]);
+				if (reserved != null)
+				{
+					item.setReserved(reserved[i]);
+				}
+				writeData(keys[i], item);
+			}
+		}
+		finally {
+			commit(locks);
+		}
+	}
+
+	// Deletes every flight, car and room, for a replica about to copy its primary afresh
+	public void clearInventory()
+	{
+		List<String> keys = new ArrayList<String>();
+		m_store.visit(item -> {
+			if (item instanceof ReservableItem)
+			{
+				keys.add(((ReservableItem)item).getKey());
+			}
+		});
+		int[] deleted = new int[keys.size()];
+		Arrays.fill(deleted, ChangeFeed.DELETED);
+		replicate(keys.toArray(new String[keys.size()]), deleted, new int[keys.size()], null);
+		Trace.info(() -> "RM::clearInventory() deleted " + keys.size() + " items");
+	}
+
+	// An empty flight, car or room for a key made by Flight.getKey, Car.getKey or Room.getKey
+	private static ReservableItem newItem(String key)
+	{
+		if (key.startsWith("flight-"))
+		{
+			return new Flight(Integer.parseInt(key.substring("flight-".length())), 0, 0);
+		}
+		if (key.startsWith("car-"))
+		{
+			return new Car(key.substring("car-".length()), 0, 0);
+		}
+		if (key.startsWith("room-"))
+		{
+			return new Room(key.substring("room-".length()), 0, 0);
+		}
+		throw new IllegalArgumentException("Not the key of a flight, car or room: " + key);
 	}
 
 	public String getName() throws RemoteException
@@ -0,0 +1,167 @@
+package Server.Common;
+
+import java.util.*;
+import java.util.concurrent.locks.*;
+
+// A fixed set of read/write locks shared out among data item keys by hash.
+// Operations on keys in different stripes never contend; an operation that
+// needs several keys locks all of their stripes at once, always in stripe
+// order, so two such operations cannot deadlock against each other.
+public class StripedLocks
+{
+	private final ReentrantReadWriteLock[] m_stripes;
+	private final int m_mask;
+
+	public StripedLocks(int stripes)
+	{
+		int size = Integer.highestOneBit(Math.max(1, stripes - 1)) << 1;
+		m_stripes = new ReentrantReadWriteLock[size];
+		for (int i = 0; i < size; i++)
+		{
+			m_stripes[i] = new ReentrantReadWriteLock();
+		}
+		m_mask = size - 1;
+	}
+
+	public int getStripeCount()
+	{
+		return m_stripes.length;
+	}
+
+	public int stripeOf(String key)
+	{
+		return stripeOfHash(key.hashCode());
+	}
+
+	public int stripeOfHash(int hash)
+	{
+		return (hash ^ (hash >>> 16)) & m_mask;
+	}
+
+	// Lock one key for reading
+	public Held lockShared(String key)
+	{
+		int stripe = stripeOf(key);
+		m_stripes[stripe].readLock().lock();
+		return new Held(this, new int[] { stripe }, false);
+	}
+
+	// Lock any number of keys for reading, as one atomic acquisition
+	public Held lockShared(String[] keys)
+	{
+		return lockStripes(stripesOf(keys), false);
+	}
+
+	// Lock any number of keys for writing, as one atomic acquisition
+	public Held lockExclusive(String... keys)
+	{
+		return lockStripes(stripesOf(keys), true);
+	}
+
+	public Held lockExclusive(Collection<String> keys)
+	{
+		return lockExclusive(keys.toArray(new String[0]));
+	}
+
+	// Lock one stripe by index, e.g. for an item whose stripe was computed from its number
+	public Held lockStripe(int stripe, boolean exclusive)
+	{
+		lockOf(stripe, exclusive).lock();
+		return new Held(this, new int[] { stripe }, exclusive);
+	}
+
+	// Lock stripes by index, e.g. to visit a whole stripe at a time
+	public Held lockStripes(int[] stripes, boolean exclusive)
+	{
+		int[] ordered = sortedUnique(stripes);
+		for (int stripe : ordered)
+		{
+			lockOf(stripe, exclusive).lock();
+		}
+		return new Held(this, ordered, exclusive);
+	}
+
+	// Lock one stripe for writing and another for reading, in stripe order; if both are
+	// the same stripe it is locked for writing
+	public Held lockMixed(int exclusiveStripe, int sharedStripe)
+	{
+		if (exclusiveStripe == sharedStripe)
+		{
+			return lockStripe(exclusiveStripe, true);
+		}
+		int[] stripes = exclusiveStripe < sharedStripe ? new int[] { exclusiveStripe, sharedStripe } : new int[] { sharedStripe, exclusiveStripe };
+		boolean[] exclusive = { stripes[0] == exclusiveStripe, stripes[1] == exclusiveStripe };
+		lockOf(stripes[0], exclusive[0]).lock();
+		lockOf(stripes[1], exclusive[1]).lock();
+		return new Held(this, stripes, exclusive);
+	}
+
+	private int[] stripesOf(String[] keys)
+	{
+		int[] stripes = new int[keys.length];
+		for (int i = 0; i < keys.length; i++)
+		{
+			stripes[i] = stripeOf(keys[i]);
+		}
+		return stripes;
+	}
+
+	private Lock lockOf(int stripe, boolean exclusive)
+	{
+		ReentrantReadWriteLock lock = m_stripes[stripe];
+		return exclusive ? lock.writeLock() : lock.readLock();
+	}
+
+	private static int[] sortedUnique(int[] stripes)
+	{
+		if (stripes.length <= 1)
+		{
+			return stripes;
+		}
+		int[] sorted = stripes.clone();
+		Arrays.sort(sorted);
+		int n = 1;
+		for (int i = 1; i < sorted.length; i++)
+		{
+			if (sorted[i] != sorted[n - 1])
+			{
+				sorted[n++] = sorted[i];
+			}
+		}
+		return n == sorted.length ? sorted : Arrays.copyOf(sorted, n);
+	}
+
+	// The stripes held by one acquisition; release exactly once, normally in a finally block
+	public static class Held
+	{
+		private final StripedLocks m_owner;
+		private final int[] m_stripes;
+		// Mode of each stripe, or null if all are held in m_allExclusive's mode
+		private final boolean[] m_exclusive;
+		private final boolean m_allExclusive;
+
+		Held(StripedLocks owner, int[] stripes, boolean exclusive)
+		{
+			m_owner = owner;
+			m_stripes = stripes;
+			m_exclusive = null;
+			m_allExclusive = exclusive;
+		}
+
+		Held(StripedLocks owner, int[] stripes, boolean[] exclusive)
+		{
+			m_owner = owner;
+			m_stripes = stripes;
+			m_exclusive = exclusive;
+			m_allExclusive = false;
+		}
+
+		public void release()
+		{
+			for (int i = m_stripes.length - 1; i >= 0; i--)
+			{
+				m_owner.lockOf(m_stripes[i], m_exclusive == null ? m_allExclusive : m_exclusive[i]).unlock();
+			}
+		}
+	}
+}
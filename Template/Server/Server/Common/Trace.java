@@ -5,26 +5,116 @@
 
 package Server.Common;
 
+import java.io.*;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
 // A simple wrapper around System.out.println, allows us to disable some
 // of the verbose output from RM, TM, and WC if we want
+//
+// Messages below the current level (-Dtrace.level, default INFO) are dropped
+// before they are built: pass a Supplier, e.g. Trace.info(() -> "..." + x), and
+// the concatenation only happens when the level is enabled.
+//
+// By default (-Dtrace.async=true) lines are handed to a fixed-size ring buffer
+// and printed by a background thread, so callers never wait on the console.
+// If the ring is full the line is dropped and counted instead.
 public class Trace
 {
+	public enum Level { DEBUG, INFO, WARN, ERROR, OFF }
+
+	private static volatile Level s_level = Level.valueOf(System.getProperty("trace.level", "INFO").toUpperCase());
+	private static final AsyncWriter s_writer =
+		Boolean.parseBoolean(System.getProperty("trace.async", "true")) ? new AsyncWriter(Integer.getInteger("trace.buffer", 8192)) : null;
+
+	public static void setLevel(Level level)
+	{
+		s_level = level;
+	}
+
+	public static Level getLevel()
+	{
+		return s_level;
+	}
+
+	public static boolean isEnabled(Level level)
+	{
+		return level.compareTo(s_level) >= 0 && level != Level.OFF;
+	}
+
+	public static void debug(String msg)
+	{
+		log(Level.DEBUG, msg);
+	}
+	public static void debug(Supplier<String> msg)
+	{
+		if (isEnabled(Level.DEBUG)) log(Level.DEBUG, msg.get());
+	}
 	public static void info(String msg)
 	{
-		System.out.println(getThreadID() + " INFO: " + msg);
+		log(Level.INFO, msg);
+	}
+	public static void info(Supplier<String> msg)
+	{
+		if (isEnabled(Level.INFO)) log(Level.INFO, msg.get());
 	}
 	public static void warn(String msg)
 	{
-		System.out.println(getThreadID() + " WARN: " + msg);
+		log(Level.WARN, msg);
+	}
+	public static void warn(Supplier<String> msg)
+	{
+		if (isEnabled(Level.WARN)) log(Level.WARN, msg.get());
 	}
 	public static void error(String msg)
 	{
-		System.err.println(getThreadID() + " ERROR: " + msg);
+		log(Level.ERROR, msg);
 	}
-	private static String getThreadID()
+	public static void error(Supplier<String> msg)
 	{
-		String s = Thread.currentThread().getName();
+		if (isEnabled(Level.ERROR)) log(Level.ERROR, msg.get());
+	}
+
+	// Prints everything logged so far that is still sitting in the buffer
+	public static void flush()
+	{
+		if (s_writer != null)
+		{
+			s_writer.flush();
+		}
+	}
 
+	private static void log(Level level, String msg)
+	{
+		if (!isEnabled(level))
+		{
+			return;
+		}
+		String thread = Thread.currentThread().getName();
+		if (s_writer != null)
+		{
+			s_writer.offer(level, thread, msg);
+		}
+		else
+		{
+			print(level, thread, msg);
+		}
+	}
+
+	private static void print(Level level, String thread, String msg)
+	{
+		PrintStream out = level == Level.ERROR ? System.err : System.out;
+		out.println(format(level, thread, msg));
+	}
+
+	private static String format(Level level, String thread, String msg)
+	{
+		return getThreadID(thread) + " " + level + ": " + msg;
+	}
+
+	private static String getThreadID(String s)
+	{
 		// Shorten
 		// 	"RMI TCP Connection(x)-hostname/99.99.99.99"
 		// to
@@ -35,5 +125,127 @@ public class Trace
 		}
 		return s;
 	}
-}
 
+	// Bounded multi-producer, single-consumer ring (each slot carries the sequence
+	// number it is ready for, so producers only contend on the tail counter)
+	private static class AsyncWriter implements Runnable
+	{
+		private final int m_mask;
+		private final AtomicLongArray m_sequences;
+		private final Level[] m_levels;
+		private final String[] m_threads;
+		private final String[] m_messages;
+		private final AtomicLong m_tail = new AtomicLong();
+		private final AtomicLong m_dropped = new AtomicLong();
+		private volatile long m_head;
+
+		AsyncWriter(int capacity)
+		{
+			int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+			m_mask = size - 1;
+			m_sequences = new AtomicLongArray(size);
+			for (int i = 0; i < size; i++)
+			{
+				m_sequences.set(i, i);
+			}
+			m_levels = new Level[size];
+			m_threads = new String[size];
+			m_messages = new String[size];
+
+			Thread thread = new Thread(this, "Trace-writer");
+			thread.setDaemon(true);
+			thread.start();
+			Runtime.getRuntime().addShutdownHook(new Thread(this::flush));
+		}
+
+		void offer(Level level, String thread, String msg)
+		{
+			while (true)
+			{
+				long tail = m_tail.get();
+				int slot = (int)tail & m_mask;
+				long ready = m_sequences.get(slot);
+				if (ready == tail)
+				{
+					if (m_tail.compareAndSet(tail, tail + 1))
+					{
+						m_levels[slot] = level;
+						m_threads[slot] = thread;
+						m_messages[slot] = msg;
+						m_sequences.set(slot, tail + 1);
+						return;
+					}
+				}
+				else if (ready < tail)
+				{
+					// Full: the writer is behind, so give up on this line rather than wait
+					m_dropped.incrementAndGet();
+					return;
+				}
+			}
+		}
+
+		public void run()
+		{
+			while (true)
+			{
+				if (!drain())
+				{
+					LockSupport.parkNanos(1000000L);
+				}
+			}
+		}
+
+		// Prints whatever is ready; returns false if there was nothing to do
+		private synchronized boolean drain()
+		{
+			StringBuilder out = null;
+			StringBuilder err = null;
+			long head = m_head;
+			while (true)
+			{
+				int slot = (int)head & m_mask;
+				if (m_sequences.get(slot) != head + 1)
+				{
+					break;
+				}
+				String line = format(m_levels[slot], m_threads[slot], m_messages[slot]);
+				if (m_levels[slot] == Level.ERROR)
+				{
+					err = (err == null ? new StringBuilder() : err).append(line).append('\n');
+				}
+				else
+				{
+					out = (out == null ? new StringBuilder() : out).append(line).append('\n');
+				}
+				m_threads[slot] = null;
+				m_messages[slot] = null;
+				m_sequences.set(slot, head + m_mask + 1);
+				head++;
+			}
+			m_head = head;
+
+			long dropped = m_dropped.getAndSet(0);
+			if (dropped > 0)
+			{
+				err = (err == null ? new StringBuilder() : err).append("Trace: dropped ").append(dropped).append(" messages, log buffer full\n");
+			}
+			if (out != null)
+			{
+				System.out.print(out);
+				System.out.flush();
+			}
+			if (err != null)
+			{
+				System.err.print(err);
+				System.err.flush();
+			}
+			return out != null || err != null;
+		}
+
+		void flush()
+		{
+			drain();
+		}
+	}
+}
@@ -201,6 +201,98 @@ public interface IResourceManager extends Remote
     public boolean bundle(int customerID, Vector<String> flightNumbers, String location, boolean car, boolean room)
 	throws RemoteException; 
 
+    /**
+     * Add seats to many flights in one request.
+     *
+     * Entry i of each array describes one flight, as for addFlight. The
+     * whole batch is applied as one update.
+     *
+     * @return Success
+     */
+    public boolean addFlights(int[] flightNums, int[] flightSeats, int[] flightPrices)
+	throws RemoteException;
+
+    /**
+     * Add cars at many locations in one request.
+     *
+     * @return Success
+     */
+    public boolean addCars(String[] locations, int[] numCars, int[] prices)
+	throws RemoteException;
+
+    /**
+     * Add rooms at many locations in one request.
+     *
+     * @return Success
+     */
+    public boolean addRooms(String[] locations, int[] numRooms, int[] prices)
+	throws RemoteException;
+
+    /**
+     * Query the status of many flights in one request.
+     *
+     * @return Number of empty seats and price of each flight in turn:
+     * { seats0, price0, seats1, price1, ... }; zeros for an unknown flight
+     */
+    public int[] queryFlights(int[] flightNumbers)
+	throws RemoteException;
+
+    /**
+     * Query the status of many car locations in one request.
+     *
+     * @return Number of available cars and price at each location in turn
+     */
+    public int[] queryCars(String[] locations)
+	throws RemoteException;
+
+    /**
+     * Query the status of many room locations in one request.
+     *
+     * @return Number of available rooms and price at each location in turn
+     */
+    public int[] queryRooms(String[] locations)
+	throws RemoteException;
+
+    /**
+     * Reserve a seat on each of these flights.
+     *
+     * A flight listed twice gets two seats. Nothing is reserved unless
+     * every seat can be.
+     *
+     * @return Success
+     */
+    public boolean reserveFlights(int customerID, int[] flightNumbers)
+	throws RemoteException;
+
+    /**
+     * Reserve a car at each of these locations, all or nothing.
+     *
+     * @return Success
+     */
+    public boolean reserveCars(int customerID, String[] locations)
+	throws RemoteException;
+
+    /**
+     * Reserve a room at each of these locations, all or nothing.
+     *
+     * @return Success
+     */
+    public boolean reserveRooms(int customerID, String[] locations)
+	throws RemoteException;
+
+    /**
+     * Export one part of the flights, cars or rooms.
+     *
+     * The items are split into the given number of parts; fetching parts
+     * 0 to parts - 1 returns each item exactly once, so an export never
+     * needs the whole inventory in one message.
+     *
+     * @param kind "flight", "car" or "room"
+     * @return One "kind,location,count,price" line per item in the part
+     */
+    public String[] exportInventory(String kind, int part, int parts)
+	throws RemoteException;
+
     /**
      * Convenience for probing the resource manager.
      *
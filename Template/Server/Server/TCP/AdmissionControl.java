@@ -0,0 +1,173 @@
+package Server.TCP;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Decides which client requests the middleware takes on, so that overload
+ * is answered with quick refusals rather than ever more threads and memory.
+ *
+ * Three limits apply: requests in the middleware at once (running or
+ * waiting), requests from one client connection at once, and requests at
+ * once that need each RM type. A request past either of the first two gets
+ * an ERROR at once, with a hint of when to try again. One past its RM type's
+ * limit waits a short while for a request to that RM to finish (so the
+ * first limit bounds this queue), and is refused the same way if none does.
+ *
+ * Each RM type's limit adapts to how that RM is doing, in the manner of TCP
+ * Vegas and AIMD congestion control. The limit grows by about one for each
+ * limit's worth of answers while it is being used to the full, and shrinks
+ * by a tenth (at most once per round trip) when answers fail, or take
+ * more on average than tolerance times the shortest recent round trip. So
+ * it settles near the concurrency the RM can take before it queues.
+ */
+public class AdmissionControl {
+    private final int maxRequests;
+    private final int maxPerClient;
+    private final long retryAfterMillis;
+    private final AtomicInteger requests = new AtomicInteger();
+
+    public AdmissionControl(int maxRequests, int maxPerClient, long retryAfterMillis) {
+        this.maxRequests = maxRequests;
+        this.maxPerClient = maxPerClient;
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /* Admits one more request from the client whose count is clientRequests; false if either is full */
+    public boolean tryAdmit(AtomicInteger clientRequests) {
+        if (requests.incrementAndGet() > maxRequests) {
+            requests.decrementAndGet();
+            return false;
+        }
+        if (clientRequests.incrementAndGet() > maxPerClient) {
+            clientRequests.decrementAndGet();
+            requests.decrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    public void release(AtomicInteger clientRequests) {
+        clientRequests.decrementAndGet();
+        requests.decrementAndGet();
+    }
+
+    public int getRequests() {
+        return requests.get();
+    }
+
+    public long getRetryAfterMillis() {
+        return retryAfterMillis;
+    }
+
+    /* The refusal sent for request, suggesting the client retry after retryAfterMillis */
+    public static TCPMessage busy(TCPMessage request, String reason, long retryAfterMillis) {
+        TCPMessage response = new TCPMessage(request.getMessageId(), "Server busy (" + reason + "), retry after " + retryAfterMillis + " ms");
+        response.setRetryAfterMillis(retryAfterMillis);
+        return response;
+    }
+
+    /* Adaptive concurrency limit for the requests to one RM type */
+    public static class Limit {
+        private static final double DECREASE = 0.9;
+        private static final int BASELINE_WINDOW = 500;
+        // Keeps the jitter of very fast RMs from reading as queueing
+        private static final long SLACK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+        private final String name;
+        private final int minLimit;
+        private final int maxLimit;
+        private final double tolerance;
+        private final boolean adaptive;
+
+        // Guarded by this
+        private int inflight = 0;
+        private double limit;
+        private long baselineNanos = Long.MAX_VALUE;
+        private long windowMinNanos = Long.MAX_VALUE;
+        private int windowSamples = 0;
+        private double smoothedNanos = 0;
+        private long lastDecrease = System.nanoTime();
+
+        public Limit(String name, int initialLimit, int minLimit, int maxLimit, double tolerance, boolean adaptive) {
+            this.name = name;
+            this.minLimit = Math.max(1, minLimit);
+            this.maxLimit = Math.max(this.minLimit, maxLimit);
+            this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+            this.tolerance = tolerance;
+            this.adaptive = adaptive;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /* Takes a place within the limit, waiting up to waitNanos for one; false if none came */
+        public synchronized boolean tryAcquire(long waitNanos) throws InterruptedException {
+            long until = System.nanoTime() + waitNanos;
+            while (inflight >= (int) limit) {
+                long left = until - System.nanoTime();
+                if (left <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, left);
+            }
+            inflight++;
+            return true;
+        }
+
+        public synchronized void release() {
+            inflight--;
+            notify();
+        }
+
+        public synchronized int getInflight() {
+            return inflight;
+        }
+
+        public synchronized int getLimit() {
+            return (int) limit;
+        }
+
+        /* How long a refused request should wait: minMillis, or a few recent round trips to the RM if longer */
+        public synchronized long getRetryAfterMillis(long minMillis) {
+            return Math.max(minMillis, TimeUnit.NANOSECONDS.toMillis((long) smoothedNanos * 4));
+        }
+
+        /* Records one round trip to the RM; failed is true if it did not answer or was overloaded */
+        public synchronized void sample(long rttNanos, boolean failed) {
+            // A failure's round trip is only as long as its timeout, so it says nothing of latency
+            if (!failed) {
+                smoothedNanos = smoothedNanos == 0 ? rttNanos : smoothedNanos * 0.9 + rttNanos * 0.1;
+                // The shortest recent round trip stands for the RM's time without queueing
+                windowMinNanos = Math.min(windowMinNanos, rttNanos);
+                if (++windowSamples >= BASELINE_WINDOW || baselineNanos == Long.MAX_VALUE) {
+                    baselineNanos = windowMinNanos;
+                    windowMinNanos = Long.MAX_VALUE;
+                    windowSamples = 0;
+                }
+            }
+            if (!adaptive) {
+                return;
+            }
+
+            long now = System.nanoTime();
+            boolean queueing = baselineNanos != Long.MAX_VALUE
+                    && smoothedNanos > Math.max(baselineNanos * tolerance, baselineNanos + SLACK_NANOS);
+            if (failed || queueing) {
+                // Queueing at the RM (or worse); back off, but only once per round trip
+                if (now - lastDecrease > smoothedNanos) {
+                    limit = Math.max(minLimit, limit * DECREASE);
+                    lastDecrease = now;
+                }
+            } else if (inflight >= limit * 0.8) {
+                // The limit is what holds requests back, and the RM keeps up: probe for more
+                int before = (int) limit;
+                limit = Math.min(maxLimit, limit + 1 / limit);
+                if ((int) limit > before) {
+                    notify();
+                }
+            }
+        }
+    }
+}
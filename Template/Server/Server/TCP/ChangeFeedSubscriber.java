@@ -0,0 +1,138 @@
+package Server.TCP;
+
+import Server.Common.ChangeFeed;
+import Server.Common.Trace;
+import Server.TCP.TCPMessage.Command;
+
+import java.io.IOException;
+
+/*
+ * Follows one RM's change feed (see ChangeFeed) from a background thread.
+ *
+ * The subscriber always has one POLL_CHANGES request outstanding on its own
+ * connection; the RM holds it until there is a change (or waitMillis
+ * passes), so changes arrive as they are made. The next poll is only sent
+ * once the listener has handled the last batch, which is the backpressure:
+ * a slow listener just reads further behind, and if it falls off the end of
+ * the RM's buffer it is told to reset rather than slowing the RM down.
+ *
+ * getLagMillis says how far behind the RM the listener may be: everything
+ * up to when the last poll that found no more waiting was sent has been
+ * handled (or up to when the RM gave up waiting, if it had nothing new).
+ */
+public class ChangeFeedSubscriber {
+    private static final int MAX_CHANGES = 4096;
+    private static final long RECONNECT_BACKOFF_MILLIS = 1000;
+
+    public interface Listener {
+        /*
+         * Changes may have been missed (first poll, RM restart, lost connection or
+         * falling behind). Called before the next changes are handed over; if it
+         * throws, it is called again after the next poll.
+         */
+        void onReset();
+
+        /* The next changes in order */
+        void onChanges(ChangeFeed.Changes changes);
+    }
+
+    private final String host;
+    private final int port;
+    private final int waitMillis;
+    private final Listener listener;
+    private final Thread thread;
+    private volatile boolean running = true;
+    private volatile TCPConnection connection;
+    // System.nanoTime as of which every change has been handled, or 0 if unknown
+    private volatile long syncedAt = 0;
+
+    public ChangeFeedSubscriber(String host, int port, int waitMillis, Listener listener) {
+        this.host = host;
+        this.port = port;
+        this.waitMillis = waitMillis;
+        this.listener = listener;
+        this.thread = new Thread(this::follow, "ChangeFeedSubscriber " + host + ":" + port);
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    /* How far behind the RM the listener may be; Long.MAX_VALUE until it has caught up once */
+    public long getLagMillis() {
+        long synced = syncedAt;
+        if (synced == 0) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, (System.nanoTime() - synced) / 1000000);
+    }
+
+    public void close() {
+        running = false;
+        TCPConnection current = connection;
+        if (current != null) {
+            current.close();
+        }
+        thread.interrupt();
+    }
+
+    private void follow() {
+        long epoch = 0;
+        long next = 0;
+        boolean resetPending = true;
+        boolean reported = false;
+        while (running) {
+            try {
+                if (connection == null || !connection.isOpen()) {
+                    connection = new TCPConnection(host, port, 3000);
+                }
+                long sentAt = System.nanoTime();
+                TCPMessage response = connection.send(new TCPMessage(0, Command.POLL_CHANGES, epoch, next, MAX_CHANGES, waitMillis));
+                if (response.getMessageType() == TCPMessage.MessageType.ERROR) {
+                    throw new IOException(response.getErrorMessage());
+                }
+                ChangeFeed.Changes changes = ChangeFeed.Changes.fromArray((Object[]) response.getResult());
+                if (changes.epoch != epoch || changes.first != next) {
+                    resetPending = true;
+                }
+                if (resetPending) {
+                    syncedAt = 0;
+                    listener.onReset();
+                    resetPending = false;
+                }
+                if (changes.size() > 0) {
+                    listener.onChanges(changes);
+                }
+                epoch = changes.epoch;
+                next = changes.next();
+                if (changes.size() == 0) {
+                    // The RM waited waitMillis and nothing happened
+                    syncedAt = sentAt + waitMillis * 1000000L;
+                } else if (changes.size() < MAX_CHANGES) {
+                    syncedAt = sentAt;
+                }
+                reported = false;
+            } catch (IOException | RuntimeException e) {
+                if (!running) {
+                    break;
+                }
+                if (!reported) {
+                    Trace.warn(() -> "Change feed from " + host + ":" + port + " unavailable: " + e.getMessage());
+                    reported = true;
+                }
+                // Whatever happens while disconnected goes unseen
+                syncedAt = 0;
+                resetPending = true;
+                if (connection != null) {
+                    connection.close();
+                }
+                try {
+                    Thread.sleep(RECONNECT_BACKOFF_MILLIS);
+                } catch (InterruptedException interrupted) {
+                    break;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,309 @@
+package Server.TCP;
+
+import Server.Common.Car;
+import Server.Common.Flight;
+import Server.Common.Room;
+import Server.TCP.TCPMessage.Command;
+
+import java.util.*;
+
+/*
+ * The middleware's cache of availability and price answers (QUERY_FLIGHT,
+ * QUERY_CARS, QUERY_ROOMS and their _PRICE variants), so repeated lookups of
+ * the same item are answered without a round trip to its RM.
+ *
+ * Entries are kept per item key ("flight-12", "car-montreal", ...), split
+ * over segments that each evict their least recently used entry when full.
+ * Every request the middleware forwards that can change an item (add,
+ * delete, reserve, and the bulk forms) invalidates the item once the RM has
+ * answered; deleting a customer releases reservations on unknown items, so
+ * it empties the cache. Changes made at the RMs by anyone else arrive
+ * through their change feeds (see ChangeFeedSubscriber) and invalidate
+ * entries the same way. Answers read from a replica, which may not have
+ * seen a change yet when its invalidation arrives, are only kept for a
+ * limited time.
+ *
+ * A query only stores its answer if nothing in its segment was invalidated
+ * while it was out at the RM. Otherwise an answer read just before a change
+ * could land in the cache after the change's invalidation and stay there.
+ */
+public class QueryCache {
+    private static final int SEGMENTS = 16;
+
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final long ttlNanos;
+
+    /* capacity 0 disables the cache; ttlMillis 0 keeps entries until evicted or invalidated */
+    public QueryCache(int capacity, long ttlMillis) {
+        int perSegment = capacity <= 0 ? 0 : Math.max(1, (capacity + SEGMENTS - 1) / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(perSegment);
+        }
+        this.ttlNanos = ttlMillis * 1000000L;
+    }
+
+    public boolean isEnabled() {
+        return segments[0].capacity > 0;
+    }
+
+    /* True if the answer to this command can come from the cache */
+    public static boolean isCacheable(Command command) {
+        switch (command) {
+            case QUERY_FLIGHT:
+            case QUERY_FLIGHT_PRICE:
+            case QUERY_CARS:
+            case QUERY_CARS_PRICE:
+            case QUERY_ROOMS:
+            case QUERY_ROOMS_PRICE:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /* Version to pass to put for the query about to be forwarded */
+    public long version(TCPMessage query) {
+        Segment segment = segmentOf(itemKey(query));
+        synchronized (segment) {
+            return segment.version;
+        }
+    }
+
+    /* The cached answer to a cacheable query, or null */
+    public Object get(TCPMessage query) {
+        if (!isEnabled()) {
+            return null;
+        }
+        String itemKey = itemKey(query);
+        Segment segment = segmentOf(itemKey);
+        synchronized (segment) {
+            Entry entry = segment.get(itemKey);
+            if (entry == null) {
+                return null;
+            }
+            if (entry.isExpired(System.nanoTime())) {
+                segment.remove(itemKey);
+                return null;
+            }
+            return isPriceQuery(query.getCommand()) ? entry.price : entry.count;
+        }
+    }
+
+    /* Stores the RM's answer to query, unless the item may have changed since version */
+    public void put(TCPMessage query, long version, Object result) {
+        put(query, version, result, 0);
+    }
+
+    /*
+     * put for an answer that may already be up to maxAgeMillis out of date, as
+     * from a replica: the invalidation for a change the replica had not yet
+     * seen may have come and gone, so the item is dropped after maxAgeMillis
+     * (or the cache's own TTL if shorter) whatever happens. 0 means no limit.
+     */
+    public void put(TCPMessage query, long version, Object result, long maxAgeMillis) {
+        if (!isEnabled() || !(result instanceof Integer)) {
+            return;
+        }
+        String itemKey = itemKey(query);
+        Segment segment = segmentOf(itemKey);
+        synchronized (segment) {
+            if (segment.version != version) {
+                return;
+            }
+            long now = System.nanoTime();
+            Entry entry = segment.get(itemKey);
+            if (entry == null || entry.isExpired(now)) {
+                entry = new Entry(ttlNanos > 0 ? now + ttlNanos : Entry.NEVER);
+                segment.put(itemKey, entry);
+            }
+            if (maxAgeMillis > 0) {
+                entry.expireBy(now + maxAgeMillis * 1000000L);
+            }
+            if (isPriceQuery(query.getCommand())) {
+                entry.price = (Integer) result;
+            } else {
+                entry.count = (Integer) result;
+            }
+        }
+    }
+
+    /* Drops whatever request may have changed; call once the RM has answered it */
+    public void invalidate(TCPMessage request) {
+        if (!isEnabled() || request.getMessageType() != TCPMessage.MessageType.REQUEST) {
+            return;
+        }
+        try {
+            invalidateItems(request.getCommand(), request.getArguments());
+        } catch (RuntimeException e) {
+            // Arguments of the wrong shape; the RM will have refused it, but take no chances
+            invalidateAll();
+        }
+    }
+
+    private void invalidateItems(Command command, Object[] args) {
+        switch (command) {
+            case ADD_FLIGHT:
+            case DELETE_FLIGHT:
+                invalidate(Flight.getKey((Integer) args[0]));
+                break;
+            case RESERVE_FLIGHT:
+                invalidate(Flight.getKey((Integer) args[1]));
+                break;
+            case ADD_CARS:
+            case DELETE_CARS:
+                invalidate(Car.getKey((String) args[0]));
+                break;
+            case RESERVE_CAR:
+                invalidate(Car.getKey((String) args[1]));
+                break;
+            case ADD_ROOMS:
+            case DELETE_ROOMS:
+                invalidate(Room.getKey((String) args[0]));
+                break;
+            case RESERVE_ROOM:
+                invalidate(Room.getKey((String) args[1]));
+                break;
+            case ADD_FLIGHTS:
+                invalidateFlights((int[]) args[0]);
+                break;
+            case RESERVE_FLIGHTS:
+                invalidateFlights((int[]) args[1]);
+                break;
+            case ADD_CARS_BATCH:
+                invalidateLocations((String[]) args[0], false);
+                break;
+            case RESERVE_CARS:
+                invalidateLocations((String[]) args[1], false);
+                break;
+            case ADD_ROOMS_BATCH:
+                invalidateLocations((String[]) args[0], true);
+                break;
+            case RESERVE_ROOMS:
+                invalidateLocations((String[]) args[1], true);
+                break;
+            case RESERVE_ITEMS:
+                for (String key : (String[]) args[1]) {
+                    invalidate(key);
+                }
+                break;
+            case PREPARE_RESERVE:
+                for (String key : (String[]) args[2]) {
+                    invalidate(key);
+                }
+                break;
+            case DELETE_CUSTOMER:
+                invalidateAll();
+                break;
+            default:
+                break;
+        }
+    }
+
+    public void invalidate(String itemKey) {
+        Segment segment = segmentOf(itemKey);
+        synchronized (segment) {
+            segment.version++;
+            segment.remove(itemKey);
+        }
+    }
+
+    public void invalidateAll() {
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.version++;
+                segment.clear();
+            }
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    private void invalidateFlights(int[] flightNums) {
+        for (int flightNum : flightNums) {
+            invalidate(Flight.getKey(flightNum));
+        }
+    }
+
+    private void invalidateLocations(String[] locations, boolean rooms) {
+        for (String location : locations) {
+            invalidate(rooms ? Room.getKey(location) : Car.getKey(location));
+        }
+    }
+
+    private static String itemKey(TCPMessage query) {
+        Object arg = query.getArguments()[0];
+        switch (query.getCommand()) {
+            case QUERY_FLIGHT:
+            case QUERY_FLIGHT_PRICE:
+                return Flight.getKey((Integer) arg);
+            case QUERY_CARS:
+            case QUERY_CARS_PRICE:
+                return Car.getKey((String) arg);
+            case QUERY_ROOMS:
+            case QUERY_ROOMS_PRICE:
+                return Room.getKey((String) arg);
+            default:
+                throw new IllegalArgumentException(query.getCommand() + " is not cacheable");
+        }
+    }
+
+    private static boolean isPriceQuery(Command command) {
+        return command == Command.QUERY_FLIGHT_PRICE || command == Command.QUERY_CARS_PRICE || command == Command.QUERY_ROOMS_PRICE;
+    }
+
+    private Segment segmentOf(String itemKey) {
+        int h = itemKey.hashCode();
+        return segments[(h ^ (h >>> 16)) & (SEGMENTS - 1)];
+    }
+
+    /* What is known about one item; either half may still be unknown */
+    private static class Entry {
+        static final long NEVER = Long.MIN_VALUE;
+
+        // System.nanoTime after which the entry is dropped, or NEVER
+        long expiresAt;
+        Integer count;
+        Integer price;
+
+        Entry(long expiresAt) {
+            this.expiresAt = expiresAt;
+        }
+
+        boolean isExpired(long now) {
+            return expiresAt != NEVER && now - expiresAt > 0;
+        }
+
+        void expireBy(long time) {
+            if (expiresAt == NEVER || time - expiresAt < 0) {
+                expiresAt = time;
+            }
+        }
+    }
+
+    /* LRU map of one segment; guarded by itself */
+    private static class Segment extends LinkedHashMap<String, Entry> {
+        private static final long serialVersionUID = 1L;
+
+        final int capacity;
+        // Bumped by every invalidation in the segment
+        long version = 0;
+
+        Segment(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > capacity;
+        }
+    }
+}
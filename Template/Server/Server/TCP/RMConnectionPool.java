@@ -0,0 +1,158 @@
+package Server.TCP;
+
+import Server.Common.Trace;
+
+import java.io.IOException;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * A fixed number of multiplexed connections to one RM, shared by every
+ * client the middleware serves. Requests are spread round-robin over the
+ * open connections. A connection that fails is dropped and re-established
+ * on next use or by the periodic health check, with a short back-off so a
+ * dead RM costs callers a fast failure instead of a connect attempt each.
+ * No request waits longer than middleware.rm.timeout.ms for its answer,
+ * whatever deadline it came with, so an RM that stalls cannot hold its
+ * callers for long.
+ */
+public class RMConnectionPool {
+    private static final long RECONNECT_BACKOFF_MILLIS = 1000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 3000;
+    private static final long REQUEST_TIMEOUT_MILLIS = Long.getLong("middleware.rm.timeout.ms", 30000);
+
+    private final String name;
+    private final String host;
+    private final int port;
+    private final AtomicReferenceArray<TCPConnection> connections;
+    private final long[] lastFailure;
+    private final AtomicInteger next = new AtomicInteger();
+    private final ScheduledExecutorService healthChecker;
+
+    public RMConnectionPool(String name, String host, int port, int size, long healthCheckIntervalMillis) {
+        this.name = name;
+        this.host = host;
+        this.port = port;
+        this.connections = new AtomicReferenceArray<>(Math.max(1, size));
+        this.lastFailure = new long[connections.length()];
+
+        this.healthChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "RMConnectionPool-health " + name);
+            thread.setDaemon(true);
+            return thread;
+        });
+        if (healthCheckIntervalMillis > 0) {
+            healthChecker.scheduleWithFixedDelay(this::checkHealth,
+                    healthCheckIntervalMillis, healthCheckIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getAddress() {
+        return host + ":" + port;
+    }
+
+    /* Opens every connection now rather than on first use; failures are only logged */
+    public void connectAll() {
+        for (int i = 0; i < connections.length(); i++) {
+            try {
+                connection(i);
+            } catch (IOException e) {
+                System.err.println("Failed to connect to " + name + " RM at " + getAddress() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    /* Never throws; a request that cannot be sent completes exceptionally */
+    public CompletableFuture<TCPMessage> sendAsync(TCPMessage request) {
+        if (REQUEST_TIMEOUT_MILLIS > 0) {
+            long latest = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(REQUEST_TIMEOUT_MILLIS);
+            if (!request.hasDeadline() || request.getDeadline() - latest > 0) {
+                // A copy, since the caller's request may go on to other RMs
+                TCPMessage capped = new TCPMessage(request.getMessageId(), request.getCommand(), request.getArguments());
+                capped.setRequestId(request.getRequestId());
+                capped.setDeadline(latest);
+                request = capped;
+            }
+        }
+        int start = Math.floorMod(next.getAndIncrement(), connections.length());
+        IOException failure = null;
+        for (int attempt = 0; attempt < connections.length(); attempt++) {
+            try {
+                return connection((start + attempt) % connections.length()).sendAsync(request);
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        CompletableFuture<TCPMessage> failed = new CompletableFuture<>();
+        failed.completeExceptionally(failure);
+        return failed;
+    }
+
+    /* Returns the open connection in a slot, reconnecting it if it has failed */
+    private TCPConnection connection(int slot) throws IOException {
+        TCPConnection connection = connections.get(slot);
+        if (connection != null && connection.isOpen()) {
+            return connection;
+        }
+
+        synchronized (lastFailure) {
+            connection = connections.get(slot);
+            if (connection != null && connection.isOpen()) {
+                return connection;
+            }
+            if (System.currentTimeMillis() - lastFailure[slot] < RECONNECT_BACKOFF_MILLIS) {
+                throw new IOException(name + " RM at " + getAddress() + " is unavailable");
+            }
+            try {
+                connection = new TCPConnection(host, port, CONNECT_TIMEOUT_MILLIS);
+                connections.set(slot, connection);
+                Trace.info(() -> "Connected to " + name + " RM at " + getAddress());
+                return connection;
+            } catch (IOException e) {
+                lastFailure[slot] = System.currentTimeMillis();
+                throw e;
+            }
+        }
+    }
+
+    /* Pings every open connection and drops any that do not answer; reopens dropped ones */
+    private void checkHealth() {
+        for (int i = 0; i < connections.length(); i++) {
+            TCPConnection connection = connections.get(i);
+            if (connection == null || !connection.isOpen()) {
+                try {
+                    connection(i);
+                } catch (IOException e) {
+                    Trace.warn(() -> name + " RM at " + getAddress() + " still unreachable: " + e.getMessage());
+                }
+                continue;
+            }
+
+            try {
+                connection.sendAsync(new TCPMessage(0, TCPMessage.Command.GET_NAME))
+                        .get(RECONNECT_BACKOFF_MILLIS * 5, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException | TimeoutException e) {
+                Trace.warn(() -> "Health check failed for " + name + " RM at " + getAddress() + ", reconnecting");
+                connection.close();
+            }
+        }
+    }
+
+    public void close() {
+        healthChecker.shutdownNow();
+        for (int i = 0; i < connections.length(); i++) {
+            TCPConnection connection = connections.getAndSet(i, null);
+            if (connection != null) {
+                connection.close();
+            }
+        }
+    }
+}
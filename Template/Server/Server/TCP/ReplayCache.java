@@ -0,0 +1,172 @@
+package Server.TCP;
+
+import Server.TCP.TCPMessage.Command;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/*
+ * Makes retried requests safe to apply: remembers the responses to recent
+ * requests that carry a request id, and answers a repeat of one with the
+ * first attempt's response instead of running it again. A repeat that comes
+ * while the first attempt is still running waits for it. So a client whose
+ * connection dropped or that timed out can simply send the request again,
+ * and a RESERVE_FLIGHT whose answer was lost is not booked twice.
+ *
+ * Responses are kept per client (the high 32 bits of the request id), at
+ * most maxPerClient of them, oldest dropped first, and none longer than
+ * ttlMillis; clients not heard from for that long are forgotten. Reads are
+ * not remembered, since repeating them changes nothing, and neither are
+ * errors, so that a retry runs again (a middleware passes the request id on,
+ * so the RM behind it still replays a change it already made).
+ */
+public class ReplayCache {
+    private final int maxPerClient;
+    private final long ttlNanos;
+    private final ConcurrentHashMap<Integer, Client> clients = new ConcurrentHashMap<>();
+    private final AtomicLong lastSweep = new AtomicLong(System.nanoTime());
+
+    private static class Client {
+        // Guarded by this; in the order the requests arrived, which is also age order
+        final LinkedHashMap<Long, Entry> responses = new LinkedHashMap<>();
+        volatile long lastUsed;
+    }
+
+    private static class Entry {
+        final CompletableFuture<TCPMessage> response = new CompletableFuture<>();
+        final long createdAt;
+
+        Entry(long createdAt) {
+            this.createdAt = createdAt;
+        }
+    }
+
+    public ReplayCache(int maxPerClient, long ttlMillis) {
+        this.maxPerClient = maxPerClient;
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+    }
+
+    public boolean isEnabled() {
+        return maxPerClient > 0 && ttlNanos > 0;
+    }
+
+    /* Changes are replayed; reads simply run again */
+    public static boolean isReplayed(Command command) {
+        switch (command) {
+            case QUERY_FLIGHT:
+            case QUERY_CARS:
+            case QUERY_ROOMS:
+            case QUERY_CUSTOMER:
+            case QUERY_FLIGHT_PRICE:
+            case QUERY_CARS_PRICE:
+            case QUERY_ROOMS_PRICE:
+            case QUERY_FLIGHTS:
+            case QUERY_CARS_BATCH:
+            case QUERY_ROOMS_BATCH:
+            case GET_NAME:
+            case EXPORT_INVENTORY:
+            case POLL_CHANGES:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /*
+     * Answers request with handler, unless an earlier attempt of it has run or
+     * is running, in which case its response is returned instead. The response
+     * always carries request's own message id.
+     */
+    public TCPMessage execute(TCPMessage request, Function<TCPMessage, TCPMessage> handler) {
+        long requestId = request.getRequestId();
+        if (requestId == 0 || !isEnabled() || request.getCommand() == null || !isReplayed(request.getCommand())) {
+            return handler.apply(request);
+        }
+
+        long now = System.nanoTime();
+        sweep(now);
+        Client client = clients.computeIfAbsent((int) (requestId >>> 32), id -> new Client());
+        client.lastUsed = now;
+        Entry entry;
+        Entry earlier;
+        synchronized (client) {
+            expire(client, now);
+            earlier = client.responses.get(requestId);
+            entry = earlier != null ? earlier : new Entry(now);
+            if (earlier == null) {
+                client.responses.put(requestId, entry);
+                if (client.responses.size() > maxPerClient) {
+                    Iterator<Entry> oldest = client.responses.values().iterator();
+                    oldest.next();
+                    oldest.remove();
+                }
+            }
+        }
+
+        if (earlier != null) {
+            TCPMessage response = earlier.response.join();
+            return response.getMessageId() == request.getMessageId() ? response : response.withMessageId(request.getMessageId());
+        }
+        TCPMessage response;
+        try {
+            response = handler.apply(request);
+        } catch (RuntimeException e) {
+            response = new TCPMessage(request.getMessageId(), "Error processing request: " + e.getMessage());
+        }
+        if (response.getMessageType() == TCPMessage.MessageType.ERROR) {
+            // Let a retry run it again; a repeat already waiting gets this error
+            synchronized (client) {
+                client.responses.remove(requestId, entry);
+            }
+        }
+        entry.response.complete(response);
+        return response;
+    }
+
+    /* How many responses are remembered, for all clients together */
+    public int size() {
+        int size = 0;
+        for (Client client : clients.values()) {
+            synchronized (client) {
+                size += client.responses.size();
+            }
+        }
+        return size;
+    }
+
+    /* Drops the client's responses older than the time to live; the caller holds its lock */
+    private void expire(Client client, long now) {
+        Iterator<Entry> entries = client.responses.values().iterator();
+        while (entries.hasNext()) {
+            Entry entry = entries.next();
+            if (now - entry.createdAt <= ttlNanos) {
+                break;
+            }
+            if (entry.response.isDone()) {
+                entries.remove();
+            }
+        }
+    }
+
+    /* Forgets idle clients, at most once per time to live */
+    private void sweep(long now) {
+        long last = lastSweep.get();
+        if (now - last < ttlNanos || !lastSweep.compareAndSet(last, now)) {
+            return;
+        }
+        Iterator<Client> all = clients.values().iterator();
+        while (all.hasNext()) {
+            Client client = all.next();
+            if (now - client.lastUsed > ttlNanos) {
+                synchronized (client) {
+                    expire(client, now);
+                    if (client.responses.isEmpty()) {
+                        all.remove();
+                    }
+                }
+            }
+        }
+    }
+}
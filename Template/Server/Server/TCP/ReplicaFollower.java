@@ -0,0 +1,129 @@
+package Server.TCP;
+
+import Server.Common.Car;
+import Server.Common.ChangeFeed;
+import Server.Common.Flight;
+import Server.Common.ResourceManager;
+import Server.Common.Room;
+import Server.Common.Trace;
+import Server.TCP.TCPMessage.Command;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/*
+ * Keeps a ResourceManager a read replica of another RM (its primary).
+ *
+ * The replica follows the primary's change feed, applying each change as it
+ * arrives (see ResourceManager.replicate). Whenever it cannot be sure it has
+ * seen every change (on start, after losing the primary, or after falling
+ * behind further than the primary's feed buffer) it empties itself and
+ * copies the primary's whole inventory again with EXPORT_INVENTORY, then
+ * carries on from the feed. Changes are absolute values, so those the copy
+ * already includes do no harm when they are applied again.
+ *
+ * Only flights, cars and rooms are replicated. Reads are refused (see
+ * checkFresh) while the replica may be further behind than its staleness
+ * bound, which includes the whole of a copy.
+ */
+public class ReplicaFollower implements ChangeFeedSubscriber.Listener {
+    private static final String[] KINDS = { "flight", "car", "room" };
+    private static final int EXPORT_PARTS = 16;
+
+    private final ResourceManager replica;
+    private final String primaryHost;
+    private final int primaryPort;
+    private final long maxStalenessMillis;
+    private final ChangeFeedSubscriber subscriber;
+
+    /* maxStalenessMillis is how far behind the primary the replica may be and still answer reads */
+    public ReplicaFollower(ResourceManager replica, String primaryHost, int primaryPort, long maxStalenessMillis) {
+        this.replica = replica;
+        this.primaryHost = primaryHost;
+        this.primaryPort = primaryPort;
+        this.maxStalenessMillis = maxStalenessMillis;
+        // An idle poll must come back well within the bound, or the replica would look stale
+        int waitMillis = (int) Math.max(10, Math.min(1000, maxStalenessMillis / 2));
+        this.subscriber = new ChangeFeedSubscriber(primaryHost, primaryPort, waitMillis, this);
+    }
+
+    public void start() {
+        subscriber.start();
+    }
+
+    public void close() {
+        subscriber.close();
+    }
+
+    public String getPrimary() {
+        return primaryHost + ":" + primaryPort;
+    }
+
+    /* Throws unless the replica is known to be within its staleness bound */
+    public void checkFresh() {
+        long lag = subscriber.getLagMillis();
+        if (lag > maxStalenessMillis) {
+            throw new IllegalStateException("Replica of " + getPrimary() + " is "
+                    + (lag == Long.MAX_VALUE ? "not in sync" : lag + " ms behind") + " (bound " + maxStalenessMillis + " ms)");
+        }
+    }
+
+    @Override
+    public void onReset() {
+        long start = System.nanoTime();
+        replica.clearInventory();
+        long items = 0;
+        TCPConnection connection = null;
+        try {
+            connection = new TCPConnection(primaryHost, primaryPort, 3000);
+            for (String kind : KINDS) {
+                for (int part = 0; part < EXPORT_PARTS; part++) {
+                    TCPMessage response = connection.send(new TCPMessage(0, Command.EXPORT_INVENTORY, kind, part, EXPORT_PARTS));
+                    if (response.getMessageType() == TCPMessage.MessageType.ERROR) {
+                        throw new IOException(response.getErrorMessage());
+                    }
+                    items += copy((String[]) response.getResult());
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Copying the inventory of " + getPrimary() + " failed", e);
+        } finally {
+            if (connection != null) {
+                connection.close();
+            }
+        }
+        long copied = items;
+        long millis = (System.nanoTime() - start) / 1000000;
+        Trace.info(() -> "Replica copied " + copied + " items from " + getPrimary() + " in " + millis + " ms");
+    }
+
+    @Override
+    public void onChanges(ChangeFeed.Changes changes) {
+        replica.replicate(changes.keys, changes.counts, changes.prices, changes.reserved);
+    }
+
+    /* Applies export lines ("kind,location,count,price"); returns how many there were */
+    private int copy(String[] lines) {
+        String[] keys = new String[lines.length];
+        int[] counts = new int[lines.length];
+        int[] prices = new int[lines.length];
+        for (int i = 0; i < lines.length; i++) {
+            String[] fields = lines[i].split(",");
+            switch (fields[0]) {
+                case "flight":
+                    keys[i] = Flight.getKey(Integer.parseInt(fields[1]));
+                    break;
+                case "car":
+                    keys[i] = Car.getKey(fields[1]);
+                    break;
+                default:
+                    keys[i] = Room.getKey(fields[1]);
+                    break;
+            }
+            counts[i] = Integer.parseInt(fields[2]);
+            prices[i] = Integer.parseInt(fields[3]);
+        }
+        replica.replicate(keys, counts, prices, null);
+        return lines.length;
+    }
+}
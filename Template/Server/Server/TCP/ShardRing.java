@@ -0,0 +1,70 @@
+package Server.TCP;
+
+import java.util.*;
+
+/*
+ * Consistent-hash ring that assigns item keys ("flight-12", "car-montreal",
+ * ...) to the shards of one RM.
+ *
+ * Each shard is hashed onto the ring at many points (virtual nodes), and a
+ * key belongs to the shard owning the first point at or after the key's own
+ * hash. Shards are placed by name (their host:port), not by their position
+ * in the list. So adding or removing a shard only moves the keys on the arcs
+ * it gains or loses, about 1/N of them, and the other shards keep theirs.
+ */
+public class ShardRing {
+    private static final int POINTS_PER_SHARD = 160;
+
+    private final int[] points;
+    private final int[] owners;
+    private final int shards;
+
+    public ShardRing(List<String> shardNames) {
+        this.shards = shardNames.size();
+        if (shards == 0) {
+            throw new IllegalArgumentException("A ring needs at least one shard");
+        }
+        long[] placed = new long[shards * POINTS_PER_SHARD];
+        for (int shard = 0; shard < shards; shard++) {
+            for (int i = 0; i < POINTS_PER_SHARD; i++) {
+                int point = hash(shardNames.get(shard) + "#" + i);
+                // Sort by point, with the shard index along for the ride
+                placed[shard * POINTS_PER_SHARD + i] = ((long) point << 32) | shard;
+            }
+        }
+        Arrays.sort(placed);
+        points = new int[placed.length];
+        owners = new int[placed.length];
+        for (int i = 0; i < placed.length; i++) {
+            points[i] = (int) (placed[i] >> 32);
+            owners[i] = (int) placed[i];
+        }
+    }
+
+    public int size() {
+        return shards;
+    }
+
+    /* Index in the shard list of the shard that holds key */
+    public int shardOf(String key) {
+        if (shards == 1) {
+            return 0;
+        }
+        int at = Arrays.binarySearch(points, hash(key));
+        if (at < 0) {
+            at = -at - 1;
+        }
+        return owners[at == points.length ? 0 : at];
+    }
+
+    /* String.hashCode with its bits mixed, since neighbouring keys have neighbouring hash codes */
+    private static int hash(String s) {
+        int h = s.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+}
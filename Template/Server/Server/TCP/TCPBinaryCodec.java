@@ -0,0 +1,456 @@
+package Server.TCP;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Vector;
+
+/*
+ * Hand-rolled encoding of TCPMessage, used instead of Java serialization.
+ *
+ * Frame body layout (all integers are unsigned LEB128 varints unless noted):
+ *   MAGIC, VERSION                       1 byte each
+ *   message type ordinal                 1 byte
+ *   message id
+ *   REQUEST:  command ordinal, argument count, tagged values
+ *   RESPONSE: tagged value
+ *   ERROR:    string
+ *   extension count, then (tag, zigzag value) pairs; unknown tags are skipped
+ *
+ * Extensions: EXT_REQUEST_ID carries TCPMessage.getRequestId, EXT_TIME_LEFT
+ * getTimeLeftMillis and EXT_RETRY_AFTER getRetryAfterMillis, each when set.
+ *
+ * Command ordinals go on the wire, so new commands must be appended to
+ * TCPMessage.Command rather than inserted.
+ */
+public final class TCPBinaryCodec {
+    public static final byte MAGIC = 'T';
+    public static final byte VERSION = 1;
+
+    private static final byte TAG_NULL = 0;
+    private static final byte TAG_INT = 1;
+    private static final byte TAG_TRUE = 2;
+    private static final byte TAG_FALSE = 3;
+    private static final byte TAG_STRING = 4;
+    private static final byte TAG_VECTOR = 5;
+    private static final byte TAG_INT_ARRAY = 6;
+    private static final byte TAG_STRING_ARRAY = 7;
+    private static final byte TAG_BOOLEAN_ARRAY = 8;
+    private static final byte TAG_LONG = 9;
+    private static final byte TAG_OBJECT_ARRAY = 10;
+    // Anything else still goes through Java serialization, one value at a time
+    private static final byte TAG_SERIALIZED = 127;
+
+    private static final int EXT_REQUEST_ID = 1;
+    private static final int EXT_TIME_LEFT = 2;
+    private static final int EXT_RETRY_AFTER = 3;
+    // Deepest nesting of arrays and vectors decoded; more is taken for a malicious frame
+    private static final int MAX_NESTING = 32;
+
+    private static final TCPMessage.MessageType[] MESSAGE_TYPES = TCPMessage.MessageType.values();
+    private static final TCPMessage.Command[] COMMANDS = TCPMessage.Command.values();
+
+    private TCPBinaryCodec() {
+    }
+
+    /* True if a frame body starts with this codec's header rather than a Java serialization stream */
+    public static boolean isBinaryFrame(byte[] frame, int length) {
+        return length >= 2 && frame[0] == MAGIC;
+    }
+
+    public static void encode(TCPMessage message, Encoder out) throws IOException {
+        out.writeByte(MAGIC);
+        out.writeByte(VERSION);
+        out.writeByte(message.getMessageType().ordinal());
+        out.writeVarInt(message.getMessageId());
+
+        switch (message.getMessageType()) {
+            case REQUEST:
+                Object[] arguments = message.getArguments();
+                out.writeVarInt(message.getCommand().ordinal());
+                out.writeVarInt(arguments == null ? 0 : arguments.length);
+                if (arguments != null) {
+                    for (Object argument : arguments) {
+                        writeValue(argument, out);
+                    }
+                }
+                break;
+            case RESPONSE:
+                writeValue(message.getResult(), out);
+                break;
+            case ERROR:
+                out.writeString(message.getErrorMessage());
+                break;
+        }
+
+        long timeLeft = message.getTimeLeftMillis();
+        long retryAfter = message.getRetryAfterMillis();
+        out.writeVarInt((message.getRequestId() != 0 ? 1 : 0) + (timeLeft != 0 ? 1 : 0) + (retryAfter != 0 ? 1 : 0));
+        if (message.getRequestId() != 0) {
+            out.writeVarInt(EXT_REQUEST_ID);
+            out.writeVarLong(zigzag(message.getRequestId()));
+        }
+        if (timeLeft != 0) {
+            out.writeVarInt(EXT_TIME_LEFT);
+            out.writeVarLong(zigzag(timeLeft));
+        }
+        if (retryAfter != 0) {
+            out.writeVarInt(EXT_RETRY_AFTER);
+            out.writeVarLong(zigzag(retryAfter));
+        }
+    }
+
+    public static TCPMessage decode(byte[] frame, int length) throws IOException {
+        try {
+            return decode(new Decoder(frame, length));
+        } catch (ArrayIndexOutOfBoundsException | NegativeArraySizeException e) {
+            throw new StreamCorruptedException("Malformed TCPMessage frame: " + e.getMessage());
+        }
+    }
+
+    private static TCPMessage decode(Decoder in) throws IOException {
+        if (in.readByte() != MAGIC) {
+            throw new StreamCorruptedException("Not a binary TCPMessage frame");
+        }
+        int version = in.readByte();
+        if (version > VERSION) {
+            throw new StreamCorruptedException("Unsupported TCPMessage frame version " + version);
+        }
+
+        TCPMessage.MessageType type = MESSAGE_TYPES[in.readByte()];
+        int messageId = in.readVarInt();
+        TCPMessage message;
+        switch (type) {
+            case REQUEST:
+                TCPMessage.Command command = COMMANDS[in.readVarInt()];
+                Object[] arguments = new Object[in.readCount()];
+                for (int i = 0; i < arguments.length; i++) {
+                    arguments[i] = readValue(in, 0);
+                }
+                message = new TCPMessage(messageId, command, arguments);
+                break;
+            case RESPONSE:
+                message = new TCPMessage(messageId, readValue(in, 0));
+                break;
+            default:
+                message = new TCPMessage(messageId, in.readString());
+                break;
+        }
+
+        int extensions = in.readVarInt();
+        for (int i = 0; i < extensions; i++) {
+            int tag = in.readVarInt();
+            long value = unzigzag(in.readVarLong());
+            if (tag == EXT_REQUEST_ID) {
+                message.setRequestId(value);
+            } else if (tag == EXT_TIME_LEFT) {
+                message.setTimeLeftMillis(value);
+            } else if (tag == EXT_RETRY_AFTER) {
+                message.setRetryAfterMillis(value);
+            }
+        }
+        return message;
+    }
+
+    private static void writeValue(Object value, Encoder out) throws IOException {
+        if (value == null) {
+            out.writeByte(TAG_NULL);
+        } else if (value instanceof Integer) {
+            out.writeByte(TAG_INT);
+            out.writeVarInt(zigzag((Integer) value));
+        } else if (value instanceof Boolean) {
+            out.writeByte((Boolean) value ? TAG_TRUE : TAG_FALSE);
+        } else if (value instanceof String) {
+            out.writeByte(TAG_STRING);
+            out.writeString((String) value);
+        } else if (value instanceof Vector) {
+            Vector<?> vector = (Vector<?>) value;
+            out.writeByte(TAG_VECTOR);
+            out.writeVarInt(vector.size());
+            for (Object element : vector) {
+                writeValue(element, out);
+            }
+        } else if (value instanceof int[]) {
+            int[] array = (int[]) value;
+            out.writeByte(TAG_INT_ARRAY);
+            out.writeVarInt(array.length);
+            for (int element : array) {
+                out.writeVarInt(zigzag(element));
+            }
+        } else if (value instanceof String[]) {
+            String[] array = (String[]) value;
+            out.writeByte(TAG_STRING_ARRAY);
+            out.writeVarInt(array.length);
+            for (String element : array) {
+                out.writeString(element);
+            }
+        } else if (value instanceof boolean[]) {
+            boolean[] array = (boolean[]) value;
+            out.writeByte(TAG_BOOLEAN_ARRAY);
+            out.writeVarInt(array.length);
+            for (boolean element : array) {
+                out.writeByte(element ? 1 : 0);
+            }
+        } else if (value instanceof Long) {
+            out.writeByte(TAG_LONG);
+            out.writeVarLong(zigzag((Long) value));
+        } else if (value instanceof Object[]) {
+            Object[] array = (Object[]) value;
+            out.writeByte(TAG_OBJECT_ARRAY);
+            out.writeVarInt(array.length);
+            for (Object element : array) {
+                writeValue(element, out);
+            }
+        } else {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream objectStream = new ObjectOutputStream(bytes)) {
+                objectStream.writeObject(value);
+            }
+            out.writeByte(TAG_SERIALIZED);
+            out.writeVarInt(bytes.size());
+            out.writeBytes(bytes.toByteArray(), 0, bytes.size());
+        }
+    }
+
+    private static Object readValue(Decoder in, int depth) throws IOException {
+        if (depth > MAX_NESTING) {
+            throw new StreamCorruptedException("Values nested deeper than " + MAX_NESTING + " in TCPMessage frame");
+        }
+        byte tag = in.readByte();
+        switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_INT:
+                return unzigzag(in.readVarInt());
+            case TAG_TRUE:
+                return Boolean.TRUE;
+            case TAG_FALSE:
+                return Boolean.FALSE;
+            case TAG_STRING:
+                return in.readString();
+            case TAG_VECTOR: {
+                int size = in.readCount();
+                Vector<Object> vector = new Vector<>(size);
+                for (int i = 0; i < size; i++) {
+                    vector.add(readValue(in, depth + 1));
+                }
+                return vector;
+            }
+            case TAG_INT_ARRAY: {
+                int[] array = new int[in.readCount()];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = unzigzag(in.readVarInt());
+                }
+                return array;
+            }
+            case TAG_STRING_ARRAY: {
+                String[] array = new String[in.readCount()];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = in.readString();
+                }
+                return array;
+            }
+            case TAG_BOOLEAN_ARRAY: {
+                boolean[] array = new boolean[in.readCount()];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = in.readByte() != 0;
+                }
+                return array;
+            }
+            case TAG_LONG:
+                return unzigzag(in.readVarLong());
+            case TAG_OBJECT_ARRAY: {
+                Object[] array = new Object[in.readCount()];
+                for (int i = 0; i < array.length; i++) {
+                    array[i] = readValue(in, depth + 1);
+                }
+                return array;
+            }
+            case TAG_SERIALIZED: {
+                int length = in.readVarInt();
+                int offset = in.skip(length);
+                try (ObjectInputStream objectStream = new ObjectInputStream(new ByteArrayInputStream(in.buffer, offset, length))) {
+                    return objectStream.readObject();
+                } catch (ClassNotFoundException e) {
+                    throw new InvalidClassException("Unknown class in serialized value: " + e.getMessage());
+                }
+            }
+            default:
+                throw new StreamCorruptedException("Unknown value tag " + tag);
+        }
+    }
+
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unzigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /* Growable output buffer; meant to be reused by one thread for many messages */
+    public static final class Encoder {
+        private byte[] buffer;
+        private int position;
+
+        public Encoder(int initialCapacity) {
+            buffer = new byte[initialCapacity];
+        }
+
+        public void reset() {
+            position = 0;
+        }
+
+        public byte[] buffer() {
+            return buffer;
+        }
+
+        public int size() {
+            return position;
+        }
+
+        public void writeByte(int value) {
+            ensure(1);
+            buffer[position++] = (byte) value;
+        }
+
+        /* Skips ahead, returning where the skipped bytes start so they can be filled in later */
+        public int reserve(int length) {
+            ensure(length);
+            int at = position;
+            position += length;
+            return at;
+        }
+
+        /* Writes a big-endian int at an earlier position, e.g. a frame length prefix */
+        public void putInt(int at, int value) {
+            buffer[at] = (byte) (value >>> 24);
+            buffer[at + 1] = (byte) (value >>> 16);
+            buffer[at + 2] = (byte) (value >>> 8);
+            buffer[at + 3] = (byte) value;
+        }
+
+        public void writeVarInt(int value) {
+            ensure(5);
+            while ((value & ~0x7F) != 0) {
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        public void writeVarLong(long value) {
+            ensure(10);
+            while ((value & ~0x7FL) != 0) {
+                buffer[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buffer[position++] = (byte) value;
+        }
+
+        public void writeString(String value) {
+            if (value == null) {
+                writeVarInt(0);
+                return;
+            }
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            // Length is stored +1 so that zero can mean null
+            writeVarInt(bytes.length + 1);
+            writeBytes(bytes, 0, bytes.length);
+        }
+
+        public void writeBytes(byte[] bytes, int offset, int length) {
+            ensure(length);
+            System.arraycopy(bytes, offset, buffer, position, length);
+            position += length;
+        }
+
+        private void ensure(int extra) {
+            if (position + extra > buffer.length) {
+                byte[] grown = new byte[Math.max(buffer.length * 2, position + extra)];
+                System.arraycopy(buffer, 0, grown, 0, position);
+                buffer = grown;
+            }
+        }
+    }
+
+    private static final class Decoder {
+        final byte[] buffer;
+        final int limit;
+        int position;
+
+        Decoder(byte[] buffer, int limit) {
+            this.buffer = buffer;
+            this.limit = limit;
+        }
+
+        byte readByte() throws EOFException {
+            if (position >= limit) {
+                throw new EOFException("Truncated TCPMessage frame");
+            }
+            return buffer[position++];
+        }
+
+        int readVarInt() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 35; shift += 7) {
+                byte b = readByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new StreamCorruptedException("Malformed varint");
+        }
+
+        long readVarLong() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 70; shift += 7) {
+                byte b = readByte();
+                value |= (long) (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new StreamCorruptedException("Malformed varint");
+        }
+
+        /*
+         * Reads the element count of an array or vector. Every element takes at
+         * least a byte, so a count larger than what is left of the frame is
+         * corrupt, and is refused before anything that size is allocated.
+         */
+        int readCount() throws IOException {
+            int count = readVarInt();
+            if (count < 0 || count > limit - position) {
+                throw new StreamCorruptedException("Bad element count " + count + " in TCPMessage frame");
+            }
+            return count;
+        }
+
+        String readString() throws IOException {
+            int length = readVarInt() - 1;
+            if (length < 0) {
+                return null;
+            }
+            int offset = skip(length);
+            return new String(buffer, offset, length, StandardCharsets.UTF_8);
+        }
+
+        int skip(int length) throws EOFException {
+            if (length < 0 || length > limit - position) {
+                throw new EOFException("Truncated TCPMessage frame");
+            }
+            int offset = position;
+            position += length;
+            return offset;
+        }
+    }
+}
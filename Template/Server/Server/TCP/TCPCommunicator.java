@@ -3,30 +3,84 @@ package Server.TCP;
 import java.io.*;
 import java.net.Socket;
 import java.net.SocketException;
+import java.util.Arrays;
 
 /* Handles serialization, framing, and socket */
 public class TCPCommunicator {
+    /* Encoding used for outgoing frames; incoming frames of either kind are always accepted */
+    public enum Codec {
+        JAVA, BINARY
+    }
+
+    private static final int INITIAL_BUFFER_SIZE = 512;
+    // Per-thread buffers grown past this are dropped after use rather than kept around
+    private static final int MAX_RETAINED_BUFFER_SIZE = 1 << 20;
+    // Largest frame body accepted from a peer; a longer length prefix is refused before anything is allocated
+    public static final int MAX_FRAME_SIZE = Integer.getInteger("tcp.max.frame.bytes", 64 * 1024 * 1024);
+
+    private static volatile Codec codec = Codec.valueOf(System.getProperty("tcp.codec", "binary").toUpperCase());
+
+    private static final ThreadLocal<TCPBinaryCodec.Encoder> encoders =
+            ThreadLocal.withInitial(() -> new TCPBinaryCodec.Encoder(INITIAL_BUFFER_SIZE));
+    private static final ThreadLocal<byte[]> receiveBuffers =
+            ThreadLocal.withInitial(() -> new byte[INITIAL_BUFFER_SIZE]);
+
+    public static Codec getCodec() {
+        return codec;
+    }
+
+    public static void setCodec(Codec newCodec) {
+        codec = newCodec;
+    }
+
     public static void sendMessage(Socket socket, TCPMessage message) throws IOException {
         try {
+            TCPBinaryCodec.Encoder encoder = encoders.get();
+            encoder.reset();
+            encodeFrame(message, encoder);
+
+            // The whole frame goes out in one write
+            OutputStream out = socket.getOutputStream();
+            out.write(encoder.buffer(), 0, encoder.size());
+            out.flush();
+
+            if (encoder.buffer().length > MAX_RETAINED_BUFFER_SIZE) {
+                encoders.remove();
+            }
+
+        } catch (SocketException e) {
+            throw new IOException("Socket closed during message send", e);
+        }
+    }
+
+    /* Appends a complete frame (length prefix and body) in the configured codec */
+    public static void encodeFrame(TCPMessage message, TCPBinaryCodec.Encoder out) throws IOException {
+        // Length prefix is patched in once the body size is known
+        int lengthAt = out.reserve(4);
+        if (codec == Codec.BINARY) {
+            TCPBinaryCodec.encode(message, out);
+        } else {
             // Serialize message
             ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
             ObjectOutputStream objectStream = new ObjectOutputStream(byteStream);
             objectStream.writeObject(message);
             objectStream.flush();
-            byte[] messageBytes = byteStream.toByteArray();
-
-            // Send message
-            DataOutputStream out = new DataOutputStream(socket.getOutputStream());
-            out.writeInt(messageBytes.length);
-            out.write(messageBytes);
-            out.flush();
-
+            out.writeBytes(byteStream.toByteArray(), 0, byteStream.size());
             objectStream.close();
-            byteStream.close();
+        }
+        out.putInt(lengthAt, out.size() - lengthAt - 4);
+    }
 
-        } catch (SocketException e) {
-            throw new IOException("Socket closed during message send", e);
+    /* Encodes one frame into a new array, for callers that queue frames rather than write them */
+    public static byte[] encodeFrame(TCPMessage message) throws IOException {
+        TCPBinaryCodec.Encoder encoder = encoders.get();
+        encoder.reset();
+        encodeFrame(message, encoder);
+        byte[] frame = Arrays.copyOf(encoder.buffer(), encoder.size());
+        if (encoder.buffer().length > MAX_RETAINED_BUFFER_SIZE) {
+            encoders.remove();
         }
+        return frame;
     }
 
 
@@ -36,23 +90,44 @@ public class TCPCommunicator {
 
 
             int messageLength = in.readInt();
-            byte[] messageBytes = new byte[messageLength];
-            in.readFully(messageBytes);
-
-            // Deserialize message
-            ByteArrayInputStream byteStream = new ByteArrayInputStream(messageBytes);
-            ObjectInputStream objectStream = new ObjectInputStream(byteStream);
-            TCPMessage message = (TCPMessage) objectStream.readObject();
-            objectStream.close();
-            byteStream.close();
+            checkFrameLength(messageLength);
+            byte[] messageBytes = receiveBuffers.get();
+            if (messageBytes.length < messageLength) {
+                messageBytes = new byte[messageLength];
+                if (messageLength <= MAX_RETAINED_BUFFER_SIZE) {
+                    receiveBuffers.set(messageBytes);
+                }
+            }
+            in.readFully(messageBytes, 0, messageLength);
 
-            return message;
+            return decodeFrame(messageBytes, messageLength);
 
         } catch (SocketException e) {
             throw new IOException("Socket closed during message receive", e);
         }
     }
 
+    /* Refuses a frame length prefix that is negative or larger than MAX_FRAME_SIZE */
+    public static void checkFrameLength(int length) throws IOException {
+        if (length < 0 || length > MAX_FRAME_SIZE) {
+            throw new StreamCorruptedException("Frame length " + length + " outside 0.." + MAX_FRAME_SIZE);
+        }
+    }
+
+    /* Decodes a frame body (without its length prefix), whichever codec produced it */
+    public static TCPMessage decodeFrame(byte[] body, int length) throws IOException, ClassNotFoundException {
+        if (TCPBinaryCodec.isBinaryFrame(body, length)) {
+            return TCPBinaryCodec.decode(body, length);
+        }
+
+        // Deserialize message
+        ByteArrayInputStream byteStream = new ByteArrayInputStream(body, 0, length);
+        ObjectInputStream objectStream = new ObjectInputStream(byteStream);
+        TCPMessage message = (TCPMessage) objectStream.readObject();
+        objectStream.close();
+        return message;
+    }
+
     public static void closeSocket(Socket socket) {
         if (socket != null && !socket.isClosed()) {
             try {
@@ -62,4 +137,4 @@ public class TCPCommunicator {
             }
         }
     }
-}
\ No newline at end of file
+}
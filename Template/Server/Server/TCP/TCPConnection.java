@@ -0,0 +1,179 @@
+package Server.TCP;
+
+import Server.Common.Trace;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Multiplexed request/response connection. Any number of requests may be in
+ * flight at once; each one is stamped with a connection-local message id and
+ * a single reader thread completes the matching future when the response
+ * arrives, so responses may come back in any order.
+ *
+ * A request with a deadline fails with a SocketTimeoutException once it
+ * passes, freeing whoever waits on it even if the peer has stalled; one
+ * timing wheel shared by every connection keeps track of the deadlines.
+ */
+public class TCPConnection {
+    private static final TimingWheel DEADLINES = new TimingWheel("TCPConnection-deadlines", 10);
+
+    private final Socket socket;
+    private final String name;
+    private final Map<Integer, Pending> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger nextMessageId = new AtomicInteger(1);
+    private final Object writeLock = new Object();
+    private volatile boolean open = true;
+
+    // Original message id of the request, restored on the response
+    private static class Pending {
+        final int callerMessageId;
+        final CompletableFuture<TCPMessage> future = new CompletableFuture<>();
+        volatile TimingWheel.Timeout timeout;
+
+        Pending(int callerMessageId) {
+            this.callerMessageId = callerMessageId;
+        }
+    }
+
+    public TCPConnection(String host, int port) throws IOException {
+        this(host, port, 0);
+    }
+
+    public TCPConnection(String host, int port, int connectTimeoutMillis) throws IOException {
+        this(connect(host, port, connectTimeoutMillis));
+    }
+
+    private static Socket connect(String host, int port, int connectTimeoutMillis) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), connectTimeoutMillis);
+            // Small pipelined frames should not wait on Nagle's algorithm
+            socket.setTcpNoDelay(true);
+            return socket;
+        } catch (IOException e) {
+            TCPCommunicator.closeSocket(socket);
+            throw e;
+        }
+    }
+
+    public TCPConnection(Socket socket) {
+        this.socket = socket;
+        this.name = String.valueOf(socket.getRemoteSocketAddress());
+        Thread reader = new Thread(this::readResponses, "TCPConnection-reader " + name);
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    /* Sends a request without waiting; the future completes with the response */
+    public CompletableFuture<TCPMessage> sendAsync(TCPMessage request) {
+        int messageId = nextMessageId.getAndIncrement();
+        Pending entry = new Pending(request.getMessageId());
+        pending.put(messageId, entry);
+
+        if (!open) {
+            failPending(messageId, new IOException("Connection to " + name + " is closed"));
+            return entry.future;
+        }
+        if (request.hasDeadline()) {
+            if (request.isExpired()) {
+                failPending(messageId, new SocketTimeoutException("Deadline of " + request.getCommand() + " to " + name + " passed before it was sent"));
+                return entry.future;
+            }
+            entry.timeout = DEADLINES.schedule(request.getDeadline(), () -> failPending(messageId,
+                    new SocketTimeoutException("No response to " + request.getCommand() + " from " + name + " by its deadline")));
+        }
+
+        try {
+            TCPMessage wire = new TCPMessage(messageId, request.getCommand(), request.getArguments());
+            wire.setRequestId(request.getRequestId());
+            wire.withDeadlineOf(request);
+            synchronized (writeLock) {
+                TCPCommunicator.sendMessage(socket, wire);
+            }
+        } catch (IOException e) {
+            failPending(messageId, e);
+            close();
+        }
+        return entry.future;
+    }
+
+    /* Sends a request and blocks until its own response arrives */
+    public TCPMessage send(TCPMessage request) throws IOException {
+        try {
+            return sendAsync(request).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted waiting for response from " + name);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException("Request to " + name + " failed: " + cause.getMessage(), cause);
+        }
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    public void close() {
+        open = false;
+        TCPCommunicator.closeSocket(socket);
+        IOException closed = new IOException("Connection to " + name + " closed");
+        for (Integer messageId : pending.keySet()) {
+            failPending(messageId, closed);
+        }
+    }
+
+    private void readResponses() {
+        try {
+            while (open) {
+                TCPMessage response = TCPCommunicator.receiveMessage(socket);
+                Pending entry = pending.remove(response.getMessageId());
+                if (entry == null) {
+                    // Its deadline passed; the caller has moved on
+                    Trace.debug(() -> "Dropping response with unknown id from " + name + ": " + response);
+                    continue;
+                }
+                cancelTimeout(entry);
+                entry.future.complete(response.withMessageId(entry.callerMessageId));
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            // A peer that went away (TCPCommunicator wraps socket errors) is not worth reporting;
+            // either way, fall through and fail whatever is still waiting
+            boolean peerGone = e instanceof EOFException || e.getCause() instanceof SocketException;
+            if (open && !peerGone) {
+                System.err.println("Error reading from " + name + ": " + e.getMessage());
+            }
+        } finally {
+            close();
+        }
+    }
+
+    private void failPending(int messageId, IOException cause) {
+        Pending entry = pending.remove(messageId);
+        if (entry != null) {
+            cancelTimeout(entry);
+            entry.future.completeExceptionally(cause);
+        }
+    }
+
+    private static void cancelTimeout(Pending entry) {
+        TimingWheel.Timeout timeout = entry.timeout;
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package Server.TCP;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Executors for the blocking connection and request handlers. With
+ * -Dtcp.threads=virtual each handler gets its own virtual thread, so the
+ * one-thread-per-connection code can hold far more connections than a
+ * platform thread pool would allow. Virtual threads need Java 21; on older
+ * runtimes the platform pool is used and a warning is printed.
+ */
+public final class TCPExecutors {
+    public enum Mode { PLATFORM, VIRTUAL }
+
+    private static final Method NEW_VIRTUAL_EXECUTOR = findVirtualExecutorFactory();
+    private static volatile boolean warned = false;
+
+    private TCPExecutors() {
+    }
+
+    /* Mode from -Dtcp.threads, read on every call so tests and benchmarks can switch it */
+    public static Mode configuredMode() {
+        return Mode.valueOf(System.getProperty("tcp.threads", "platform").toUpperCase());
+    }
+
+    public static boolean isVirtualSupported() {
+        return NEW_VIRTUAL_EXECUTOR != null;
+    }
+
+    /* A thread-per-task executor for handlers in the configured mode */
+    public static ExecutorService newHandlerExecutor(String name) {
+        return newHandlerExecutor(name, configuredMode());
+    }
+
+    public static ExecutorService newHandlerExecutor(String name, Mode mode) {
+        if (mode == Mode.VIRTUAL) {
+            if (NEW_VIRTUAL_EXECUTOR != null) {
+                try {
+                    return (ExecutorService) NEW_VIRTUAL_EXECUTOR.invoke(null);
+                } catch (ReflectiveOperationException e) {
+                    System.err.println("Could not create virtual thread executor: " + e.getMessage());
+                }
+            } else if (!warned) {
+                warned = true;
+                System.err.println("Virtual threads need Java 21 or later (running "
+                        + System.getProperty("java.version") + "), using platform threads");
+            }
+        }
+
+        AtomicInteger count = new AtomicInteger();
+        ThreadFactory factory = r -> new Thread(r, name + "-" + count.incrementAndGet());
+        return Executors.newCachedThreadPool(factory);
+    }
+
+    private static Method findVirtualExecutorFactory() {
+        try {
+            return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
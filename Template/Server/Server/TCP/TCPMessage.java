@@ -1,5 +1,9 @@
 package Server.TCP;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
 
 public class TCPMessage implements Serializable {
     private static final long serialVersionUID = 1L;
@@ -15,7 +19,19 @@ public class TCPMessage implements Serializable {
         QUERY_FLIGHT, QUERY_CARS, QUERY_ROOMS, QUERY_CUSTOMER,
         QUERY_FLIGHT_PRICE, QUERY_CARS_PRICE, QUERY_ROOMS_PRICE,
         RESERVE_FLIGHT, RESERVE_CAR, RESERVE_ROOM,
-        BUNDLE, GET_NAME
+        BUNDLE, GET_NAME,
+        // Bulk variants; arguments are parallel arrays
+        ADD_FLIGHTS, ADD_CARS_BATCH, ADD_ROOMS_BATCH,
+        QUERY_FLIGHTS, QUERY_CARS_BATCH, QUERY_ROOMS_BATCH,
+        RESERVE_FLIGHTS, RESERVE_CARS, RESERVE_ROOMS,
+        EXPORT_INVENTORY,
+        POLL_CHANGES,
+        // Two-phase reservation across RMs; items are given by key ("flight-12")
+        PREPARE_RESERVE, COMMIT_RESERVE, ABORT_RESERVE,
+        // Reserves items of any kinds at one RM, all or nothing
+        RESERVE_ITEMS,
+        // Undoes a COMMIT_RESERVE whose transaction another RM could not commit
+        CANCEL_RESERVE
     }
 
     private MessageType messageType;
@@ -24,6 +40,16 @@ public class TCPMessage implements Serializable {
     private Object result;
     private String errorMessage;
     private int messageId;
+    // Set by clients that may retry: the same on every attempt, so servers can replay the first
+    // answer (see ReplayCache). The high 32 bits identify the client. 0 means none.
+    private long requestId;
+    // System.nanoTime by which the sender needs the answer; 0 for none. Only the time left goes
+    // on the wire (timeLeftMillis under Java serialization), so the two ends' clocks may differ.
+    private transient long deadline;
+    private long timeLeftMillis;
+    // On an ERROR refusing the request because the server is overloaded: how long to wait
+    // before trying again; 0 otherwise
+    private long retryAfterMillis;
 
     // requests
     public TCPMessage(int messageId, Command command, Object... arguments) {
@@ -54,6 +80,83 @@ public class TCPMessage implements Serializable {
     public Object getResult() { return result; }
     public String getErrorMessage() { return errorMessage; }
     public int getMessageId() { return messageId; }
+    public long getRequestId() { return requestId; }
+
+    public void setRequestId(long requestId) {
+        this.requestId = requestId;
+    }
+
+    public long getRetryAfterMillis() { return retryAfterMillis; }
+
+    public void setRetryAfterMillis(long retryAfterMillis) {
+        this.retryAfterMillis = retryAfterMillis;
+    }
+
+    /* The same response under another message id */
+    public TCPMessage withMessageId(int messageId) {
+        TCPMessage copy = messageType == MessageType.ERROR
+                ? new TCPMessage(messageId, errorMessage) : new TCPMessage(messageId, result);
+        copy.requestId = requestId;
+        copy.retryAfterMillis = retryAfterMillis;
+        return copy;
+    }
+
+    public long getDeadline() { return deadline; }
+
+    public void setDeadline(long deadline) {
+        // 0 means none, so a deadline that happens to fall on 0 moves a nanosecond
+        this.deadline = deadline == 0 ? 1 : deadline;
+    }
+
+    public void clearDeadline() {
+        this.deadline = 0;
+    }
+
+    /* Sets the deadline timeoutMillis from now */
+    public void setTimeout(long timeoutMillis) {
+        setDeadline(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis));
+    }
+
+    /* Gives this message the same deadline as parent, for work done on parent's behalf */
+    public TCPMessage withDeadlineOf(TCPMessage parent) {
+        this.deadline = parent.deadline;
+        return this;
+    }
+
+    public boolean hasDeadline() {
+        return deadline != 0;
+    }
+
+    public boolean isExpired() {
+        return deadline != 0 && System.nanoTime() - deadline >= 0;
+    }
+
+    /* Time left before the deadline, at least 1 ms so that it still reads as a deadline; 0 for none */
+    public long getTimeLeftMillis() {
+        if (deadline == 0) {
+            return 0;
+        }
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime()));
+    }
+
+    /* Sets the deadline from the time left as sent by the other end; 0 for none */
+    public void setTimeLeftMillis(long timeLeftMillis) {
+        if (timeLeftMillis > 0) {
+            setTimeout(timeLeftMillis);
+        } else {
+            clearDeadline();
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        timeLeftMillis = getTimeLeftMillis();
+        out.defaultWriteObject();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        setTimeLeftMillis(timeLeftMillis);
+    }
 
     public void setResult(Object result) {
         this.result = result;
@@ -1,17 +1,25 @@
 package Server.TCP;
 
+import Server.Common.Car;
+import Server.Common.ChangeFeed;
+import Server.Common.Flight;
+import Server.Common.Room;
+import Server.Common.Trace;
 import Server.TCP.TCPMessage.Command;
 
 import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class TCPMiddleware {
     private static final int DEFAULT_CLIENT_PORT = 17000;
     private static final int FLIGHT_RM_PORT = 18081;
     private static final int CAR_RM_PORT = 18082;
     private static final int ROOM_RM_PORT = 18083;
+    private static final String[] RM_TYPES = { "flight", "car", "room" };
 
     private String flightRMHost;
     private String carRMHost;
@@ -19,8 +27,47 @@ public class TCPMiddleware {
 
     private ServerSocket clientServerSocket;
     private ExecutorService clientThreadPool;
+    private ExecutorService requestThreadPool;
     private boolean running = false;
     private int clientPort;
+    // How long an operation spread over several RMs waits for all of them to answer; by default as
+    // long as one RM request may take, since the RMs answer in parallel
+    private final long fanoutTimeoutMillis = Long.getLong("middleware.fanout.timeout.ms",
+            Long.getLong("middleware.rm.timeout.ms", 30000));
+    // How long a bundle waits for its prepares, and for each round of commits; shorter than the
+    // fan-out timeout because the RMs' holds must outlast it plus commitRetryMillis
+    private final long bundleTimeoutMillis = Long.getLong("middleware.bundle.timeout.ms", 10000);
+    // How long a committed bundle's decision is resent to RMs that have not acknowledged it; the
+    // RMs' rm.hold.timeout.ms must outlast this plus the prepare
+    private final long commitRetryMillis = Long.getLong("middleware.commit.retry.ms", 15000);
+    // Bundle transaction ids; a random start keeps them apart from other middlewares' at the same RMs
+    private final AtomicLong nextTxId = new AtomicLong(new Random().nextLong());
+    // The shards of each RM type (-Dmiddleware.shards.<type>=host:port,...; by default the one RM
+    // at its usual port), and the ring that spreads items over them
+    private final Map<String, List<Shard>> shards = new HashMap<>();
+    private final Map<String, ShardRing> rings = new HashMap<>();
+    // Availability and price answers, invalidated by the changes this middleware forwards
+    private final QueryCache queryCache = new QueryCache(Integer.getInteger("middleware.cache.size", 100000),
+            Long.getLong("middleware.cache.ttl.ms", 0));
+    // Keep the cache in step with changes made at the RMs by anyone else
+    private final List<ChangeFeedSubscriber> feedSubscribers = new ArrayList<>();
+    // Read replicas of each shard take turns at its queries
+    private final AtomicInteger nextReplica = new AtomicInteger();
+    // How long a cached answer read from a replica is kept at most
+    private final long replicaCacheMillis = Long.getLong("middleware.replicas.cache.ms", 1000);
+    // Responses to recent changes, replayed when a client retries one
+    private final ReplayCache replayCache = new ReplayCache(Integer.getInteger("middleware.replay.per.client", 1024),
+            Long.getLong("middleware.replay.ttl.ms", 60000));
+    // How many requests the middleware and each client may have in progress at once, and the
+    // adaptive limit on those needing each RM type; past them requests are refused at once
+    private final AdmissionControl admission = new AdmissionControl(Integer.getInteger("middleware.max.requests", 4096),
+            Integer.getInteger("middleware.client.max.requests", 256), Long.getLong("middleware.retry.after.ms", 100));
+    private final Map<String, AdmissionControl.Limit> rmLimits = new HashMap<>();
+    // Longest a request waits for its RM type's limit to let it through
+    private final long rmQueueNanos = TimeUnit.MILLISECONDS.toNanos(Long.getLong("middleware.rm.queue.ms", 1000));
+    // Client connections open at once; further ones are closed as soon as they are accepted
+    private final int maxClients = Integer.getInteger("middleware.max.clients", 1024);
+    private final AtomicInteger clients = new AtomicInteger();
 
     public TCPMiddleware(int clientPort) {
         this(clientPort, "localhost", "localhost", "localhost");
@@ -31,7 +78,79 @@ public class TCPMiddleware {
         this.flightRMHost = flightHost;
         this.carRMHost = carHost;
         this.roomRMHost = roomHost;
-        this.clientThreadPool = Executors.newCachedThreadPool();
+        this.clientThreadPool = TCPExecutors.newHandlerExecutor("Middleware-client");
+        this.requestThreadPool = TCPExecutors.newHandlerExecutor("Middleware-request");
+
+        int poolSize = Integer.getInteger("middleware.rm.connections", 4);
+        long healthCheckInterval = Long.getLong("middleware.rm.health.interval.ms", 5000);
+        for (String rmType : RM_TYPES) {
+            AdmissionControl.Limit limit = new AdmissionControl.Limit(rmType,
+                    Integer.getInteger("middleware.rm.limit", 64),
+                    Integer.getInteger("middleware.rm.limit.min", 4),
+                    Integer.getInteger("middleware.rm.limit.max", 1024),
+                    Double.parseDouble(System.getProperty("middleware.rm.limit.tolerance", "2")),
+                    Boolean.parseBoolean(System.getProperty("middleware.rm.limit.adaptive", "true")));
+            rmLimits.put(rmType, limit);
+            List<String> addresses = parseAddresses(System.getProperty("middleware.shards." + rmType,
+                    getHostForRM(rmType) + ":" + getPortForRM(rmType)));
+            List<Shard> rmShards = new ArrayList<>();
+            for (int i = 0; i < addresses.size(); i++) {
+                String name = addresses.size() == 1 ? rmType : rmType + " shard " + i;
+                // An unsharded RM's replicas are middleware.replicas.<type>, a shard's middleware.replicas.<type>.<i>
+                String replicasProperty = "middleware.replicas." + rmType + (addresses.size() == 1 ? "" : "." + i);
+                List<RMConnectionPool> replicas = new ArrayList<>();
+                for (String replica : parseAddresses(System.getProperty(replicasProperty, ""))) {
+                    replicas.add(newPool(name + " replica", replica, poolSize, healthCheckInterval));
+                }
+                rmShards.add(new Shard(addresses.get(i), newPool(name, addresses.get(i), poolSize, healthCheckInterval), replicas, limit));
+            }
+            shards.put(rmType, rmShards);
+            rings.put(rmType, new ShardRing(addresses));
+        }
+    }
+
+    private static List<String> parseAddresses(String list) {
+        List<String> addresses = new ArrayList<>();
+        for (String address : list.split(",")) {
+            address = address.trim();
+            if (!address.isEmpty()) {
+                if (address.lastIndexOf(':') < 0) {
+                    throw new IllegalArgumentException("RM address must be host:port, not " + address);
+                }
+                addresses.add(address);
+            }
+        }
+        return addresses;
+    }
+
+    private static RMConnectionPool newPool(String name, String address, int size, long healthCheckInterval) {
+        int colon = address.lastIndexOf(':');
+        return new RMConnectionPool(name, address.substring(0, colon), Integer.parseInt(address.substring(colon + 1)),
+                size, healthCheckInterval);
+    }
+
+    /* One RM holding part of a type's items (all of them if the type is not sharded), with its read replicas */
+    private static class Shard {
+        final String address;
+        final RMConnectionPool primary;
+        final List<RMConnectionPool> replicas;
+        // The admission limit of the shard's RM type, which its round trips adjust
+        final AdmissionControl.Limit limit;
+
+        Shard(String address, RMConnectionPool primary, List<RMConnectionPool> replicas, AdmissionControl.Limit limit) {
+            this.address = address;
+            this.primary = primary;
+            this.replicas = replicas;
+            this.limit = limit;
+        }
+
+        String host() {
+            return address.substring(0, address.lastIndexOf(':'));
+        }
+
+        int port() {
+            return Integer.parseInt(address.substring(address.lastIndexOf(':') + 1));
+        }
     }
 
     public void startServer() {
@@ -40,14 +159,28 @@ public class TCPMiddleware {
             running = true;
             System.out.println("TCP Middleware started on port " + clientPort);
             System.out.println("Connecting to ResourceManagers:");
-            System.out.println("  Flight RM: " + flightRMHost + ":" + FLIGHT_RM_PORT);
-            System.out.println("  Car RM: " + carRMHost + ":" + CAR_RM_PORT);
-            System.out.println("  Room RM: " + roomRMHost + ":" + ROOM_RM_PORT);
+            for (String rmType : RM_TYPES) {
+                for (Shard shard : shards.get(rmType)) {
+                    System.out.println("  " + shard.primary.getName() + " RM: " + shard.address);
+                    shard.primary.connectAll();
+                    for (RMConnectionPool replica : shard.replicas) {
+                        System.out.println("    read replica: " + replica.getAddress());
+                        replica.connectAll();
+                    }
+                }
+            }
+            subscribeToChanges();
 
             while (running) {
                 try {
                     Socket clientSocket = clientServerSocket.accept();
-                    System.out.println("New client connected: " + clientSocket.getRemoteSocketAddress());
+                    if (clients.incrementAndGet() > maxClients) {
+                        clients.decrementAndGet();
+                        Trace.warn(() -> "Refused client " + clientSocket.getRemoteSocketAddress() + ": already " + maxClients + " connected");
+                        TCPCommunicator.closeSocket(clientSocket);
+                        continue;
+                    }
+                    Trace.info(() -> "New client connected: " + clientSocket.getRemoteSocketAddress());
                     clientThreadPool.submit(new ClientHandler(clientSocket));
 
                 } catch (SocketException e) {
@@ -64,10 +197,35 @@ public class TCPMiddleware {
         }
     }
 
-    private Socket getRMConnection(String rmType) throws IOException {
-        int port = getPortForRM(rmType);
-        String host = getHostForRM(rmType);
-        return new Socket(host, port);
+    /* Invalidates cached answers as the RMs report changes, if the cache is on */
+    private void subscribeToChanges() {
+        if (!queryCache.isEnabled() || !Boolean.parseBoolean(System.getProperty("middleware.cache.feed", "true"))) {
+            return;
+        }
+        for (String rmType : RM_TYPES) {
+            for (Shard shard : shards.get(rmType)) {
+                subscribeToChanges(shard);
+            }
+        }
+    }
+
+    private void subscribeToChanges(Shard shard) {
+        ChangeFeedSubscriber subscriber = new ChangeFeedSubscriber(shard.host(), shard.port(), 1000,
+                new ChangeFeedSubscriber.Listener() {
+                    @Override
+                    public void onReset() {
+                        queryCache.invalidateAll();
+                    }
+
+                    @Override
+                    public void onChanges(ChangeFeed.Changes changes) {
+                        for (String key : changes.keys) {
+                            queryCache.invalidate(key);
+                        }
+                    }
+                });
+        feedSubscribers.add(subscriber);
+        subscriber.start();
     }
 
     private int getPortForRM(String rmType) {
@@ -88,6 +246,122 @@ public class TCPMiddleware {
         }
     }
 
+    /* True for the queries a read replica can answer */
+    private static boolean isReplicaRead(Command command) {
+        switch (command) {
+            case QUERY_FLIGHT:
+            case QUERY_FLIGHT_PRICE:
+            case QUERY_CARS:
+            case QUERY_CARS_PRICE:
+            case QUERY_ROOMS:
+            case QUERY_ROOMS_PRICE:
+            case QUERY_FLIGHTS:
+            case QUERY_CARS_BATCH:
+            case QUERY_ROOMS_BATCH:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /* The shard of an RM type that holds the item with itemKey; the first shard if itemKey is null */
+    private Shard shardFor(String rmType, String itemKey) {
+        List<Shard> rmShards = shards.get(rmType);
+        return itemKey == null ? rmShards.get(0) : rmShards.get(rings.get(rmType).shardOf(itemKey));
+    }
+
+    /* Key of the one item a request is about, or null for requests not about one item */
+    private static String itemKey(Command command, Object[] args) {
+        switch (command) {
+            case ADD_FLIGHT:
+            case DELETE_FLIGHT:
+            case QUERY_FLIGHT:
+            case QUERY_FLIGHT_PRICE:
+                return Flight.getKey((Integer) args[0]);
+            case RESERVE_FLIGHT:
+                return Flight.getKey((Integer) args[1]);
+            case ADD_CARS:
+            case DELETE_CARS:
+            case QUERY_CARS:
+            case QUERY_CARS_PRICE:
+                return Car.getKey((String) args[0]);
+            case RESERVE_CAR:
+                return Car.getKey((String) args[1]);
+            case ADD_ROOMS:
+            case DELETE_ROOMS:
+            case QUERY_ROOMS:
+            case QUERY_ROOMS_PRICE:
+                return Room.getKey((String) args[0]);
+            case RESERVE_ROOM:
+                return Room.getKey((String) args[1]);
+            default:
+                return null;
+        }
+    }
+
+    /* Bulk commands, whose array arguments hold one element per item */
+    private static boolean isBatch(Command command) {
+        switch (command) {
+            case ADD_FLIGHTS:
+            case ADD_CARS_BATCH:
+            case ADD_ROOMS_BATCH:
+            case QUERY_FLIGHTS:
+            case QUERY_CARS_BATCH:
+            case QUERY_ROOMS_BATCH:
+                return true;
+            default:
+                return isBatchReserve(command);
+        }
+    }
+
+    private static boolean isBatchReserve(Command command) {
+        return command == Command.RESERVE_FLIGHTS || command == Command.RESERVE_CARS || command == Command.RESERVE_ROOMS;
+    }
+
+    /* Keys of the items in a bulk request, in order */
+    private static String[] batchKeys(String rmType, Command command, Object[] args) {
+        Object items = args[isBatchReserve(command) ? 1 : 0];
+        if (items instanceof int[]) {
+            int[] flightNums = (int[]) items;
+            String[] keys = new String[flightNums.length];
+            for (int i = 0; i < flightNums.length; i++) {
+                keys[i] = Flight.getKey(flightNums[i]);
+            }
+            return keys;
+        }
+        String[] locations = (String[]) items;
+        String[] keys = new String[locations.length];
+        for (int i = 0; i < locations.length; i++) {
+            keys[i] = "room".equals(rmType) ? Room.getKey(locations[i]) : Car.getKey(locations[i]);
+        }
+        return keys;
+    }
+
+    /* A bulk request's arguments for the items at indices only; arguments that are not arrays are kept as they are */
+    private static Object[] slice(Object[] args, int[] indices) {
+        Object[] sliced = new Object[args.length];
+        for (int a = 0; a < args.length; a++) {
+            if (args[a] instanceof int[]) {
+                int[] all = (int[]) args[a];
+                int[] part = new int[indices.length];
+                for (int i = 0; i < indices.length; i++) {
+                    part[i] = all[indices[i]];
+                }
+                sliced[a] = part;
+            } else if (args[a] instanceof String[]) {
+                String[] all = (String[]) args[a];
+                String[] part = new String[indices.length];
+                for (int i = 0; i < indices.length; i++) {
+                    part[i] = all[indices[i]];
+                }
+                sliced[a] = part;
+            } else {
+                sliced[a] = args[a];
+            }
+        }
+        return sliced;
+    }
+
     private String determineRMType(Command command) {
         switch (command) {
             case ADD_FLIGHT:
@@ -95,6 +369,9 @@ public class TCPMiddleware {
             case QUERY_FLIGHT:
             case QUERY_FLIGHT_PRICE:
             case RESERVE_FLIGHT:
+            case ADD_FLIGHTS:
+            case QUERY_FLIGHTS:
+            case RESERVE_FLIGHTS:
                 return "flight";
 
             case ADD_CARS:
@@ -102,6 +379,9 @@ public class TCPMiddleware {
             case QUERY_CARS:
             case QUERY_CARS_PRICE:
             case RESERVE_CAR:
+            case ADD_CARS_BATCH:
+            case QUERY_CARS_BATCH:
+            case RESERVE_CARS:
                 return "car";
 
             case ADD_ROOMS:
@@ -109,6 +389,9 @@ public class TCPMiddleware {
             case QUERY_ROOMS:
             case QUERY_ROOMS_PRICE:
             case RESERVE_ROOM:
+            case ADD_ROOMS_BATCH:
+            case QUERY_ROOMS_BATCH:
+            case RESERVE_ROOMS:
                 return "room";
 
             case NEW_CUSTOMER:
@@ -125,20 +408,11 @@ public class TCPMiddleware {
 
     private class ClientHandler implements Runnable {
         private Socket clientSocket;
-        private Socket flightSocket;
-        private Socket carSocket;
-        private Socket roomSocket;
+        // This client's requests in progress
+        private final AtomicInteger requests = new AtomicInteger();
 
         public ClientHandler(Socket clientSocket) {
             this.clientSocket = clientSocket;
-            // Create persistent connections to all RMs
-            try {
-                flightSocket = getRMConnection("flight");
-                carSocket = getRMConnection("car");
-                roomSocket = getRMConnection("room");
-            } catch (IOException e) {
-                System.err.println("Failed to establish RM connections: " + e.getMessage());
-            }
         }
 
         @Override
@@ -148,11 +422,23 @@ public class TCPMiddleware {
                     try {
                         
                         TCPMessage request = TCPCommunicator.receiveMessage(clientSocket);
-                        System.out.println("Received from client: " + request);
-                        processRequest(request);
+                        Trace.debug(() -> "Received from client: " + request);
+                        if (!admission.tryAdmit(requests)) {
+                            sendResponseToClient(AdmissionControl.busy(request, "too many requests in progress",
+                                    admission.getRetryAfterMillis()), clientSocket);
+                            continue;
+                        }
+                        // Keep reading while this one runs; responses go back in completion order
+                        requestThreadPool.submit(() -> {
+                            try {
+                                processRequest(request);
+                            } finally {
+                                admission.release(requests);
+                            }
+                        });
 
                     } catch (EOFException | SocketException e) {
-                        System.out.println("Client disconnected: " + clientSocket.getRemoteSocketAddress());
+                        Trace.info(() -> "Client disconnected: " + clientSocket.getRemoteSocketAddress());
                         break;
                     } catch (ClassNotFoundException e) {
                         System.err.println("Invalid message format");
@@ -163,51 +449,387 @@ public class TCPMiddleware {
                     }
                 }
             } finally {
-                TCPCommunicator.closeSocket(flightSocket);
-                TCPCommunicator.closeSocket(carSocket);
-                TCPCommunicator.closeSocket(roomSocket);
                 TCPCommunicator.closeSocket(clientSocket);
+                clients.decrementAndGet();
             }
         }
 
+        /* Always answers the client, even if handling the request fails unexpectedly */
         private void processRequest(TCPMessage request) {
-            String rmType = determineRMType(request.getCommand());
+            TCPMessage response;
+            try {
+                response = replayCache.execute(request, this::admitToResourceManagers);
+            } catch (RuntimeException e) {
+                System.err.println("Error processing request " + request.getCommand() + ": " + e.getMessage());
+                response = new TCPMessage(request.getMessageId(), "Error processing request: " + e.getMessage());
+            }
+            sendResponseToClient(response, clientSocket);
+        }
+
+        /*
+         * Handles the request once every RM type it needs is within its limit;
+         * refuses it if that takes longer than middleware.rm.queue.ms or its deadline.
+         * A query the cache can answer needs no RM, so it is answered at once.
+         */
+        private TCPMessage admitToResourceManagers(TCPMessage request) {
+            if (QueryCache.isCacheable(request.getCommand()) && queryCache.isEnabled()) {
+                Object cached = queryCache.get(request);
+                if (cached != null) {
+                    return new TCPMessage(request.getMessageId(), cached);
+                }
+            }
+            List<AdmissionControl.Limit> held = new ArrayList<>();
+            try {
+                for (AdmissionControl.Limit limit : limitsFor(request)) {
+                    long wait = request.hasDeadline() ? Math.min(rmQueueNanos, TimeUnit.MILLISECONDS.toNanos(request.getTimeLeftMillis())) : rmQueueNanos;
+                    if (!limit.tryAcquire(wait)) {
+                        return AdmissionControl.busy(request, limit.getName() + " RM at its limit of " + limit.getLimit() + " requests",
+                                limit.getRetryAfterMillis(admission.getRetryAfterMillis()));
+                    }
+                    held.add(limit);
+                }
+                return handleRequest(request);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return new TCPMessage(request.getMessageId(), "Interrupted waiting for the RMs");
+            } finally {
+                for (AdmissionControl.Limit limit : held) {
+                    limit.release();
+                }
+            }
+        }
+
+        /* The limits of the RM types a request needs */
+        private List<AdmissionControl.Limit> limitsFor(TCPMessage request) {
+            Command command = request.getCommand();
+            if (command == Command.EXPORT_INVENTORY) {
+                AdmissionControl.Limit limit = rmLimits.get(String.valueOf(request.getArguments()[0]));
+                return limit == null ? Collections.emptyList() : Collections.singletonList(limit);
+            }
+            String rmType = determineRMType(command);
+            if (command == Command.BUNDLE) {
+                return bundleLimits(request);
+            }
+            if ("customer".equals(rmType)) {
+                // Customers are kept on every shard of every type, so these go to all of them
+                List<AdmissionControl.Limit> all = new ArrayList<>();
+                for (String type : RM_TYPES) {
+                    all.add(rmLimits.get(type));
+                }
+                return all;
+            }
+            return Collections.singletonList(rmLimits.get(rmType));
+        }
+
+        /* The limits of the RM types a bundle's items are at, as reserveBundle sends them; the flight RM checks an empty one's customer */
+        private List<AdmissionControl.Limit> bundleLimits(TCPMessage request) {
+            Object[] args = request.getArguments();
+            List<AdmissionControl.Limit> limits = new ArrayList<>();
+            if (!((Vector<?>) args[1]).isEmpty()) {
+                limits.add(rmLimits.get("flight"));
+            }
+            if ((Boolean) args[3]) {
+                limits.add(rmLimits.get("car"));
+            }
+            if ((Boolean) args[4]) {
+                limits.add(rmLimits.get("room"));
+            }
+            return limits.isEmpty() ? Collections.singletonList(rmLimits.get("flight")) : limits;
+        }
+
+        private TCPMessage handleRequest(TCPMessage request) {
+            Command command = request.getCommand();
+            if (request.isExpired()) {
+                // The client has stopped waiting for it
+                Trace.warn(() -> "Dropped " + command + ": its deadline passed before it started");
+                return new TCPMessage(request.getMessageId(), "Deadline passed before " + command + " started; not executed");
+            }
 
             try {
                 TCPMessage response;
 
-                if ("customer".equals(rmType)) {
-                    response = handleDistributedCustomerOperationPersistent(request);
+                if (command == Command.EXPORT_INVENTORY) {
+                    response = exportFromShards(request);
                 } else {
-                    response = forwardToResourceManagerPersistent(request, rmType);
+                    String rmType = determineRMType(command);
+                    if ("customer".equals(rmType)) {
+                        response = handleDistributedCustomerOperationPersistent(request);
+                    } else if (isBatch(command)) {
+                        response = forwardBatch(request, rmType, true);
+                    } else {
+                        Shard shard = shardFor(rmType, itemKey(command, request.getArguments()));
+                        if (QueryCache.isCacheable(command) && queryCache.isEnabled()) {
+                            response = queryThroughCache(request, shard);
+                        } else if (isReplicaRead(command)) {
+                            response = readAsync(request, shard).join();
+                        } else {
+                            response = forwardToResourceManagerPersistent(request, shard);
+                        }
+                    }
                 }
-                sendResponseToClient(response, clientSocket);
+                return response;
 
             } catch (Exception e) {
                 System.err.println("Error processing request " + request.getCommand() + ": " + e.getMessage());
-                TCPMessage errorResponse = new TCPMessage(request.getMessageId(), "Error processing request: " + e.getMessage());
-                sendResponseToClient(errorResponse, clientSocket);
+                return new TCPMessage(request.getMessageId(), "Error processing request: " + e.getMessage());
             }
         }
 
-        private TCPMessage forwardToResourceManagerPersistent(TCPMessage request, String rmType) {
-            Socket rmSocket;
-            switch (rmType) {
-                case "flight": rmSocket = flightSocket; break;
-                case "car": rmSocket = carSocket; break;
-                case "room": rmSocket = roomSocket; break;
-                default: throw new IllegalArgumentException("Unknown RM type: " + rmType);
+        /* A query the cache had no answer for when it was admitted; fills the cache with the answer */
+        private TCPMessage queryThroughCache(TCPMessage request, Shard shard) {
+            long version = queryCache.version(request);
+            TCPMessage response = askReplicaAsync(request, shard).join();
+            if (response != null) {
+                queryCache.put(request, version, response.getResult(), replicaCacheMillis);
+                return response;
+            }
+            response = forwardToResourceManagerPersistent(request, shard);
+            if (response.getMessageType() == TCPMessage.MessageType.RESPONSE) {
+                queryCache.put(request, version, response.getResult());
             }
+            return response;
+        }
 
-            try {
-                TCPCommunicator.sendMessage(rmSocket, request);
-                TCPMessage response = TCPCommunicator.receiveMessage(rmSocket);
+        /*
+         * A query to one of the shard's read replicas, or to the shard itself if
+         * none can answer. The fallback runs on a request thread: the replica's
+         * reply arrives on its connection's reader thread, and sending to the
+         * primary may block writing or reconnecting.
+         */
+        private CompletableFuture<TCPMessage> readAsync(TCPMessage request, Shard shard) {
+            return askReplicaAsync(request, shard).thenComposeAsync(response -> response != null
+                    ? CompletableFuture.completedFuture(response) : forwardToResourceManagerAsync(request, shard), requestThreadPool);
+        }
+
+        /*
+         * Sends a query to the next of the shard's read replicas, if it has any.
+         * Completes with null if there are none or the one asked could not
+         * answer: unreachable, or refusing because it is further behind its
+         * primary than its staleness bound. The caller then asks the primary.
+         */
+        private CompletableFuture<TCPMessage> askReplicaAsync(TCPMessage request, Shard shard) {
+            if (shard.replicas.isEmpty()) {
+                return CompletableFuture.completedFuture(null);
+            }
+            RMConnectionPool replica = shard.replicas.get(Math.floorMod(nextReplica.getAndIncrement(), shard.replicas.size()));
+            return replica.sendAsync(request).exceptionally(e -> null).thenApply(response -> {
+                if (response == null || response.getMessageType() != TCPMessage.MessageType.RESPONSE) {
+                    Trace.debug(() -> "Replica " + replica.getAddress() + " could not answer " + request.getCommand()
+                            + (response == null ? "" : ": " + response.getErrorMessage()) + "; asking the primary");
+                    return null;
+                }
                 return response;
+            });
+        }
 
-            } catch (Exception e) {
-                System.err.println("Error communicating with " + rmType + " RM: " + e.getMessage());
-                return new TCPMessage(request.getMessageId(), "RM communication failed: " + e.getMessage());
+        private TCPMessage forwardToResourceManagerPersistent(TCPMessage request, Shard shard) {
+            return forwardToResourceManagerAsync(request, shard).join();
+        }
+
+        /* Never completes exceptionally: communication failures become ERROR responses */
+        private CompletableFuture<TCPMessage> forwardToResourceManagerAsync(TCPMessage request, Shard shard) {
+            String name = shard.primary.getName();
+            long start = System.nanoTime();
+            return shard.primary.sendAsync(request).handle((response, e) -> {
+                // How the RM is keeping up sets its type's admission limit; a refusal for overload counts as a failure
+                shard.limit.sample(System.nanoTime() - start, e != null || response.getRetryAfterMillis() > 0);
+                if (e == null) {
+                    return response;
+                }
+                Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+                System.err.println("Error communicating with " + name + " RM: " + cause.getMessage());
+                return new TCPMessage(request.getMessageId(), "RM communication failed: " + cause.getMessage());
+            }).thenApply(response -> {
+                // Even a failed change may have been applied, so invalidate regardless of the answer
+                queryCache.invalidate(request);
+                return response;
+            });
+        }
+
+        /* Waits for all of replies, fanoutTimeoutMillis at most in all; names says whose each one is */
+        private TCPMessage[] awaitAll(List<CompletableFuture<TCPMessage>> replies, List<String> names)
+                throws TimeoutException, InterruptedException {
+            return awaitAll(replies, names, fanoutTimeoutMillis);
+        }
+
+        /* Waits for all of replies, timeoutMillis at most in all */
+        private TCPMessage[] awaitAll(List<CompletableFuture<TCPMessage>> replies, List<String> names, long timeoutMillis)
+                throws TimeoutException, InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            TCPMessage[] responses = new TCPMessage[replies.size()];
+            for (int i = 0; i < responses.length; i++) {
+                try {
+                    responses[i] = replies.get(i).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+                } catch (TimeoutException e) {
+                    throw new TimeoutException(names.get(i) + " RM did not reply within " + timeoutMillis + " ms");
+                } catch (ExecutionException e) {
+                    // forwardToResourceManagerAsync maps failures to ERROR responses, so this is unexpected
+                    throw new IllegalStateException(e.getCause());
+                }
+            }
+            return responses;
+        }
+
+        /* Sends the request to every shard of the flight, car and room RMs at once; replies are [type][shard], types in RM_TYPES order */
+        private TCPMessage[][] forwardToAllShards(TCPMessage request) throws TimeoutException, InterruptedException {
+            List<CompletableFuture<TCPMessage>> replies = new ArrayList<>();
+            List<String> names = new ArrayList<>();
+            for (String rmType : RM_TYPES) {
+                for (Shard shard : shards.get(rmType)) {
+                    replies.add(forwardToResourceManagerAsync(request, shard));
+                    names.add(shard.primary.getName());
+                }
+            }
+
+            TCPMessage[] responses = awaitAll(replies, names);
+            TCPMessage[][] byType = new TCPMessage[RM_TYPES.length][];
+            int next = 0;
+            for (int i = 0; i < RM_TYPES.length; i++) {
+                byType[i] = Arrays.copyOfRange(responses, next, next + shards.get(RM_TYPES[i]).size());
+                next += byType[i].length;
+            }
+            return byType;
+        }
+
+        /*
+         * Sends a bulk request to the shards holding its items: the whole request
+         * if they are all on one shard, otherwise each shard's share of the items
+         * at once, with the answers put back together in the original order.
+         * A reservation spread over several shards is a two-phase commit, like
+         * a bundle's, so that it is still all or nothing.
+         */
+        private TCPMessage forwardBatch(TCPMessage request, String rmType, boolean fromReplicas)
+                throws TimeoutException, InterruptedException {
+            Command command = request.getCommand();
+            Object[] args = request.getArguments();
+            String[] keys = batchKeys(rmType, command, args);
+            List<Shard> rmShards = shards.get(rmType);
+            boolean query = isReplicaRead(command);
+
+            // Which items each shard holds, by index into the request's arrays
+            ShardRing ring = rings.get(rmType);
+            int[] shardOf = new int[keys.length];
+            int[] counts = new int[rmShards.size()];
+            for (int i = 0; i < keys.length; i++) {
+                shardOf[i] = ring.shardOf(keys[i]);
+                counts[shardOf[i]]++;
+            }
+            List<Integer> touched = new ArrayList<>();
+            int[][] indices = new int[rmShards.size()][];
+            for (int s = 0; s < rmShards.size(); s++) {
+                indices[s] = new int[counts[s]];
+                if (counts[s] > 0) {
+                    touched.add(s);
+                }
+                counts[s] = 0;
+            }
+            for (int i = 0; i < keys.length; i++) {
+                indices[shardOf[i]][counts[shardOf[i]]++] = i;
+            }
+
+            if (touched.size() <= 1) {
+                Shard shard = rmShards.get(touched.isEmpty() ? 0 : touched.get(0));
+                return (query && fromReplicas ? readAsync(request, shard) : forwardToResourceManagerAsync(request, shard)).join();
+            }
+            if (isBatchReserve(command)) {
+                return reserveBatchAcrossShards(request, rmType, keys);
+            }
+
+            List<CompletableFuture<TCPMessage>> replies = new ArrayList<>();
+            List<String> names = new ArrayList<>();
+            for (int s : touched) {
+                Shard shard = rmShards.get(s);
+                TCPMessage part = new TCPMessage(request.getMessageId(), command, slice(args, indices[s])).withDeadlineOf(request);
+                // Each part goes to a different RM, so each can replay its share of a retry
+                part.setRequestId(request.getRequestId());
+                replies.add(query && fromReplicas ? readAsync(part, shard) : forwardToResourceManagerAsync(part, shard));
+                names.add(shard.primary.getName());
+            }
+            TCPMessage[] responses = awaitAll(replies, names);
+            for (TCPMessage response : responses) {
+                if (response.getMessageType() == TCPMessage.MessageType.ERROR) {
+                    return new TCPMessage(request.getMessageId(), response.getErrorMessage());
+                }
+            }
+
+            if (query) {
+                int[] result = new int[keys.length * 2];
+                for (int j = 0; j < responses.length; j++) {
+                    int[] part = (int[]) responses[j].getResult();
+                    int[] partIndices = indices[touched.get(j)];
+                    for (int k = 0; k < partIndices.length; k++) {
+                        result[2 * partIndices[k]] = part[2 * k];
+                        result[2 * partIndices[k] + 1] = part[2 * k + 1];
+                    }
+                }
+                return new TCPMessage(request.getMessageId(), (Object) result);
             }
+            boolean success = true;
+            for (TCPMessage response : responses) {
+                success &= (Boolean) response.getResult();
+            }
+            return new TCPMessage(request.getMessageId(), success);
+        }
+
+        /* A bulk reservation whose items are on several shards, all or nothing (see reserveAcrossServers) */
+        private TCPMessage reserveBatchAcrossShards(TCPMessage request, String rmType, String[] keys) throws InterruptedException {
+            Object[] args = request.getArguments();
+            int customerID = (Integer) args[0];
+            Map<String, Shard> participants = new LinkedHashMap<>();
+            Map<String, List<String>> shardKeys = new HashMap<>();
+            Map<String, List<String>> shardLocations = new HashMap<>();
+            for (int i = 0; i < keys.length; i++) {
+                // A flight's location is its number, as reserveFlights gives it
+                String location = args[1] instanceof int[] ? String.valueOf(((int[]) args[1])[i]) : ((String[]) args[1])[i];
+                addBundleItem(participants, shardKeys, shardLocations, rmType, keys[i], location);
+            }
+            return new TCPMessage(request.getMessageId(), reserveAcrossServers(request, customerID, participants, shardKeys, shardLocations));
+        }
+
+        /* An export part from every shard of the kind's RM, one after the other */
+        private TCPMessage exportFromShards(TCPMessage request) throws TimeoutException, InterruptedException {
+            String kind = (String) request.getArguments()[0];
+            List<Shard> rmShards = shards.get(kind);
+            if (rmShards == null) {
+                throw new IllegalArgumentException("Unknown RM type: " + kind);
+            }
+            List<CompletableFuture<TCPMessage>> replies = new ArrayList<>();
+            List<String> names = new ArrayList<>();
+            for (Shard shard : rmShards) {
+                replies.add(forwardToResourceManagerAsync(request, shard));
+                names.add(shard.primary.getName());
+            }
+            List<String> lines = new ArrayList<>();
+            for (TCPMessage response : awaitAll(replies, names)) {
+                if (response.getMessageType() == TCPMessage.MessageType.ERROR) {
+                    return response;
+                }
+                lines.addAll(Arrays.asList((String[]) response.getResult()));
+            }
+            return new TCPMessage(request.getMessageId(), (Object) lines.toArray(new String[lines.size()]));
+        }
+
+        private boolean allTrue(TCPMessage[][] responses) {
+            boolean success = true;
+            for (TCPMessage[] typeResponses : responses) {
+                for (TCPMessage response : typeResponses) {
+                    success &= (Boolean) response.getResult();
+                }
+            }
+            return success;
+        }
+
+        /* A customer's bill from each shard of one RM as one: the first header, then every shard's lines */
+        private String mergeBills(TCPMessage[] bills) {
+            StringBuilder merged = new StringBuilder();
+            for (TCPMessage bill : bills) {
+                String text = (String) bill.getResult();
+                if (text == null || text.isEmpty()) {
+                    continue;
+                }
+                merged.append(text, merged.length() == 0 ? 0 : text.indexOf('\n') + 1, text.length());
+            }
+            return merged.toString();
         }
 
         private TCPMessage handleDistributedCustomerOperationPersistent(TCPMessage request) {
@@ -216,135 +838,281 @@ public class TCPMiddleware {
                     case NEW_CUSTOMER:
                         int cid = Integer.parseInt(String.valueOf(java.util.Calendar.getInstance().get(java.util.Calendar.MILLISECOND)) +
                                                 String.valueOf(Math.round(Math.random() * 100 + 1)));
-                        TCPMessage newCustomerRequest = new TCPMessage(request.getMessageId(), TCPMessage.Command.NEW_CUSTOMER_ID, cid);
+                        TCPMessage newCustomerRequest = new TCPMessage(request.getMessageId(), TCPMessage.Command.NEW_CUSTOMER_ID, cid)
+                                .withDeadlineOf(request);
 
-                        TCPMessage flightResponse = forwardToResourceManagerPersistent(newCustomerRequest, "flight");
-                        TCPMessage carResponse = forwardToResourceManagerPersistent(newCustomerRequest, "car");
-                        TCPMessage roomResponse = forwardToResourceManagerPersistent(newCustomerRequest, "room");
-
-                        boolean allSuccess = (Boolean) flightResponse.getResult() &&
-                                           (Boolean) carResponse.getResult() &&
-                                           (Boolean) roomResponse.getResult();
-                        return new TCPMessage(request.getMessageId(), allSuccess ? cid : -1);
+                        // Every shard keeps its own record of the customer, for the reservations it holds
+                        TCPMessage[][] created = forwardToAllShards(newCustomerRequest);
+                        return new TCPMessage(request.getMessageId(), allTrue(created) ? cid : -1);
 
                     case NEW_CUSTOMER_ID:
                     case DELETE_CUSTOMER:
-                        TCPMessage flightResp = forwardToResourceManagerPersistent(request, "flight");
-                        TCPMessage carResp = forwardToResourceManagerPersistent(request, "car");
-                        TCPMessage roomResp = forwardToResourceManagerPersistent(request, "room");
-
-                        boolean success = (Boolean) flightResp.getResult() &&
-                                        (Boolean) carResp.getResult() &&
-                                        (Boolean) roomResp.getResult();
-                        return new TCPMessage(request.getMessageId(), success);
+                        TCPMessage[][] responses = forwardToAllShards(request);
+                        return new TCPMessage(request.getMessageId(), allTrue(responses));
 
                     case QUERY_CUSTOMER:
-                        TCPMessage flightBill = forwardToResourceManagerPersistent(request, "flight");
-                        TCPMessage carBill = forwardToResourceManagerPersistent(request, "car");
-                        TCPMessage roomBill = forwardToResourceManagerPersistent(request, "room");
+                        TCPMessage[][] bills = forwardToAllShards(request);
 
-                        String overall_bill = "Flight" + flightBill.getResult() +
-                                            "Car" + carBill.getResult() +
-                                            "Room" + roomBill.getResult();
+                        String overall_bill = "Flight" + mergeBills(bills[0]) +
+                                            "Car" + mergeBills(bills[1]) +
+                                            "Room" + mergeBills(bills[2]);
                         return new TCPMessage(request.getMessageId(), (Object) overall_bill);
 
                     case BUNDLE:
-                        Object[] args = request.getArguments();
-                        int customerID = (Integer) args[0];
-                        @SuppressWarnings("unchecked")
-                        Vector<String> flightNumbers = (Vector<String>) args[1];
-                        String location = (String) args[2];
-                        boolean car = (Boolean) args[3];
-                        boolean room = (Boolean) args[4];
-
-                        TCPMessage custCheck = new TCPMessage(request.getMessageId(), TCPMessage.Command.QUERY_CUSTOMER, customerID);
-                        TCPMessage custResponse = forwardToResourceManagerPersistent(custCheck, "flight");
-                        String customerInfo = (String) custResponse.getResult();
-                        if (customerInfo == null || customerInfo.trim().isEmpty()) {
-                            return new TCPMessage(request.getMessageId(), false);
-                        }
+                        return reserveBundle(request);
 
-                        java.util.Map<String, Integer> flightCounts = new java.util.HashMap<>();
-                        for (String flightNum : flightNumbers) {
-                            flightCounts.put(flightNum, flightCounts.getOrDefault(flightNum, 0) + 1);
-                        }
+                    default:
+                        throw new UnsupportedOperationException("Unsupported customer operation: " + request.getCommand());
+                }
+            } catch (Exception e) {
+                return new TCPMessage(request.getMessageId(), "Customer operation error: " + e.getMessage());
+            }
+        }
 
-                        for (java.util.Map.Entry<String, Integer> entry : flightCounts.entrySet()) {
-                            String flightNum = entry.getKey();
-                            int needed = entry.getValue();
+        /*
+         * Reserves a bundle, entirely or not at all. Its items are grouped by the
+         * RM server that holds them (flight, car and room RMs at the same address
+         * count as one), and each server gets all of its items in one call. If
+         * one server holds everything, a single RESERVE_ITEMS does it, since the
+         * RM reserves a batch atomically. Otherwise it is a two-phase commit:
+         * every server is asked at once to hold its items for the customer, and
+         * only if all of them can are the holds turned into reservations, again
+         * all at once; otherwise, or if a server does not answer, the holds are
+         * given back. Either way the latency is one or two round trips however
+         * many items there are. A server that never hears an abort gives its
+         * hold back after rm.hold.timeout.ms; a commit is resent until every
+         * server has it (see commitBundle), and if a server still cannot commit,
+         * the others' parts are cancelled (see undoCommits).
+         */
+        private TCPMessage reserveBundle(TCPMessage request) throws TimeoutException, InterruptedException {
+            Object[] args = request.getArguments();
+            int customerID = (Integer) args[0];
+            @SuppressWarnings("unchecked")
+            Vector<String> flightNumbers = (Vector<String>) args[1];
+            String location = (String) args[2];
+            boolean car = (Boolean) args[3];
+            boolean room = (Boolean) args[4];
 
-                            TCPMessage flightCheck = new TCPMessage(request.getMessageId(), TCPMessage.Command.QUERY_FLIGHT, Integer.parseInt(flightNum));
-                            TCPMessage flightAvailCheck = forwardToResourceManagerPersistent(flightCheck, "flight");
-                            int availableSeats = (Integer) flightAvailCheck.getResult();
+            // Each involved server's items, as parallel lists of keys and locations, by address
+            Map<String, Shard> participants = new LinkedHashMap<>();
+            Map<String, List<String>> keys = new HashMap<>();
+            Map<String, List<String>> locations = new HashMap<>();
+            for (String flightNum : flightNumbers) {
+                addBundleItem(participants, keys, locations, "flight", Flight.getKey(Integer.parseInt(flightNum)), flightNum);
+            }
+            if (car) {
+                addBundleItem(participants, keys, locations, "car", Car.getKey(location), location);
+            }
+            if (room) {
+                addBundleItem(participants, keys, locations, "room", Room.getKey(location), location);
+            }
+            if (participants.isEmpty()) {
+                // Nothing to reserve, but the customer must still exist
+                TCPMessage check = new TCPMessage(request.getMessageId(), Command.QUERY_CUSTOMER, customerID).withDeadlineOf(request);
+                String customerInfo = (String) forwardToResourceManagerPersistent(check, shardFor("flight", null)).getResult();
+                return new TCPMessage(request.getMessageId(), customerInfo != null && !customerInfo.trim().isEmpty());
+            }
 
-                            if (availableSeats < needed) {
-                                return new TCPMessage(request.getMessageId(), false);
-                            }
-                        }
+            if (participants.size() == 1) {
+                Map.Entry<String, Shard> only = participants.entrySet().iterator().next();
+                TCPMessage reserve = new TCPMessage(request.getMessageId(), Command.RESERVE_ITEMS, customerID,
+                        toArray(keys.get(only.getKey())), toArray(locations.get(only.getKey()))).withDeadlineOf(request);
+                reserve.setRequestId(request.getRequestId());
+                TCPMessage response = forwardToResourceManagerPersistent(reserve, only.getValue());
+                if (response.getMessageType() == TCPMessage.MessageType.ERROR) {
+                    return response;
+                }
+                return new TCPMessage(request.getMessageId(), Boolean.TRUE.equals(response.getResult()));
+            }
 
-                        if (car) {
-                            TCPMessage carCheck = new TCPMessage(request.getMessageId(), TCPMessage.Command.QUERY_CARS, location);
-                            TCPMessage carAvailCheck = forwardToResourceManagerPersistent(carCheck, "car");
-                            int availableCars = (Integer) carAvailCheck.getResult();
-                            if (availableCars <= 0) {
-                                return new TCPMessage(request.getMessageId(), false);
-                            }
-                        }
+            return new TCPMessage(request.getMessageId(), reserveAcrossServers(request, customerID, participants, keys, locations));
+        }
 
-                        if (room) {
-                            TCPMessage roomCheck = new TCPMessage(request.getMessageId(), TCPMessage.Command.QUERY_ROOMS, location);
-                            TCPMessage roomAvailCheck = forwardToResourceManagerPersistent(roomCheck, "room");
-                            int availableRooms = (Integer) roomAvailCheck.getResult();
-                            if (availableRooms <= 0) {
-                                return new TCPMessage(request.getMessageId(), false);
-                            }
-                        }
+        /*
+         * The two-phase commit of a reservation whose items are on several
+         * servers (participants, by address; keys and locations are each one's
+         * items): returns true if every server has reserved its items, false if
+         * none has.
+         */
+        private boolean reserveAcrossServers(TCPMessage request, int customerID, Map<String, Shard> participants,
+                Map<String, List<String>> keys, Map<String, List<String>> locations) throws InterruptedException {
+            long txId = nextTxId.incrementAndGet();
+            List<String> names = new ArrayList<>();
+            List<CompletableFuture<TCPMessage>> prepares = new ArrayList<>();
+            for (Map.Entry<String, Shard> participant : participants.entrySet()) {
+                TCPMessage prepare = new TCPMessage(request.getMessageId(), Command.PREPARE_RESERVE, txId, customerID,
+                        toArray(keys.get(participant.getKey())), toArray(locations.get(participant.getKey()))).withDeadlineOf(request);
+                prepares.add(forwardToResourceManagerAsync(prepare, participant.getValue()));
+                names.add(participant.getValue().primary.getName());
+            }
+            boolean prepared;
+            try {
+                prepared = allTrue(awaitAll(prepares, names, bundleTimeoutMillis));
+            } catch (TimeoutException e) {
+                System.err.println("Bundle " + txId + " aborted: " + e.getMessage());
+                prepared = false;
+            }
 
-                        // Reserve flights
-                        for (String flightNum : flightNumbers) {
-                            TCPMessage flightReq = new TCPMessage(request.getMessageId(),
-                                TCPMessage.Command.RESERVE_FLIGHT, customerID, Integer.parseInt(flightNum));
-                            TCPMessage flightResult = forwardToResourceManagerPersistent(flightReq, "flight");
-                            if (!(Boolean) flightResult.getResult()) {
-                                return new TCPMessage(request.getMessageId(), false);
-                            }
-                        }
+            if (!prepared) {
+                List<CompletableFuture<TCPMessage>> aborts = new ArrayList<>();
+                for (Shard shard : participants.values()) {
+                    aborts.add(forwardToResourceManagerAsync(new TCPMessage(request.getMessageId(), Command.ABORT_RESERVE, txId), shard));
+                }
+                try {
+                    awaitAll(aborts, names, bundleTimeoutMillis);
+                } catch (TimeoutException e) {
+                    // The shard's hold expires on its own
+                    System.err.println("Bundle " + txId + ": " + e.getMessage());
+                }
+                // The held units are available again
+                for (List<String> shardKeys : keys.values()) {
+                    for (String key : shardKeys) {
+                        queryCache.invalidate(key);
+                    }
+                }
+                return false;
+            }
 
-                        // Reserve car
-                        if (car) {
-                            TCPMessage carReq = new TCPMessage(request.getMessageId(),
-                                TCPMessage.Command.RESERVE_CAR, customerID, location);
-                            TCPMessage carResult = forwardToResourceManagerPersistent(carReq, "car");
-                            if (!(Boolean) carResult.getResult()) {
-                                return new TCPMessage(request.getMessageId(), false);
-                            }
-                        }
+            List<Shard> servers = new ArrayList<>(participants.values());
+            Boolean[] answers = commitBundle(request, txId, servers);
+            if (!Arrays.asList(answers).contains(Boolean.FALSE)) {
+                return true;
+            }
+            undoCommits(request, txId, servers, answers);
+            for (List<String> shardKeys : keys.values()) {
+                for (String key : shardKeys) {
+                    queryCache.invalidate(key);
+                }
+            }
+            return false;
+        }
 
-                        // Reserve room if requested
-                        if (room) {
-                            TCPMessage roomReq = new TCPMessage(request.getMessageId(),
-                                TCPMessage.Command.RESERVE_ROOM, customerID, location);
-                            TCPMessage roomResult = forwardToResourceManagerPersistent(roomReq, "room");
-                            if (!(Boolean) roomResult.getResult()) {
-                                return new TCPMessage(request.getMessageId(), false);
-                            }
+        /*
+         * Every server holds its part, so the bundle is committed: sends the
+         * commit to each server, and again to those that do not answer (it is
+         * idempotent by txId), for up to middleware.commit.retry.ms, without
+         * the client's deadline. Returns each server's answer: false if it could
+         * not commit (its hold was lost to a restart or expired, or the customer
+         * was deleted), null if it is still silent at the end.
+         */
+        private Boolean[] commitBundle(TCPMessage request, long txId, List<Shard> participants) throws InterruptedException {
+            int count = participants.size();
+            Boolean[] answers = new Boolean[count];
+            List<List<CompletableFuture<TCPMessage>>> sent = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                sent.add(new ArrayList<>());
+            }
+            long giveUp = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(commitRetryMillis);
+            for (int attempt = 0; ; attempt++) {
+                for (int i = 0; i < count; i++) {
+                    if (answers[i] == null) {
+                        TCPMessage commit = new TCPMessage(request.getMessageId(), Command.COMMIT_RESERVE, txId);
+                        sent.get(i).add(forwardToResourceManagerAsync(commit, participants.get(i)));
+                    }
+                }
+                long attemptEnd = Math.min(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(bundleTimeoutMillis), giveUp);
+                boolean pending = false;
+                for (int i = 0; i < count; i++) {
+                    if (answers[i] == null) {
+                        answers[i] = awaitAnswer(sent.get(i), attemptEnd);
+                    }
+                    pending |= answers[i] == null;
+                }
+                if (!pending || System.nanoTime() - giveUp >= 0) {
+                    for (int i = 0; i < count; i++) {
+                        if (answers[i] == null) {
+                            System.err.println("Bundle " + txId + ": " + participants.get(i).primary.getName()
+                                    + " RM never acknowledged the commit; it keeps its hold until rm.hold.timeout.ms");
+                        } else if (!answers[i]) {
+                            System.err.println("Bundle " + txId + ": " + participants.get(i).primary.getName()
+                                    + " RM could not commit its part after the others had");
                         }
+                    }
+                    return answers;
+                }
+                // The server is unreachable or failing rather than slow; give it a moment
+                long pause = Math.min(Math.min(100L << Math.min(attempt, 4), 1000), TimeUnit.NANOSECONDS.toMillis(giveUp - System.nanoTime()));
+                if (pause > 0) {
+                    Thread.sleep(pause);
+                }
+            }
+        }
 
-                        return new TCPMessage(request.getMessageId(), true);
+        /*
+         * A server could not commit its part of the bundle, so the others' parts
+         * are taken back: those that committed cancel their reservations, and
+         * those that never answered are told to abort, so that a late commit
+         * does not go through. Any that fails to is reported.
+         */
+        private void undoCommits(TCPMessage request, long txId, List<Shard> participants, Boolean[] answers)
+                throws InterruptedException {
+            List<CompletableFuture<TCPMessage>> undos = new ArrayList<>();
+            List<String> names = new ArrayList<>();
+            for (int i = 0; i < participants.size(); i++) {
+                if (!Boolean.FALSE.equals(answers[i])) {
+                    Command undo = answers[i] == null ? Command.ABORT_RESERVE : Command.CANCEL_RESERVE;
+                    undos.add(forwardToResourceManagerAsync(new TCPMessage(request.getMessageId(), undo, txId), participants.get(i)));
+                    names.add(participants.get(i).primary.getName());
+                }
+            }
+            try {
+                TCPMessage[] responses = awaitAll(undos, names, bundleTimeoutMillis);
+                for (int i = 0; i < responses.length; i++) {
+                    if (!Boolean.TRUE.equals(responses[i].getResult())) {
+                        System.err.println("Bundle " + txId + ": " + names.get(i) + " RM could not take back its part");
+                    }
+                }
+            } catch (TimeoutException e) {
+                System.err.println("Bundle " + txId + " only partly taken back: " + e.getMessage());
+            }
+        }
 
-                    default:
-                        throw new UnsupportedOperationException("Unsupported customer operation: " + request.getCommand());
+        /* The answer any of one server's commits has had, waiting for the last until the deadline; null if none yet */
+        private Boolean awaitAnswer(List<CompletableFuture<TCPMessage>> commits, long deadline) throws InterruptedException {
+            try {
+                commits.get(commits.size() - 1).get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException | ExecutionException e) {
+                // Maybe an earlier one has answered
+            }
+            for (CompletableFuture<TCPMessage> commit : commits) {
+                TCPMessage response = commit.getNow(null);
+                if (response != null && response.getMessageType() != TCPMessage.MessageType.ERROR) {
+                    return Boolean.TRUE.equals(response.getResult());
                 }
-            } catch (Exception e) {
-                return new TCPMessage(request.getMessageId(), "Customer operation error: " + e.getMessage());
             }
+            return null;
+        }
+
+        private void addBundleItem(Map<String, Shard> participants, Map<String, List<String>> keys,
+                Map<String, List<String>> locations, String rmType, String key, String location) {
+            Shard shard = shardFor(rmType, key);
+            participants.putIfAbsent(shard.address, shard);
+            keys.computeIfAbsent(shard.address, a -> new ArrayList<>()).add(key);
+            locations.computeIfAbsent(shard.address, a -> new ArrayList<>()).add(location);
+        }
+
+        private String[] toArray(List<String> list) {
+            return list.toArray(new String[list.size()]);
+        }
+
+        /* True if every response is a true answer; errors count as false */
+        private boolean allTrue(TCPMessage[] responses) {
+            boolean success = true;
+            for (TCPMessage response : responses) {
+                success &= Boolean.TRUE.equals(response.getResult());
+            }
+            return success;
         }
 
+
     }
 
     private void sendResponseToClient(TCPMessage response, Socket clientSocket) {
         try {
-            TCPCommunicator.sendMessage(clientSocket, response);
+            // Several requests from the same client may finish at once
+            synchronized (clientSocket) {
+                TCPCommunicator.sendMessage(clientSocket, response);
+            }
         } catch (IOException e) {
             System.err.println("Failed to send response to client: " + e.getMessage());
         }
@@ -357,6 +1125,18 @@ public class TCPMiddleware {
                 clientServerSocket.close();
             }
             clientThreadPool.shutdown();
+            requestThreadPool.shutdown();
+            for (List<Shard> rmShards : shards.values()) {
+                for (Shard shard : rmShards) {
+                    shard.primary.close();
+                    for (RMConnectionPool replica : shard.replicas) {
+                        replica.close();
+                    }
+                }
+            }
+            for (ChangeFeedSubscriber subscriber : feedSubscribers) {
+                subscriber.close();
+            }
         } catch (IOException e) {
             System.err.println("Error during shutdown: " + e.getMessage());
         }
@@ -0,0 +1,353 @@
+package Server.TCP;
+
+import Server.Common.Trace;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/*
+ * Non-blocking server for the same length-prefixed frames TCPCommunicator
+ * uses. A few I/O threads, each with its own selector, own all the
+ * connections between them; they only read, frame and decode requests and
+ * write queued responses. Requests are executed on a separate bounded worker
+ * pool, and a request that finds the pool's queue full gets an immediate
+ * ERROR response instead of waiting. Change feed polls are the exception:
+ * each can wait for changes for a long time, and every subscriber keeps one
+ * outstanding, so they run on a pool of their own rather than take workers
+ * from real requests.
+ *
+ * Each I/O thread has one direct read buffer and one direct write buffer
+ * that it reuses for every connection it serves, so an idle connection
+ * costs a channel and a few fields rather than a thread and its buffers.
+ */
+public class TCPNioServer {
+    private static final int IO_BUFFER_SIZE = 64 * 1024;
+    // Suggested to callers refused because the worker queue is full
+    private static final long BUSY_RETRY_AFTER_MILLIS = 50;
+
+    private final int port;
+    private final Function<TCPMessage, TCPMessage> handler;
+    private final ThreadPoolExecutor workers;
+    // One thread per outstanding poll, which is one per subscribed connection
+    private final ExecutorService pollers;
+    private final IOLoop[] loops;
+    private ServerSocketChannel serverChannel;
+    private volatile boolean running = false;
+
+    public TCPNioServer(int port, int ioThreads, int workerThreads, int workerQueueSize,
+                        Function<TCPMessage, TCPMessage> handler) throws IOException {
+        this.port = port;
+        this.handler = handler;
+
+        AtomicInteger workerCount = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(workerThreads, workerThreads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(workerQueueSize),
+                r -> new Thread(r, "TCPNioServer-worker-" + workerCount.incrementAndGet()));
+        AtomicInteger pollerCount = new AtomicInteger();
+        this.pollers = Executors.newCachedThreadPool(r -> {
+            Thread thread = new Thread(r, "TCPNioServer-poll-" + pollerCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        this.loops = new IOLoop[Math.max(1, ioThreads)];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new IOLoop(i);
+        }
+    }
+
+    /* Binds and accepts connections on the calling thread until shutdown */
+    public void serve() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port), 1024);
+        running = true;
+        for (IOLoop loop : loops) {
+            Thread thread = new Thread(loop, "TCPNioServer-io-" + loop.index);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int next = 0;
+        while (running) {
+            SocketChannel channel;
+            try {
+                channel = serverChannel.accept();
+            } catch (ClosedChannelException e) {
+                break;
+            } catch (IOException e) {
+                System.err.println("Error accepting client connection: " + e.getMessage());
+                continue;
+            }
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            Trace.info(() -> "New connection from: " + channel.socket().getRemoteSocketAddress());
+            loops[next++ % loops.length].register(channel);
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        try {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+        } catch (IOException e) {
+            System.err.println("Error during server shutdown: " + e.getMessage());
+        }
+        for (IOLoop loop : loops) {
+            loop.selector.wakeup();
+        }
+        workers.shutdown();
+        pollers.shutdownNow();
+    }
+
+    /* Per-connection framing state; only ever touched by the connection's own I/O thread */
+    private static class Connection {
+        final SocketChannel channel;
+        final IOLoop loop;
+        SelectionKey key;
+
+        // Frame being read: header bytes seen so far, then the body if it spans reads
+        int headerBytes = 0;
+        int headerValue = 0;
+        byte[] body;
+        int bodyFill;
+
+        // Encoded responses waiting to be written; workers add, the I/O thread drains
+        final Queue<byte[]> outbound = new ConcurrentLinkedQueue<>();
+        int headWritten = 0;
+        final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+        Connection(SocketChannel channel, IOLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+        }
+    }
+
+    private class IOLoop implements Runnable {
+        final int index;
+        final Selector selector;
+        final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+        final ByteBuffer readBuffer = ByteBuffer.allocateDirect(IO_BUFFER_SIZE);
+        final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(IO_BUFFER_SIZE);
+        // Frames that arrive whole in one read are copied here rather than into a new array
+        byte[] frameBuffer = new byte[4096];
+
+        IOLoop(int index) throws IOException {
+            this.index = index;
+            this.selector = Selector.open();
+        }
+
+        void register(SocketChannel channel) {
+            execute(() -> {
+                try {
+                    Connection connection = new Connection(channel, this);
+                    connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+                } catch (IOException e) {
+                    System.err.println("Failed to register connection: " + e.getMessage());
+                    closeQuietly(channel);
+                }
+            });
+        }
+
+        /* Runs a task on this loop's thread */
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    selector.select();
+                } catch (IOException e) {
+                    System.err.println("Selector failure: " + e.getMessage());
+                    break;
+                }
+
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+
+                Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while (selected.hasNext()) {
+                    SelectionKey key = selected.next();
+                    selected.remove();
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if (key.isValid() && key.isReadable()) {
+                            read(connection);
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            flush(connection);
+                        }
+                    } catch (IOException | CancelledKeyException e) {
+                        close(connection);
+                    }
+                }
+            }
+
+            for (SelectionKey key : selector.keys()) {
+                close((Connection) key.attachment());
+            }
+            closeQuietly(selector);
+        }
+
+        private void read(Connection connection) throws IOException {
+            ByteBuffer in = readBuffer;
+            in.clear();
+            if (connection.channel.read(in) < 0) {
+                Trace.info(() -> "Client disconnected: " + connection.channel.socket().getRemoteSocketAddress());
+                close(connection);
+                return;
+            }
+            in.flip();
+
+            while (in.hasRemaining()) {
+                if (connection.body == null) {
+                    connection.headerValue = (connection.headerValue << 8) | (in.get() & 0xFF);
+                    if (++connection.headerBytes < 4) {
+                        continue;
+                    }
+                    int length = connection.headerValue;
+                    connection.headerBytes = 0;
+                    connection.headerValue = 0;
+                    TCPCommunicator.checkFrameLength(length);
+
+                    if (in.remaining() >= length) {
+                        if (frameBuffer.length < length) {
+                            frameBuffer = new byte[Math.max(length, frameBuffer.length * 2)];
+                        }
+                        in.get(frameBuffer, 0, length);
+                        dispatch(connection, frameBuffer, length);
+                    } else {
+                        connection.body = new byte[length];
+                        connection.bodyFill = 0;
+                    }
+                    continue;
+                }
+
+                int chunk = Math.min(in.remaining(), connection.body.length - connection.bodyFill);
+                in.get(connection.body, connection.bodyFill, chunk);
+                connection.bodyFill += chunk;
+                if (connection.bodyFill == connection.body.length) {
+                    byte[] body = connection.body;
+                    connection.body = null;
+                    dispatch(connection, body, body.length);
+                }
+            }
+        }
+
+        private void dispatch(Connection connection, byte[] frame, int length) throws IOException {
+            TCPMessage request;
+            try {
+                request = TCPCommunicator.decodeFrame(frame, length);
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Invalid message format from client: " + e.getMessage(), e);
+            }
+            Trace.debug(() -> "Received: " + request);
+
+            try {
+                Executor executor = request.getCommand() == TCPMessage.Command.POLL_CHANGES ? pollers : workers;
+                executor.execute(() -> reply(connection, handler.apply(request)));
+            } catch (RejectedExecutionException e) {
+                TCPMessage busy = new TCPMessage(request.getMessageId(), "Server busy, request rejected");
+                busy.setRetryAfterMillis(BUSY_RETRY_AFTER_MILLIS);
+                reply(connection, busy);
+            }
+        }
+
+        private void flush(Connection connection) throws IOException {
+            connection.flushScheduled.set(false);
+            while (true) {
+                // Copy as many queued frames as fit into the shared buffer, starting where the last write stopped
+                ByteBuffer out = writeBuffer;
+                out.clear();
+                int offset = connection.headWritten;
+                for (byte[] frame : connection.outbound) {
+                    int n = Math.min(out.remaining(), frame.length - offset);
+                    out.put(frame, offset, n);
+                    offset = 0;
+                    if (!out.hasRemaining()) {
+                        break;
+                    }
+                }
+                if (out.position() == 0) {
+                    connection.key.interestOps(SelectionKey.OP_READ);
+                    return;
+                }
+
+                out.flip();
+                int written = connection.channel.write(out);
+
+                // Retire whatever was actually written
+                while (written > 0) {
+                    byte[] head = connection.outbound.peek();
+                    int left = head.length - connection.headWritten;
+                    if (written >= left) {
+                        written -= left;
+                        connection.outbound.poll();
+                        connection.headWritten = 0;
+                    } else {
+                        connection.headWritten += written;
+                        written = 0;
+                    }
+                }
+
+                if (out.hasRemaining()) {
+                    // Socket buffer is full; carry on when the selector says it is writable again
+                    connection.key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+        }
+
+        private void close(Connection connection) {
+            if (connection.key != null) {
+                connection.key.cancel();
+            }
+            connection.outbound.clear();
+            closeQuietly(connection.channel);
+        }
+    }
+
+    /* Called from worker threads (or the I/O thread when rejecting) */
+    private void reply(Connection connection, TCPMessage response) {
+        byte[] frame;
+        try {
+            frame = TCPCommunicator.encodeFrame(response);
+        } catch (IOException e) {
+            System.err.println("Failed to encode response: " + e.getMessage());
+            return;
+        }
+        connection.outbound.add(frame);
+        if (connection.flushScheduled.compareAndSet(false, true)) {
+            connection.loop.execute(() -> {
+                try {
+                    connection.loop.flush(connection);
+                } catch (IOException | CancelledKeyException e) {
+                    connection.loop.close(connection);
+                }
+            });
+        }
+        Trace.debug(() -> "Response sent to middleware: " + response);
+    }
+
+    private static void closeQuietly(java.io.Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            // nothing more to do
+        }
+    }
+}
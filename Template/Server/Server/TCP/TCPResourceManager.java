@@ -6,7 +6,6 @@ import Server.TCP.TCPMessage.Command;
 import java.io.*;
 import java.net.*;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 
 /* Handles multiple concurrent client connections using thread pool */
 public class TCPResourceManager extends ResourceManager {
@@ -15,14 +14,38 @@ public class TCPResourceManager extends ResourceManager {
     private ExecutorService threadPool;
     private boolean running = false;
     private int port;
+    private TCPNioServer nioServer;
+    // Set when running as a read replica (-Drm.replica.of=host:port), otherwise null
+    private ReplicaFollower follower;
+    // Responses to recent changes, replayed when a caller retries one
+    private final ReplayCache replayCache = new ReplayCache(Integer.getInteger("rm.replay.per.client", 1024),
+            Long.getLong("rm.replay.ttl.ms", 60000));
 
     public TCPResourceManager(String name, int port) {
         super(name);
         this.port = port;
-        this.threadPool = Executors.newCachedThreadPool();
+        this.threadPool = TCPExecutors.newHandlerExecutor("RM-handler");
+
+        String primary = System.getProperty("rm.replica.of");
+        if (primary != null) {
+            int colon = primary.lastIndexOf(':');
+            if (colon < 0) {
+                throw new IllegalArgumentException("rm.replica.of must be host:port, not " + primary);
+            }
+            follower = new ReplicaFollower(this, primary.substring(0, colon), Integer.parseInt(primary.substring(colon + 1)),
+                    Long.getLong("rm.replica.max.staleness.ms", 2000));
+        }
     }
 
     public void startServer() {
+        if (follower != null) {
+            System.out.println("'" + m_name + "' is a read replica of " + follower.getPrimary());
+            follower.start();
+        }
+        if ("nio".equalsIgnoreCase(System.getProperty("rm.server", "blocking"))) {
+            startNioServer();
+            return;
+        }
         try {
             serverSocket = new ServerSocket(port);
             running = true;
@@ -31,7 +54,7 @@ public class TCPResourceManager extends ResourceManager {
             while (running) {
                 try {
                     Socket clientSocket = serverSocket.accept();
-                    System.out.println("New connection from: " + clientSocket.getRemoteSocketAddress());
+                    Trace.info(() -> "New connection from: " + clientSocket.getRemoteSocketAddress());
                     threadPool.submit(new ClientHandler(clientSocket));
 
                 } catch (SocketException e) {
@@ -48,8 +71,32 @@ public class TCPResourceManager extends ResourceManager {
         }
     }
 
+    /* Selector-based variant: a few I/O threads for all connections and a bounded worker pool */
+    private void startNioServer() {
+        int cores = Runtime.getRuntime().availableProcessors();
+        try {
+            nioServer = new TCPNioServer(port,
+                    Integer.getInteger("rm.nio.io.threads", Math.max(1, cores / 2)),
+                    Integer.getInteger("rm.nio.workers", cores * 2),
+                    Integer.getInteger("rm.nio.queue", 4096),
+                    this::processRequest);
+            running = true;
+            System.out.println("'" + m_name + "' TCP ResourceManager server (nio) started on port " + port);
+            nioServer.serve();
+        } catch (IOException e) {
+            System.err.println("Failed to start server on port " + port + ": " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
     public void shutdown() {
         running = false;
+        if (follower != null) {
+            follower.close();
+        }
+        if (nioServer != null) {
+            nioServer.shutdown();
+        }
         try {
             if (serverSocket != null && !serverSocket.isClosed()) {
                 serverSocket.close();
@@ -58,6 +105,7 @@ public class TCPResourceManager extends ResourceManager {
         } catch (IOException e) {
             System.err.println("Error during server shutdown: " + e.getMessage());
         }
+        close();
     }
 
     private class ClientHandler implements Runnable {
@@ -70,20 +118,18 @@ public class TCPResourceManager extends ResourceManager {
         @Override
         public void run() {
             try {
-                System.out.println("Handling connection: " + clientSocket.getRemoteSocketAddress());
+                Trace.debug(() -> "Handling connection: " + clientSocket.getRemoteSocketAddress());
 
                 while (!clientSocket.isClosed()) {
                     try {
                         TCPMessage request = TCPCommunicator.receiveMessage(clientSocket);
-                        System.out.println("Received: " + request);
-
-                        TCPMessage response = processRequest(request);
-                        TCPCommunicator.sendMessage(clientSocket, response);
+                        Trace.debug(() -> "Received: " + request);
 
-                        System.out.println("Response sent to middleware: " + response);
+                        // The middleware pipelines requests on this socket, so answer them as they finish
+                        threadPool.submit(() -> sendResponse(processRequest(request)));
 
                     } catch (EOFException | SocketException e) {
-                        System.out.println("Client disconnected: " + clientSocket.getRemoteSocketAddress());
+                        Trace.info(() -> "Client disconnected: " + clientSocket.getRemoteSocketAddress());
                         break;
                     } catch (ClassNotFoundException e) {
                         System.err.println("Invalid message format from client: " + e.getMessage());
@@ -95,12 +141,32 @@ public class TCPResourceManager extends ResourceManager {
                 }
             } finally {
                 TCPCommunicator.closeSocket(clientSocket);
-                System.out.println("Client handler finished for: " + clientSocket.getRemoteSocketAddress());
+                Trace.debug(() -> "Client handler finished for: " + clientSocket.getRemoteSocketAddress());
+            }
+        }
+
+        private void sendResponse(TCPMessage response) {
+            try {
+                synchronized (clientSocket) {
+                    TCPCommunicator.sendMessage(clientSocket, response);
+                }
+                Trace.debug(() -> "Response sent to middleware: " + response);
+            } catch (IOException e) {
+                System.err.println("Failed to send response: " + e.getMessage());
             }
         }
     }
 
     private TCPMessage processRequest(TCPMessage request) {
+        return replayCache.execute(request, this::executeRequest);
+    }
+
+    private TCPMessage executeRequest(TCPMessage request) {
+        if (request.isExpired() && !isDecision(request.getCommand())) {
+            // The sender has stopped waiting, so doing it now would only delay work that is still wanted
+            Trace.warn(() -> "Dropped " + request.getCommand() + ": its deadline passed before it started");
+            return new TCPMessage(request.getMessageId(), "Deadline passed before " + request.getCommand() + " started; not executed");
+        }
         try {
             Object result = executeCommand(request.getCommand(), request.getArguments());
             return new TCPMessage(request.getMessageId(), result);
@@ -113,6 +179,9 @@ public class TCPResourceManager extends ResourceManager {
 
     @SuppressWarnings("unchecked")
     private Object executeCommand(Command command, Object[] args) throws Exception {
+        if (follower != null) {
+            checkReplicaCommand(command);
+        }
         switch (command) {
             case ADD_FLIGHT:
                 return addFlight((Integer) args[0], (Integer) args[1], (Integer) args[2]);
@@ -171,6 +240,53 @@ public class TCPResourceManager extends ResourceManager {
             case RESERVE_ROOM:
                 return reserveRoom((Integer) args[0], (String) args[1]);
 
+            case ADD_FLIGHTS:
+                return addFlights((int[]) args[0], (int[]) args[1], (int[]) args[2]);
+
+            case ADD_CARS_BATCH:
+                return addCars((String[]) args[0], (int[]) args[1], (int[]) args[2]);
+
+            case ADD_ROOMS_BATCH:
+                return addRooms((String[]) args[0], (int[]) args[1], (int[]) args[2]);
+
+            case QUERY_FLIGHTS:
+                return queryFlights((int[]) args[0]);
+
+            case QUERY_CARS_BATCH:
+                return queryCars((String[]) args[0]);
+
+            case QUERY_ROOMS_BATCH:
+                return queryRooms((String[]) args[0]);
+
+            case RESERVE_FLIGHTS:
+                return reserveFlights((Integer) args[0], (int[]) args[1]);
+
+            case RESERVE_CARS:
+                return reserveCars((Integer) args[0], (String[]) args[1]);
+
+            case RESERVE_ROOMS:
+                return reserveRooms((Integer) args[0], (String[]) args[1]);
+
+            case EXPORT_INVENTORY:
+                return exportInventory((String) args[0], (Integer) args[1], (Integer) args[2]);
+
+            case POLL_CHANGES:
+                return pollChanges((Long) args[0], (Long) args[1], (Integer) args[2], (Integer) args[3]);
+
+            case RESERVE_ITEMS:
+                return reserveItems((Integer) args[0], (String[]) args[1], (String[]) args[2]);
+
+            case PREPARE_RESERVE:
+                return prepareReserve((Long) args[0], (Integer) args[1], (String[]) args[2], (String[]) args[3]);
+
+            case COMMIT_RESERVE:
+                return commitReserve((Long) args[0]);
+
+            case ABORT_RESERVE:
+                return abortReserve((Long) args[0]);
+
+            case CANCEL_RESERVE:
+                return cancelReserve((Long) args[0]);
 
             case GET_NAME:
                 return getName();
@@ -180,6 +296,36 @@ public class TCPResourceManager extends ResourceManager {
         }
     }
 
+    /* The outcome of a bundle, already applied at other RMs, so it is carried out however late */
+    private static boolean isDecision(Command command) {
+        return command == Command.COMMIT_RESERVE || command == Command.ABORT_RESERVE || command == Command.CANCEL_RESERVE;
+    }
+
+    /* A replica answers reads of flights, cars and rooms while it is fresh enough, and nothing else */
+    private void checkReplicaCommand(Command command) {
+        switch (command) {
+            case QUERY_FLIGHT:
+            case QUERY_CARS:
+            case QUERY_ROOMS:
+            case QUERY_FLIGHT_PRICE:
+            case QUERY_CARS_PRICE:
+            case QUERY_ROOMS_PRICE:
+            case QUERY_FLIGHTS:
+            case QUERY_CARS_BATCH:
+            case QUERY_ROOMS_BATCH:
+            case EXPORT_INVENTORY:
+                follower.checkFresh();
+                return;
+
+            case POLL_CHANGES:
+            case GET_NAME:
+                return;
+
+            default:
+                throw new UnsupportedOperationException(m_name + " is a read-only replica of " + follower.getPrimary());
+        }
+    }
+
     public static void main(String[] args) {
         String serverName = "Server";
         int port = DEFAULT_PORT;
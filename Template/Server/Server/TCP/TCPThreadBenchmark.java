@@ -0,0 +1,130 @@
+package Server.TCP;
+
+import Server.Common.Trace;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Compares the handler thread modes (see TCPExecutors) end to end. For each
+ * mode it starts the three RMs and the middleware in this JVM on the usual
+ * ports, opens one connection per simulated client and has every client
+ * issue blocking queries through the middleware. Reports throughput, latency
+ * percentiles and the peak number of platform threads in the JVM; the
+ * simulated clients themselves account for two of those per client in
+ * every mode.
+ *
+ * Usage: java Server.TCP.TCPThreadBenchmark [clients] [requestsPerClient] [mode,mode...]
+ */
+public class TCPThreadBenchmark {
+    private static final int MIDDLEWARE_PORT = 17000;
+    private static final String[][] RMS = { { "Flights", "18081" }, { "Cars", "18082" }, { "Rooms", "18083" } };
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 500;
+        int requestsPerClient = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+        String[] modes = args.length > 2 ? args[2].split(",") : new String[] { "platform", "virtual" };
+
+        Trace.setLevel(Trace.Level.WARN);
+        if (!TCPExecutors.isVirtualSupported()) {
+            System.out.println("Note: virtual threads are not available on Java "
+                    + System.getProperty("java.version") + "; the virtual run falls back to platform threads");
+        }
+        System.out.printf("%-9s %8s %10s %12s %9s %9s %9s %12s%n",
+                "mode", "clients", "requests", "req/s", "p50 ms", "p99 ms", "max ms", "peak threads");
+        for (String mode : modes) {
+            run(TCPExecutors.Mode.valueOf(mode.trim().toUpperCase()), clients, requestsPerClient);
+        }
+        System.exit(0);
+    }
+
+    private static void run(TCPExecutors.Mode mode, int clients, int requestsPerClient) throws Exception {
+        System.setProperty("tcp.threads", mode.name().toLowerCase());
+
+        List<TCPResourceManager> rms = new ArrayList<>();
+        for (String[] rm : RMS) {
+            TCPResourceManager server = new TCPResourceManager(rm[0], Integer.parseInt(rm[1]));
+            rms.add(server);
+            startDaemon(server::startServer);
+        }
+        Thread.sleep(300);
+        TCPMiddleware middleware = new TCPMiddleware(MIDDLEWARE_PORT);
+        startDaemon(middleware::startServer);
+        Thread.sleep(300);
+
+        TCPConnection setup = new TCPConnection("localhost", MIDDLEWARE_PORT);
+        setup.send(new TCPMessage(1, TCPMessage.Command.ADD_FLIGHT, 1, 1000, 100));
+
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        threads.resetPeakThreadCount();
+
+        long[] latencies = new long[clients * requestsPerClient];
+        AtomicInteger failures = new AtomicInteger();
+        CountDownLatch ready = new CountDownLatch(clients);
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(clients);
+        List<TCPConnection> connections = new ArrayList<>();
+
+        for (int c = 0; c < clients; c++) {
+            TCPConnection connection = new TCPConnection("localhost", MIDDLEWARE_PORT);
+            connections.add(connection);
+            int base = c * requestsPerClient;
+            startDaemon(() -> {
+                ready.countDown();
+                try {
+                    start.await();
+                    for (int i = 0; i < requestsPerClient; i++) {
+                        long begin = System.nanoTime();
+                        TCPMessage response = connection.send(new TCPMessage(i, TCPMessage.Command.QUERY_FLIGHT, 1));
+                        latencies[base + i] = System.nanoTime() - begin;
+                        if (response.getMessageType() == TCPMessage.MessageType.ERROR) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                } finally {
+                    done.countDown();
+                }
+            });
+        }
+
+        ready.await();
+        long begin = System.nanoTime();
+        start.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - begin;
+        int peakThreads = threads.getPeakThreadCount();
+
+        Arrays.sort(latencies);
+        int total = latencies.length;
+        System.out.printf("%-9s %8d %10d %12.0f %9.2f %9.2f %9.2f %12d%n",
+                mode.name().toLowerCase(), clients, total, total / (elapsed / 1e9),
+                latencies[total / 2] / 1e6, latencies[(int) (total * 0.99)] / 1e6, latencies[total - 1] / 1e6,
+                peakThreads);
+        if (failures.get() > 0) {
+            System.out.println("  " + failures.get() + " requests failed");
+        }
+
+        for (TCPConnection connection : connections) {
+            connection.close();
+        }
+        setup.close();
+        middleware.shutdown();
+        for (TCPResourceManager rm : rms) {
+            rm.shutdown();
+        }
+        Thread.sleep(500);
+    }
+
+    private static void startDaemon(Runnable task) {
+        Thread thread = new Thread(task);
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
@@ -0,0 +1,165 @@
+package Server.TCP;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Hierarchical timing wheel: runs a task when its deadline passes, for any
+ * number of pending deadlines at the cost of one thread and a list append
+ * per deadline, rather than a scheduled task each.
+ *
+ * Time advances in ticks. Level 0 has a slot for each of the next 64 ticks,
+ * level 1 a slot for each of the next 64 runs of 64 ticks, and so on. A
+ * deadline goes in the lowest level whose slot holds only its own run of
+ * ticks; when the wheel reaches a slot of a higher level, its deadlines move
+ * down a level, until in level 0 they run. Deadlines further off than the
+ * top level reaches wait in its slots and are placed again each time round.
+ * Tasks run no earlier than their deadline and at most about a tick after.
+ *
+ * Cancelling only marks the timeout; it is dropped when its slot comes up.
+ * Tasks run on the wheel's thread, so they must be quick.
+ */
+public class TimingWheel {
+    private static final int SLOT_BITS = 6;
+    private static final int SLOTS = 1 << SLOT_BITS;
+    private static final int LEVELS = 4;
+
+    private final String name;
+    private final long tickNanos;
+    private final long start = System.nanoTime();
+    // Guarded by this
+    private final List<List<Timeout>> slots = new ArrayList<>();
+    private long currentTick = 0;
+    private Thread thread;
+
+    public static class Timeout {
+        private final long deadline;
+        private final long tick;
+        private final Runnable task;
+        private volatile boolean cancelled;
+
+        Timeout(long deadline, long tick, Runnable task) {
+            this.deadline = deadline;
+            this.tick = tick;
+            this.task = task;
+        }
+
+        public void cancel() {
+            cancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return cancelled;
+        }
+
+        public long getDeadline() {
+            return deadline;
+        }
+    }
+
+    public TimingWheel(String name, long tickMillis) {
+        this.name = name;
+        this.tickNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(1, tickMillis));
+        for (int i = 0; i < LEVELS * SLOTS; i++) {
+            slots.add(new ArrayList<>());
+        }
+    }
+
+    /* Runs task once System.nanoTime passes deadline, unless the returned timeout is cancelled first */
+    public synchronized Timeout schedule(long deadline, Runnable task) {
+        // Round up, so a task never runs early
+        long tick = Math.max(0, (deadline - start + tickNanos - 1) / tickNanos);
+        Timeout timeout = new Timeout(deadline, tick, task);
+        // The current tick's slot has already run
+        place(timeout, currentTick + 1);
+        if (thread == null) {
+            thread = new Thread(this::run, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return timeout;
+    }
+
+    /* Timeouts waiting in the wheel, cancelled ones included */
+    public synchronized int size() {
+        int size = 0;
+        for (List<Timeout> slot : slots) {
+            size += slot.size();
+        }
+        return size;
+    }
+
+    /* Puts timeout in the slot of its tick, or of the earliest tick that has yet to run */
+    private void place(Timeout timeout, long earliest) {
+        long tick = Math.max(timeout.tick, earliest);
+        int level = 0;
+        while (level < LEVELS - 1 && (tick >>> (SLOT_BITS * (level + 1))) != (currentTick >>> (SLOT_BITS * (level + 1)))) {
+            level++;
+        }
+        int slot = (int) ((tick >>> (SLOT_BITS * level)) & (SLOTS - 1));
+        slots.get(level * SLOTS + slot).add(timeout);
+    }
+
+    private void run() {
+        List<Timeout> due = new ArrayList<>();
+        while (true) {
+            synchronized (this) {
+                long now = System.nanoTime();
+                long target = (now - start) / tickNanos;
+                while (currentTick < target) {
+                    advance(due);
+                }
+            }
+            for (Timeout timeout : due) {
+                try {
+                    timeout.task.run();
+                } catch (RuntimeException e) {
+                    System.err.println(name + ": timeout task failed: " + e);
+                }
+            }
+            due.clear();
+
+            long next;
+            synchronized (this) {
+                next = start + (currentTick + 1) * tickNanos;
+            }
+            long sleep = next - System.nanoTime();
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /* Moves to the next tick, collecting what falls due; the caller holds the lock */
+    private void advance(List<Timeout> due) {
+        currentTick++;
+        // At the start of a run of ticks, bring the run's deadlines down from the levels above
+        for (int level = LEVELS - 1; level > 0; level--) {
+            if ((currentTick & ((1L << (SLOT_BITS * level)) - 1)) == 0) {
+                int slot = (int) ((currentTick >>> (SLOT_BITS * level)) & (SLOTS - 1));
+                List<Timeout> cascading = slots.get(level * SLOTS + slot);
+                if (!cascading.isEmpty()) {
+                    List<Timeout> moving = new ArrayList<>(cascading);
+                    cascading.clear();
+                    for (Timeout timeout : moving) {
+                        if (!timeout.cancelled) {
+                            place(timeout, currentTick);
+                        }
+                    }
+                }
+            }
+        }
+        List<Timeout> slot = slots.get((int) (currentTick & (SLOTS - 1)));
+        for (Timeout timeout : slot) {
+            if (!timeout.cancelled) {
+                due.add(timeout);
+            }
+        }
+        slot.clear();
+    }
+}